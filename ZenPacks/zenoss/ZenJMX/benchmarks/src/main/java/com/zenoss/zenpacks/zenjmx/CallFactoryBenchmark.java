@@ -0,0 +1,76 @@
+///////////////////////////////////////////////////////////////////////////
+//
+//Copyright 2008 Zenoss Inc
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//    http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//
+///////////////////////////////////////////////////////////////////////////
+package com.zenoss.zenpacks.zenjmx;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.zenoss.zenpacks.zenjmx.call.CallFactory;
+import com.zenoss.zenpacks.zenjmx.call.ConfigurationException;
+import com.zenoss.zenpacks.zenjmx.call.JmxCall;
+
+/**
+ * Turning datasource configurations into calls, done for every datasource
+ * of every collect request that isn't registered.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CallFactoryBenchmark {
+
+    private ConfigAdapter _attribute;
+
+    private ConfigAdapter _operation;
+
+    @Setup
+    public void setUp()
+        {
+        _attribute = new ConfigAdapter(OpenDataShapes.attributeConfig("heap",
+                "java.lang:type=Memory", "HeapMemoryUsage",
+                OpenDataShapes.MEMORY_USAGE_KEYS));
+        Map<String, Object> operation = OpenDataShapes.attributeConfig(
+                "threads", "java.lang:type=Threading", "", "count");
+        operation.put(ConfigAdapter.OPERATION_NAME, "getThreadCpuTime");
+        operation.put(ConfigAdapter.OPERATION_PARAM_VALUES, "1");
+        operation.put(ConfigAdapter.OPERATION_PARAM_TYPES, "long");
+        _operation = new ConfigAdapter(operation);
+        }
+
+    @Benchmark
+    public JmxCall attributeCall() throws ConfigurationException
+        {
+        return CallFactory.createCall(_attribute);
+        }
+
+    @Benchmark
+    public JmxCall operationCall() throws ConfigurationException
+        {
+        return CallFactory.createCall(_operation);
+        }
+}
@@ -0,0 +1,116 @@
+///////////////////////////////////////////////////////////////////////////
+//
+//Copyright 2008 Zenoss Inc
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//    http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//
+///////////////////////////////////////////////////////////////////////////
+package com.zenoss.zenpacks.zenjmx;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.openmbean.CompositeData;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.zenoss.jmx.JmxClient;
+import com.zenoss.jmx.JmxException;
+import com.zenoss.jmx.ValueExtractor;
+
+/**
+ * Reading datapoints out of composite and tabular attribute values, once
+ * per path with ValueExtractor and for all of a call's datapoints with
+ * JmxClient.extractValues().
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExtractionBenchmark {
+
+    private CompositeData _heap;
+
+    private CompositeData _gcInfo;
+
+    private CompositeData _wide;
+
+    private List<String> _heapKeys;
+
+    private List<String> _gcInfoKeys;
+
+    private List<String> _wideKeys;
+
+    private JmxClient _client;
+
+    @Setup
+    public void setUp() throws Exception
+        {
+        _heap = OpenDataShapes.memoryUsage(1000000L);
+        _gcInfo = OpenDataShapes.gcInfo();
+        _wide = OpenDataShapes.wide();
+        _heapKeys = Arrays.asList(OpenDataShapes.MEMORY_USAGE_KEYS);
+        _gcInfoKeys = OpenDataShapes.gcInfoKeys();
+        _wideKeys = Arrays.asList(OpenDataShapes.wideKeys());
+        // extracting values doesn't need a connection
+        _client = new JmxClient("service:jmx:rmi:///jndi/rmi://localhost:9999/jmxrmi");
+        }
+
+    @Benchmark
+    public Object compositeValue() throws JmxException
+        {
+        return ValueExtractor.getDataValue(_heap, "used");
+        }
+
+    @Benchmark
+    public Object tabularValue() throws JmxException
+        {
+        return ValueExtractor.getDataValue(_gcInfo,
+                "memoryUsageAfterGc.[PS Old Gen].used");
+        }
+
+    @Benchmark
+    public Object tabularValueWithColumn() throws JmxException
+        {
+        return ValueExtractor.getDataValue(_gcInfo,
+                "memoryUsageAfterGc.[PS Old Gen].{value}.used");
+        }
+
+    @Benchmark
+    public Map<String, Object> heapValues() throws JmxException
+        {
+        return _client.extractValues(_heap, _heapKeys, null);
+        }
+
+    @Benchmark
+    public Map<String, Object> gcInfoValues() throws JmxException
+        {
+        return _client.extractValues(_gcInfo, _gcInfoKeys, null);
+        }
+
+    @Benchmark
+    public Map<String, Object> wideValues() throws JmxException
+        {
+        return _client.extractValues(_wide, _wideKeys, null);
+        }
+}
@@ -0,0 +1,210 @@
+///////////////////////////////////////////////////////////////////////////
+//
+//Copyright 2008 Zenoss Inc
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//    http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//
+///////////////////////////////////////////////////////////////////////////
+package com.zenoss.zenpacks.zenjmx;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
+import javax.management.openmbean.TabularData;
+import javax.management.openmbean.TabularDataSupport;
+import javax.management.openmbean.TabularType;
+
+/**
+ * Builds open data shaped like the attributes zenjmx reads most: heap
+ * memory usage, the last gc info of a garbage collector with its memory
+ * pool tables, and a wide composite like the ones of application servers.
+ */
+public class OpenDataShapes {
+
+    public static final String[] MEMORY_POOLS = { "Code Cache", "Metaspace",
+            "Compressed Class Space", "PS Eden Space", "PS Survivor Space",
+            "PS Old Gen" };
+
+    public static final String[] MEMORY_USAGE_KEYS = { "init", "used",
+            "committed", "max" };
+
+    // number of items in the wide composite
+    public static final int WIDE_SIZE = 40;
+
+    private static final CompositeType MEMORY_USAGE;
+
+    private static final TabularType MEMORY_POOL_USAGE;
+
+    private static final CompositeType GC_INFO;
+
+    private static final CompositeType WIDE;
+
+    static
+        {
+        try
+            {
+            MEMORY_USAGE = new CompositeType("java.lang.management.MemoryUsage",
+                    "MemoryUsage", MEMORY_USAGE_KEYS, MEMORY_USAGE_KEYS,
+                    types(SimpleType.LONG, 4));
+            CompositeType row = new CompositeType("memoryPoolUsage",
+                    "memoryPoolUsage", new String[] { "key", "value" },
+                    new String[] { "key", "value" }, new OpenType<?>[] {
+                            SimpleType.STRING, MEMORY_USAGE });
+            MEMORY_POOL_USAGE = new TabularType("memoryPoolUsageTable",
+                    "memoryPoolUsageTable", row, new String[] { "key" });
+            String[] gcItems = { "GcThreadCount", "duration", "endTime", "id",
+                    "startTime", "memoryUsageBeforeGc", "memoryUsageAfterGc" };
+            GC_INFO = new CompositeType("sun.management.GcInfoCompositeType",
+                    "GcInfo", gcItems, gcItems, new OpenType<?>[] {
+                            SimpleType.INTEGER, SimpleType.LONG,
+                            SimpleType.LONG, SimpleType.LONG, SimpleType.LONG,
+                            MEMORY_POOL_USAGE, MEMORY_POOL_USAGE });
+            String[] wideItems = wideKeys();
+            WIDE = new CompositeType("Wide", "Wide", wideItems, wideItems,
+                    types(SimpleType.LONG, WIDE_SIZE));
+            }
+        catch (OpenDataException e)
+            {
+            throw new ExceptionInInitializerError(e);
+            }
+        }
+
+    /**
+     * Returns a composite like java.lang:type=Memory HeapMemoryUsage
+     */
+    public static CompositeData memoryUsage(long used) throws OpenDataException
+        {
+        return new CompositeDataSupport(MEMORY_USAGE, MEMORY_USAGE_KEYS,
+                new Object[] { used / 4, used, used * 2, used * 4 });
+        }
+
+    /**
+     * Returns a composite like the LastGcInfo of a garbage collector
+     */
+    public static CompositeData gcInfo() throws OpenDataException
+        {
+        Map<String, Object> items = new HashMap<String, Object>();
+        items.put("GcThreadCount", 4);
+        items.put("duration", 12L);
+        items.put("endTime", 1012L);
+        items.put("id", 42L);
+        items.put("startTime", 1000L);
+        items.put("memoryUsageBeforeGc", memoryPoolUsage(2000000L));
+        items.put("memoryUsageAfterGc", memoryPoolUsage(1000000L));
+        return new CompositeDataSupport(GC_INFO, items);
+        }
+
+    private static TabularData memoryPoolUsage(long used)
+            throws OpenDataException
+        {
+        TabularData table = new TabularDataSupport(MEMORY_POOL_USAGE);
+        for (int i = 0; i < MEMORY_POOLS.length; i++)
+            {
+            table.put(new CompositeDataSupport(MEMORY_POOL_USAGE.getRowType(),
+                    new String[] { "key", "value" }, new Object[] {
+                            MEMORY_POOLS[i], memoryUsage(used * (i + 1)) }));
+            }
+        return table;
+        }
+
+    /**
+     * Returns a composite of WIDE_SIZE longs
+     */
+    public static CompositeData wide() throws OpenDataException
+        {
+        Object[] values = new Object[WIDE_SIZE];
+        for (int i = 0; i < values.length; i++)
+            {
+            values[i] = (long) i * 1000;
+            }
+        return new CompositeDataSupport(WIDE, wideKeys(), values);
+        }
+
+    public static String[] wideKeys()
+        {
+        String[] keys = new String[WIDE_SIZE];
+        for (int i = 0; i < keys.length; i++)
+            {
+            keys[i] = "counter" + i;
+            }
+        return keys;
+        }
+
+    /**
+     * Returns the datapoint keys reading used and committed of every pool
+     * after the last gc
+     */
+    public static List<String> gcInfoKeys()
+        {
+        List<String> keys = new ArrayList<String>();
+        for (String pool : MEMORY_POOLS)
+            {
+            keys.add("memoryUsageAfterGc.[" + pool + "].used");
+            keys.add("memoryUsageAfterGc.[" + pool + "].committed");
+            }
+        return keys;
+        }
+
+    /**
+     * Returns the configuration of an attribute datasource like those sent
+     * by zenjmx.py
+     */
+    public static Map<String, Object> attributeConfig(String dsId,
+            String objectName, String attribute, String... dps)
+        {
+        Map<String, Object> config = new HashMap<String, Object>();
+        config.put(ConfigAdapter.DEVICE, "localhost");
+        config.put(ConfigAdapter.MANAGE_IP, "localhost");
+        config.put(ConfigAdapter.JMX_PORT, "9999");
+        config.put(ConfigAdapter.JMX_PROTOCOL, "RMI");
+        config.put(ConfigAdapter.JMX_RAW_SERVICE, "");
+        config.put(ConfigAdapter.RMI_CONTEXT, "jmxrmi");
+        config.put(ConfigAdapter.AUTHENTICATE, Boolean.FALSE);
+        config.put(ConfigAdapter.USERNAME, "");
+        config.put(ConfigAdapter.PASSWORD, "");
+        config.put(ConfigAdapter.DATASOURCE_ID, dsId);
+        config.put(ConfigAdapter.OBJECT_NAME, objectName);
+        config.put(ConfigAdapter.ATTRIBUTE_NAME, attribute);
+        config.put("attributePath", "");
+        config.put(ConfigAdapter.OPERATION_NAME, "");
+        config.put(ConfigAdapter.OPERATION_PARAM_VALUES, "");
+        config.put(ConfigAdapter.OPERATION_PARAM_TYPES, "");
+        config.put(ConfigAdapter.EVENT_CLASS, "/Status/JMX");
+        config.put(ConfigAdapter.EVENT_KEY, "");
+        config.put(ConfigAdapter.COMPONENT_KEY, "");
+        config.put(ConfigAdapter.RRD_PATH, "Devices/localhost");
+        Object[] types = new Object[dps.length];
+        for (int i = 0; i < types.length; i++)
+            {
+            types[i] = "GAUGE";
+            }
+        config.put(ConfigAdapter.DATA_POINT, dps);
+        config.put(ConfigAdapter.DATA_POINT_TYPES, types);
+        return config;
+        }
+
+    private static OpenType<?>[] types(OpenType<?> type, int count)
+        {
+        OpenType<?>[] types = new OpenType<?>[count];
+        for (int i = 0; i < count; i++)
+            {
+            types[i] = type;
+            }
+        return types;
+        }
+}
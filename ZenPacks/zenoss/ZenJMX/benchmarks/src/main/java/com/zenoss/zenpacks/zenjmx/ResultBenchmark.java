@@ -0,0 +1,94 @@
+///////////////////////////////////////////////////////////////////////////
+//
+//Copyright 2008 Zenoss Inc
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//    http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//
+///////////////////////////////////////////////////////////////////////////
+package com.zenoss.zenpacks.zenjmx;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.zenoss.zenpacks.zenjmx.ZenJmxService.JMXCollector;
+import com.zenoss.zenpacks.zenjmx.call.Summary;
+
+/**
+ * Marshalling the values of a call into the results sent back to
+ * zenjmx.py, in the legacy and the compact format.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResultBenchmark {
+
+    @Param({ "4", "40" })
+    public int datapoints;
+
+    private JMXCollector _legacy;
+
+    private JMXCollector _compact;
+
+    private ConfigAdapter _config;
+
+    private Summary _summary;
+
+    @Setup
+    public void setUp()
+        {
+        String[] keys = OpenDataShapes.wideKeys();
+        String[] dps = new String[datapoints];
+        Map<String, Object> values = new HashMap<String, Object>();
+        for (int i = 0; i < dps.length; i++)
+            {
+            dps[i] = keys[i];
+            values.put(dps[i], (long) i * 1000);
+            }
+        _config = new ConfigAdapter(OpenDataShapes.attributeConfig("wide",
+                "com.example:type=Wide", "Counters", dps));
+        ConfigAdapter[] configs = { _config };
+        _legacy = new JMXCollector(configs, false);
+        _compact = new JMXCollector(configs, false);
+        _compact.setCompactResults(true);
+        _summary = new Summary();
+        _summary.setObjectName("com.example:type=Wide");
+        _summary.setCallSummary("attribute: Counters");
+        _summary.setResults(values);
+        }
+
+    @Benchmark
+    public List<Map<String, Object>> legacyResult()
+        {
+        return _legacy.createResult(_summary, _config);
+        }
+
+    @Benchmark
+    public List<Map<String, Object>> compactResult()
+        {
+        return _compact.createResult(_summary, _config);
+        }
+}
@@ -0,0 +1,103 @@
+///////////////////////////////////////////////////////////////////////////
+//
+//Copyright 2008 Zenoss Inc
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//    http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//
+///////////////////////////////////////////////////////////////////////////
+package com.zenoss.zenpacks.zenjmx;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.zenoss.zenpacks.zenjmx.call.Summary;
+
+/**
+ * Publishing the values of a call to a ResultRing, and publishing them
+ * and reading them back with a ResultRingReader, which is what a local
+ * consumer adds to each call.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResultRingBenchmark {
+
+    private static final int DATAPOINTS = 4;
+
+    private File _file;
+
+    private ResultRing _ring;
+
+    private ResultRingReader _reader;
+
+    private Summary _summary;
+
+    @Setup
+    public void setUp() throws IOException
+        {
+        _file = File.createTempFile("zenjmx", ".ring");
+        _ring = new ResultRing(_file.getPath(), 1 << 20);
+        _reader = new ResultRingReader(_file.getPath());
+        Map<String, Object> values = new HashMap<String, Object>();
+        for (int i = 0; i < DATAPOINTS; i++)
+            {
+            values.put("datapoint" + i, 1000L * i);
+            }
+        _summary = new Summary();
+        _summary.setResults(values);
+        }
+
+    @TearDown
+    public void tearDown() throws IOException
+        {
+        _ring.close();
+        _file.delete();
+        new File(_file.getPath() + ResultRing.IDS_SUFFIX).delete();
+        }
+
+    @Benchmark
+    public void publish() throws IOException
+        {
+        _ring.write("device", "datasource", _summary);
+        }
+
+    @Benchmark
+    public int publishAndRead(final Blackhole blackhole) throws IOException
+        {
+        _ring.write("device", "datasource", _summary);
+        return _reader.poll(new ResultRingReader.Handler()
+            {
+                public void result(String device, String datasource,
+                        String datapoint, long timestamp, double value)
+                    {
+                    blackhole.consume(value);
+                    }
+            });
+        }
+}
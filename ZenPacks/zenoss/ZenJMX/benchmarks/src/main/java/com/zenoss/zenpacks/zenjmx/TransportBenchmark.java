@@ -0,0 +1,161 @@
+///////////////////////////////////////////////////////////////////////////
+//
+//Copyright 2008 Zenoss Inc
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//    http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//
+///////////////////////////////////////////////////////////////////////////
+package com.zenoss.zenpacks.zenjmx;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.parsers.SAXParserFactory;
+
+import org.apache.ws.commons.serialize.XMLWriterImpl;
+import org.apache.xmlrpc.common.TypeFactory;
+import org.apache.xmlrpc.common.TypeFactoryImpl;
+import org.apache.xmlrpc.common.XmlRpcHttpRequestConfigImpl;
+import org.apache.xmlrpc.parser.XmlRpcResponseParser;
+import org.apache.xmlrpc.serializer.XmlRpcWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xml.sax.InputSource;
+import org.xml.sax.XMLReader;
+
+import com.zenoss.zenpacks.zenjmx.ZenJmxService.JMXCollector;
+import com.zenoss.zenpacks.zenjmx.call.Summary;
+
+/**
+ * Encoding and decoding the response to a collect request with XML-RPC,
+ * as the XmlRpcServlet and zenjmx.py do, and with the BinaryCodec of the
+ * binary RPC server. The sizes of both encodings are printed at setup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransportBenchmark {
+
+    private static final int DATAPOINTS = 4;
+
+    @Param({ "10", "1000" })
+    public int datasources;
+
+    private final XmlRpcHttpRequestConfigImpl _config = new XmlRpcHttpRequestConfigImpl();
+
+    private final TypeFactory _typeFactory = new TypeFactoryImpl(null);
+
+    private final SAXParserFactory _saxFactory = SAXParserFactory
+            .newInstance();
+
+    private List<Map<String, Object>> _response;
+
+    private byte[] _xml;
+
+    private byte[] _binary;
+
+    @Setup
+    public void setUp() throws Exception
+        {
+        _saxFactory.setNamespaceAware(true);
+        _response = createResponse(datasources);
+        _xml = xmlRpcEncode();
+        _binary = binaryEncode();
+        System.out.println(String.format("%d datasources: XML-RPC %d bytes, "
+                + "binary %d bytes", datasources, _xml.length, _binary.length));
+        }
+
+    /**
+     * Creates the legacy results of datasources reading a composite
+     * attribute
+     */
+    static List<Map<String, Object>> createResponse(int datasources)
+        {
+        String[] keys = OpenDataShapes.wideKeys();
+        String[] dps = new String[DATAPOINTS];
+        System.arraycopy(keys, 0, dps, 0, dps.length);
+        List<Map<String, Object>> response = new ArrayList<Map<String, Object>>();
+        for (int i = 0; i < datasources; i++)
+            {
+            ConfigAdapter config = new ConfigAdapter(OpenDataShapes
+                    .attributeConfig("ds" + i, "com.example:type=Wide,id=" + i,
+                            "Counters", dps));
+            JMXCollector collector = new JMXCollector(
+                    new ConfigAdapter[] { config }, false);
+            Map<String, Object> values = new HashMap<String, Object>();
+            for (int j = 0; j < dps.length; j++)
+                {
+                values.put(dps[j], (long) i * 1000 + j);
+                }
+            Summary summary = new Summary();
+            summary.setObjectName("com.example:type=Wide,id=" + i);
+            summary.setCallSummary("attribute: Counters");
+            summary.setResults(values);
+            response.addAll(collector.createResult(summary, config));
+            }
+        return response;
+        }
+
+    @Benchmark
+    public byte[] xmlRpcEncode() throws Exception
+        {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OutputStreamWriter writer = new OutputStreamWriter(out, "UTF-8");
+        XMLWriterImpl xml = new XMLWriterImpl();
+        xml.setEncoding("UTF-8");
+        xml.setDeclarating(true);
+        xml.setWriter(writer);
+        new XmlRpcWriter(_config, xml, _typeFactory).write(_config,
+                _response);
+        writer.flush();
+        return out.toByteArray();
+        }
+
+    @Benchmark
+    public Object xmlRpcDecode() throws Exception
+        {
+        XmlRpcResponseParser parser = new XmlRpcResponseParser(_config,
+                _typeFactory);
+        XMLReader reader = _saxFactory.newSAXParser().getXMLReader();
+        reader.setContentHandler(parser);
+        reader.parse(new InputSource(new ByteArrayInputStream(_xml)));
+        return parser.getResult();
+        }
+
+    @Benchmark
+    public byte[] binaryEncode() throws Exception
+        {
+        return BinaryCodec.encode(_response);
+        }
+
+    @Benchmark
+    public Object binaryDecode() throws Exception
+        {
+        return BinaryCodec.decode(_binary);
+        }
+}
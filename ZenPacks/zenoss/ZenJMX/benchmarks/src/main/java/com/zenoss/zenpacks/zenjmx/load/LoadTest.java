@@ -0,0 +1,433 @@
+///////////////////////////////////////////////////////////////////////////
+//
+//Copyright 2008 Zenoss Inc
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//    http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//
+///////////////////////////////////////////////////////////////////////////
+package com.zenoss.zenpacks.zenjmx.load;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+
+import org.apache.xmlrpc.client.XmlRpcClient;
+import org.apache.xmlrpc.client.XmlRpcClientConfigImpl;
+import org.eclipse.jetty.server.Server;
+
+import com.zenoss.zenpacks.zenjmx.BinaryRpcClient;
+import com.zenoss.zenpacks.zenjmx.BinaryRpcServer;
+import com.zenoss.zenpacks.zenjmx.ConfigAdapter;
+import com.zenoss.zenpacks.zenjmx.Configuration;
+import com.zenoss.zenpacks.zenjmx.ZenJmxMain;
+
+/**
+ * <p>
+ * Load test of the collector. Starts a number of synthetic JMX Agents and
+ * has concurrent XML-RPC clients ask the collector to collect them, one
+ * device per request, as zenjmx.py does. Every interval it reports device
+ * collections per second, device latency percentiles, errors, and the
+ * threads and heap of this JVM.
+ * </p>
+ *
+ * <p>
+ * Arguments are name=value pairs:
+ * </p>
+ * <ul>
+ * <li>agents: number of JMX Agents (devices), default 10</li>
+ * <li>protocol: RMI or JMXMP, default RMI</li>
+ * <li>port: port of the first agent, the others follow, default 20000</li>
+ * <li>mbeans: synthetic mbeans per agent, one datasource each, default 20</li>
+ * <li>shape: attribute read by the datasources, simple, composite, tabular
+ * or mixed, default composite</li>
+ * <li>latency: time in ms every attribute read takes, default 0</li>
+ * <li>failureRate: fraction of attribute reads that fail, default 0</li>
+ * <li>clients: concurrent clients, default 8</li>
+ * <li>transport: xmlrpc, or binary for the binary RPC server, default
+ * xmlrpc</li>
+ * <li>duration: length of the test in seconds, default 60</li>
+ * <li>interval: seconds between reports, default 10</li>
+ * <li>url: XML-RPC url of a running collector; without it a collector is
+ * started in this JVM on listenPort, default 19988</li>
+ * <li>binaryPort: port of the binary RPC server, on the host of url if
+ * provided, default 19989</li>
+ * </ul>
+ * <p>
+ * Any other pair is set in the configuration of an in-process collector,
+ * e.g. concurrentJMXCalls=true or collectionThreads=400.
+ * </p>
+ */
+public class LoadTest {
+
+    private static final String[] USAGE_KEYS = { "init", "used", "committed",
+            "max" };
+
+    private final Map<String, String> _args;
+
+    private final List<SyntheticAgent> _agents = new ArrayList<SyntheticAgent>();
+
+    // datasource configurations of every agent
+    private final List<List<Map<String, Object>>> _devices = new ArrayList<List<Map<String, Object>>>();
+
+    private final AtomicInteger _next = new AtomicInteger();
+
+    private final AtomicLong _resultErrors = new AtomicLong();
+
+    private final AtomicLong _requestErrors = new AtomicLong();
+
+    private final LatencyRecorder _interval = new LatencyRecorder();
+
+    private final LatencyRecorder _total = new LatencyRecorder();
+
+    private volatile boolean _running = true;
+
+    public LoadTest(Map<String, String> args)
+        {
+        _args = args;
+        }
+
+    public static void main(String[] args) throws Exception
+        {
+        Map<String, String> options = new LinkedHashMap<String, String>();
+        options.put("agents", "10");
+        options.put("protocol", SyntheticAgent.RMI);
+        options.put("port", "20000");
+        options.put("mbeans", "20");
+        options.put("shape", "composite");
+        options.put("latency", "0");
+        options.put("failureRate", "0");
+        options.put("clients", "8");
+        options.put("duration", "60");
+        options.put("interval", "10");
+        options.put("listenPort", "19988");
+        options.put("transport", "xmlrpc");
+        options.put("binaryPort", "19989");
+        for (String arg : args)
+            {
+            int eq = arg.indexOf('=');
+            if ( eq <= 0 )
+                {
+                System.err.println("ignoring argument " + arg
+                        + ", expected name=value");
+                continue;
+                }
+            options.put(arg.substring(0, eq), arg.substring(eq + 1));
+            }
+        new LoadTest(options).run();
+        System.exit(0);
+        }
+
+    public void run() throws Exception
+        {
+        System.out.println("load test " + _args);
+        Server server = null;
+        BinaryRpcServer binaryServer = null;
+        String url = _args.get("url");
+        if ( url == null )
+            {
+            Configuration config = Configuration.instance();
+            for (Map.Entry<String, String> arg : _args.entrySet())
+                {
+                config.setProperty(arg.getKey(), arg.getValue());
+                }
+            int port = getInt("listenPort");
+            server = ZenJmxMain.startServer(port);
+            url = "http://localhost:" + port + "/";
+            if ( isBinary() )
+                {
+                binaryServer = new BinaryRpcServer(getInt("binaryPort"));
+                binaryServer.start();
+                }
+            }
+        startAgents();
+
+        int clients = getInt("clients");
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < clients; i++)
+            {
+            Thread thread = new Thread(new Client(url), "load-client-" + i);
+            thread.setDaemon(true);
+            thread.start();
+            threads.add(thread);
+            }
+
+        long start = System.currentTimeMillis();
+        long end = start + 1000L * getInt("duration");
+        long interval = 1000L * getInt("interval");
+        long last = start;
+        while (System.currentTimeMillis() < end)
+            {
+            Thread.sleep(Math.min(interval, end - System.currentTimeMillis()));
+            long now = System.currentTimeMillis();
+            report("[" + (now - start) / 1000 + "s]", _interval.drain(),
+                    now - last);
+            last = now;
+            }
+        _running = false;
+        for (Thread thread : threads)
+            {
+            thread.join(60000);
+            }
+        report("[total]", _total.drain(), System.currentTimeMillis() - start);
+
+        for (SyntheticAgent agent : _agents)
+            {
+            agent.stop();
+            }
+        if ( server != null )
+            {
+            server.stop();
+            }
+        if ( binaryServer != null )
+            {
+            binaryServer.stop();
+            }
+        }
+
+    private void startAgents() throws Exception
+        {
+        int agents = getInt("agents");
+        int port = getInt("port");
+        int mbeans = getInt("mbeans");
+        String protocol = _args.get("protocol").toUpperCase();
+        for (int i = 0; i < agents; i++)
+            {
+            SyntheticAgent agent = new SyntheticAgent(protocol, port + i,
+                    mbeans, getInt("latency"), Double.parseDouble(_args
+                            .get("failureRate")));
+            agent.start();
+            _agents.add(agent);
+            _devices.add(createConfigs("agent" + i, agent));
+            }
+        System.out.println("started " + agents + " " + protocol
+                + " agents with " + mbeans + " mbeans each");
+        }
+
+    /**
+     * Creates one datasource per synthetic mbean of the agent
+     */
+    private List<Map<String, Object>> createConfigs(String device,
+            SyntheticAgent agent) throws JMException
+        {
+        String shape = _args.get("shape");
+        String[] shapes = { "simple", "composite", "tabular" };
+        List<Map<String, Object>> configs = new ArrayList<Map<String, Object>>();
+        for (int i = 0; i < agent.getMBeanCount(); i++)
+            {
+            String dsShape = "mixed".equals(shape) ? shapes[i % shapes.length]
+                    : shape;
+            String attribute;
+            String[] dps;
+            if ( "simple".equals(dsShape) )
+                {
+                attribute = "Counter";
+                dps = new String[] { "Counter" };
+                }
+            else if ( "tabular".equals(dsShape) )
+                {
+                attribute = "Pools";
+                dps = new String[Synthetic.POOLS];
+                for (int j = 0; j < dps.length; j++)
+                    {
+                    dps[j] = "pool" + j;
+                    }
+                }
+            else
+                {
+                attribute = "Usage";
+                dps = USAGE_KEYS;
+                }
+            configs.add(createConfig(device, agent, "ds" + i, SyntheticAgent
+                    .getName(i).toString(), attribute, dps));
+            }
+        return configs;
+        }
+
+    private Map<String, Object> createConfig(String device,
+            SyntheticAgent agent, String dsId, String objectName,
+            String attribute, String[] dps)
+        {
+        Map<String, Object> config = new HashMap<String, Object>();
+        config.put(ConfigAdapter.DEVICE, device);
+        config.put(ConfigAdapter.MANAGE_IP, "localhost");
+        config.put(ConfigAdapter.JMX_PORT, String.valueOf(agent.getPort()));
+        config.put(ConfigAdapter.JMX_PROTOCOL, agent.getProtocol());
+        config.put(ConfigAdapter.JMX_RAW_SERVICE, "");
+        config.put(ConfigAdapter.RMI_CONTEXT, "jmxrmi");
+        config.put(ConfigAdapter.AUTHENTICATE, Boolean.FALSE);
+        config.put(ConfigAdapter.USERNAME, "");
+        config.put(ConfigAdapter.PASSWORD, "");
+        config.put(ConfigAdapter.DATASOURCE_ID, dsId);
+        config.put(ConfigAdapter.OBJECT_NAME, objectName);
+        config.put(ConfigAdapter.ATTRIBUTE_NAME, attribute);
+        config.put("attributePath", "");
+        config.put(ConfigAdapter.OPERATION_NAME, "");
+        config.put(ConfigAdapter.OPERATION_PARAM_VALUES, "");
+        config.put(ConfigAdapter.OPERATION_PARAM_TYPES, "");
+        config.put(ConfigAdapter.EVENT_CLASS, "/Status/JMX");
+        config.put(ConfigAdapter.EVENT_KEY, "");
+        config.put(ConfigAdapter.COMPONENT_KEY, "");
+        config.put(ConfigAdapter.RRD_PATH, "Devices/" + device);
+        Object[] types = new Object[dps.length];
+        Arrays.fill(types, "GAUGE");
+        config.put(ConfigAdapter.DATA_POINT, dps);
+        config.put(ConfigAdapter.DATA_POINT_TYPES, types);
+        return config;
+        }
+
+    private void report(String label, long[] latencies, long elapsed)
+        {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        int collectorThreads = 0;
+        for (ThreadInfo info : threads.getThreadInfo(threads
+                .getAllThreadIds()))
+            {
+            if ( info != null && info.getThreadName().startsWith("zenjmx-") )
+                {
+                collectorThreads++;
+                }
+            }
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        long heap = memory.getHeapMemoryUsage().getUsed() / (1024 * 1024);
+        System.out.println(String.format("%s %.1f devices/s, latency p50 %d ms "
+                + "p99 %d ms max %d ms, result errors %d, request errors %d, "
+                + "threads %d (collector %d), heap %d MB", label,
+                latencies.length * 1000.0 / Math.max(elapsed, 1), percentile(
+                        latencies, 50), percentile(latencies, 99), percentile(
+                        latencies, 100), _resultErrors.get(), _requestErrors
+                        .get(), threads.getThreadCount(), collectorThreads,
+                heap));
+        }
+
+    private static long percentile(long[] sorted, int percentile)
+        {
+        if ( sorted.length == 0 )
+            {
+            return 0;
+            }
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(index, 0)];
+        }
+
+    private boolean isBinary()
+        {
+        return "binary".equals(_args.get("transport"));
+        }
+
+    private int getInt(String name)
+        {
+        return Integer.parseInt(_args.get(name));
+        }
+
+    /**
+     * Collects one device after another until the test ends
+     */
+    private class Client implements Runnable {
+
+        private final XmlRpcClient _client = new XmlRpcClient();
+
+        // client of the binary RPC server, null to use XML-RPC
+        private final BinaryRpcClient _binaryClient;
+
+        private Client(String url) throws Exception
+            {
+            XmlRpcClientConfigImpl config = new XmlRpcClientConfigImpl();
+            config.setServerURL(new URL(url));
+            _client.setConfig(config);
+            _binaryClient = isBinary() ? new BinaryRpcClient(new URL(url)
+                    .getHost(), getInt("binaryPort")) : null;
+            }
+
+        private Object[] collect(Object[] params) throws Exception
+            {
+            if ( _binaryClient != null )
+                {
+                return (Object[]) _binaryClient.call("zenjmx.collect",
+                        params);
+                }
+            return (Object[]) _client.execute("zenjmx.collect", params);
+            }
+
+        public void run()
+            {
+            while (_running)
+                {
+                int device = (_next.getAndIncrement() & Integer.MAX_VALUE)
+                        % _devices.size();
+                Object[] params = { _devices.get(device) };
+                long start = System.nanoTime();
+                try
+                    {
+                    Object[] results = collect(params);
+                    long latency = (System.nanoTime() - start) / 1000000;
+                    _interval.add(latency);
+                    _total.add(latency);
+                    for (Object result : results)
+                        {
+                        if ( ((Map<?, ?>) result).containsKey("summary") )
+                            {
+                            _resultErrors.incrementAndGet();
+                            }
+                        }
+                    }
+                catch (Exception e)
+                    {
+                    if ( _requestErrors.incrementAndGet() == 1 )
+                        {
+                        e.printStackTrace();
+                        }
+                    }
+                }
+            }
+    }
+
+    /**
+     * Latencies in ms recorded by the clients
+     */
+    private static class LatencyRecorder {
+
+        private long[] _samples = new long[1024];
+
+        private int _size;
+
+        synchronized void add(long latency)
+            {
+            if ( _size == _samples.length )
+                {
+                _samples = Arrays.copyOf(_samples, _size * 2);
+                }
+            _samples[_size++] = latency;
+            }
+
+        /**
+         * Returns the recorded latencies in ascending order and forgets
+         * them
+         */
+        synchronized long[] drain()
+            {
+            long[] sorted = Arrays.copyOf(_samples, _size);
+            Arrays.sort(sorted);
+            _size = 0;
+            return sorted;
+            }
+    }
+}
@@ -0,0 +1,93 @@
+///////////////////////////////////////////////////////////////////////////
+//
+//Copyright 2008 Zenoss Inc
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//    http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//
+///////////////////////////////////////////////////////////////////////////
+package com.zenoss.zenpacks.zenjmx.load;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Synthetic mbean whose attributes take a configurable time to read and
+ * fail at a configurable rate
+ */
+public class Synthetic implements SyntheticMXBean {
+
+    // number of rows in the pools table
+    public static final int POOLS = 8;
+
+    private final long _latency;
+
+    private final double _failureRate;
+
+    private final AtomicLong _counter = new AtomicLong();
+
+    private final Random _random = new Random();
+
+    /**
+     * @param latency
+     *            time in ms every attribute read takes
+     * @param failureRate
+     *            fraction of attribute reads that fail, 0 to 1
+     */
+    public Synthetic(long latency, double failureRate)
+        {
+        _latency = latency;
+        _failureRate = failureRate;
+        }
+
+    public long getCounter()
+        {
+        read();
+        return _counter.incrementAndGet();
+        }
+
+    public Usage getUsage()
+        {
+        read();
+        return new Usage(1000000L + _counter.incrementAndGet());
+        }
+
+    public Map<String, Long> getPools()
+        {
+        read();
+        long base = _counter.incrementAndGet();
+        Map<String, Long> pools = new HashMap<String, Long>();
+        for (int i = 0; i < POOLS; i++)
+            {
+            pools.put("pool" + i, base * (i + 1));
+            }
+        return pools;
+        }
+
+    private void read()
+        {
+        if ( _latency > 0 )
+            {
+            try
+                {
+                Thread.sleep(_latency);
+                }
+            catch (InterruptedException e)
+                {
+                Thread.currentThread().interrupt();
+                }
+            }
+        if ( _failureRate > 0 && _random.nextDouble() < _failureRate )
+            {
+            throw new IllegalStateException("synthetic failure");
+            }
+        }
+}
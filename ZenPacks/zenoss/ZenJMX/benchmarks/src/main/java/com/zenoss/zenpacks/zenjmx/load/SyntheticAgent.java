@@ -0,0 +1,134 @@
+///////////////////////////////////////////////////////////////////////////
+//
+//Copyright 2008 Zenoss Inc
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//    http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//
+///////////////////////////////////////////////////////////////////////////
+package com.zenoss.zenpacks.zenjmx.load;
+
+import java.io.IOException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+import javax.management.remote.JMXConnectorServer;
+import javax.management.remote.JMXConnectorServerFactory;
+import javax.management.remote.JMXServiceURL;
+
+/**
+ * An in-process JMX Agent: an mbean server of its own holding synthetic
+ * mbeans, reachable through an RMI or a JMXMP connector server. JMXMP
+ * needs jmxremote_optional.jar on the classpath.
+ */
+public class SyntheticAgent {
+
+    public static final String RMI = "RMI";
+
+    public static final String JMXMP = "JMXMP";
+
+    private final String _protocol;
+
+    private final int _port;
+
+    private final int _mbeans;
+
+    private final long _latency;
+
+    private final double _failureRate;
+
+    private Registry _registry;
+
+    private JMXConnectorServer _server;
+
+    /**
+     * @param protocol
+     *            RMI or JMXMP
+     * @param port
+     *            the port of the RMI registry or of the JMXMP server
+     * @param mbeans
+     *            the number of synthetic mbeans to register
+     * @param latency
+     *            time in ms every attribute read takes
+     * @param failureRate
+     *            fraction of attribute reads that fail, 0 to 1
+     */
+    public SyntheticAgent(String protocol, int port, int mbeans, long latency,
+            double failureRate)
+        {
+        _protocol = protocol;
+        _port = port;
+        _mbeans = mbeans;
+        _latency = latency;
+        _failureRate = failureRate;
+        }
+
+    /**
+     * Returns the name of the i-th synthetic mbean
+     */
+    public static ObjectName getName(int i) throws JMException
+        {
+        return new ObjectName("com.zenoss.load:type=Synthetic,id=" + i);
+        }
+
+    public void start() throws IOException, JMException
+        {
+        MBeanServer mbs = MBeanServerFactory.newMBeanServer();
+        for (int i = 0; i < _mbeans; i++)
+            {
+            mbs.registerMBean(new Synthetic(_latency, _failureRate), getName(i));
+            }
+        JMXServiceURL url;
+        if ( JMXMP.equals(_protocol) )
+            {
+            url = new JMXServiceURL("service:jmx:jmxmp://localhost:" + _port);
+            }
+        else
+            {
+            _registry = LocateRegistry.createRegistry(_port);
+            url = new JMXServiceURL("service:jmx:rmi:///jndi/rmi://localhost:"
+                    + _port + "/jmxrmi");
+            }
+        _server = JMXConnectorServerFactory.newJMXConnectorServer(url, null,
+                mbs);
+        _server.start();
+        }
+
+    public void stop() throws IOException
+        {
+        if ( _server != null )
+            {
+            _server.stop();
+            }
+        if ( _registry != null )
+            {
+            UnicastRemoteObject.unexportObject(_registry, true);
+            }
+        }
+
+    public String getProtocol()
+        {
+        return _protocol;
+        }
+
+    public int getPort()
+        {
+        return _port;
+        }
+
+    public int getMBeanCount()
+        {
+        return _mbeans;
+        }
+}
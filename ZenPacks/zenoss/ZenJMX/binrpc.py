@@ -0,0 +1,291 @@
+#! /usr/bin/env python
+# -*- coding: utf-8 -*-
+# ##########################################################################
+#
+# This program is part of Zenoss Core, an open source monitoring platform.
+# Copyright (C) 2008, 2009 Zenoss Inc.
+#
+# This program is free software; you can redistribute it and/or modify it
+# under the terms of the GNU General Public License version 2 or (at your
+# option) any later version as published by the Free Software Foundation.
+#
+# For complete information please visit: http://www.zenoss.com/oss/
+#
+# ##########################################################################
+
+__doc__ = """Reference codec and client of the java process' binary RPC
+
+The java process serves the same methods as its XML-RPC server (e.g.
+zenjmx.collect) on --binaryPort and --unixSocket with a compact encoding,
+see BinaryCodec.java and BinaryRpcServer.java.
+
+Every value starts with a one byte tag.  Lengths, ints and longs are
+varints, ints and longs zigzag encoded; doubles are 8 bytes big endian.
+The first occurrence of a string in a message is sent in UTF-8 and
+numbered in order of appearance; later occurrences send 'R' and that
+number.
+
+Messages are framed by a 4 byte big endian length of the rest of the
+frame and a 4 byte request id.  A request's payload is an array holding
+the method name and its parameters; a response's payload is a status
+byte, 0 for a result and 1 for a fault message, and the encoded value.
+"""
+import socket
+import struct
+
+try:
+    unicode
+except NameError:
+    # python 3
+    unicode = str
+    long = int
+
+NIL = b'N'
+TRUE = b'T'
+FALSE = b'F'
+INT = b'I'
+LONG = b'L'
+DOUBLE = b'D'
+STRING = b'S'
+STRING_REF = b'R'
+BYTES = b'B'
+ARRAY = b'A'
+STRUCT = b'M'
+
+OK = 0
+FAULT = 1
+
+MAX_FRAME = 64 * 1024 * 1024
+
+# strings remembered by the encoder of a message, as in BinaryCodec.java
+MAX_STRINGS = 65536
+
+
+class Fault(Exception):
+    """An error reported by the java process"""
+
+
+def _varint(n):
+    out = bytearray()
+    while n & ~0x7F:
+        out.append((n & 0x7F) | 0x80)
+        n >>= 7
+    out.append(n)
+    return bytes(out)
+
+
+def _zigzag(n):
+    # python ints are unbounded, so the sign is spread explicitly
+    if n < 0:
+        return (-n << 1) - 1
+    return n << 1
+
+
+def _unzigzag(n):
+    return (n >> 1) ^ -(n & 1)
+
+
+class _Encoder(object):
+
+    def __init__(self):
+        self.out = []
+        self.strings = {}
+        self.next_string = 0
+
+    def write(self, value):
+        out = self.out
+        if value is None:
+            out.append(NIL)
+        elif value is True:
+            out.append(TRUE)
+        elif value is False:
+            out.append(FALSE)
+        elif isinstance(value, (int, long)):
+            if -2 ** 31 <= value < 2 ** 31:
+                out.append(INT)
+            else:
+                out.append(LONG)
+            out.append(_varint(_zigzag(value)))
+        elif isinstance(value, float):
+            out.append(DOUBLE)
+            out.append(struct.pack('>d', value))
+        elif isinstance(value, (str, unicode)):
+            self.write_string(value)
+        elif isinstance(value, bytearray) or (
+                bytes is not str and isinstance(value, bytes)):
+            out.append(BYTES)
+            out.append(_varint(len(value)))
+            out.append(bytes(value))
+        elif isinstance(value, dict):
+            out.append(STRUCT)
+            out.append(_varint(len(value)))
+            for key, item in value.items():
+                self.write_string(key)
+                self.write(item)
+        elif isinstance(value, (list, tuple)):
+            out.append(ARRAY)
+            out.append(_varint(len(value)))
+            for item in value:
+                self.write(item)
+        else:
+            raise TypeError("cannot encode a %s" % type(value).__name__)
+
+    def write_string(self, s):
+        if not isinstance(s, (str, unicode)):
+            s = str(s)
+        ref = self.strings.get(s)
+        if ref is not None:
+            self.out.append(STRING_REF)
+            self.out.append(_varint(ref))
+            return
+        if len(self.strings) < MAX_STRINGS:
+            self.strings[s] = self.next_string
+        self.next_string += 1
+        if isinstance(s, unicode):
+            data = s.encode('utf-8')
+        else:
+            data = s
+        self.out.append(STRING)
+        self.out.append(_varint(len(data)))
+        self.out.append(data)
+
+
+class _Decoder(object):
+
+    def __init__(self, data):
+        self.data = bytearray(data)
+        self.pos = 0
+        self.strings = []
+
+    def byte(self):
+        if self.pos >= len(self.data):
+            raise ValueError("truncated value")
+        b = self.data[self.pos]
+        self.pos += 1
+        return b
+
+    def varint(self):
+        n = 0
+        shift = 0
+        while shift < 64:
+            b = self.byte()
+            n |= (b & 0x7F) << shift
+            if not b & 0x80:
+                return n
+            shift += 7
+        raise ValueError("malformed varint")
+
+    def take(self, length):
+        if length > len(self.data) - self.pos:
+            raise ValueError("truncated value")
+        chunk = bytes(self.data[self.pos:self.pos + length])
+        self.pos += length
+        return chunk
+
+    def read(self):
+        tag = bytes(bytearray([self.byte()]))
+        if tag == NIL:
+            return None
+        if tag == TRUE:
+            return True
+        if tag == FALSE:
+            return False
+        if tag in (INT, LONG):
+            return _unzigzag(self.varint())
+        if tag == DOUBLE:
+            return struct.unpack('>d', self.take(8))[0]
+        if tag in (STRING, STRING_REF):
+            return self.read_string(tag)
+        if tag == BYTES:
+            return self.take(self.varint())
+        if tag == ARRAY:
+            return [self.read() for i in range(self.varint())]
+        if tag == STRUCT:
+            result = {}
+            for i in range(self.varint()):
+                key = self.read_string(bytes(bytearray([self.byte()])))
+                result[key] = self.read()
+            return result
+        raise ValueError("unknown tag %r at offset %d" % (tag, self.pos - 1))
+
+    def read_string(self, tag):
+        if tag == STRING_REF:
+            ref = self.varint()
+            if ref >= len(self.strings):
+                raise ValueError("unknown string reference %d" % ref)
+            return self.strings[ref]
+        if tag != STRING:
+            raise ValueError("expected a string at offset %d" % (self.pos - 1))
+        s = self.take(self.varint()).decode('utf-8')
+        self.strings.append(s)
+        return s
+
+
+def encode(value):
+    """Encodes a value as BinaryCodec.java does"""
+    encoder = _Encoder()
+    encoder.write(value)
+    return b''.join(encoder.out)
+
+
+def decode(data):
+    """Decodes a value encoded by BinaryCodec.java"""
+    decoder = _Decoder(data)
+    value = decoder.read()
+    if decoder.pos != len(decoder.data):
+        raise ValueError("%d bytes after the encoded value" %
+                         (len(decoder.data) - decoder.pos))
+    return value
+
+
+class BinRpcClient(object):
+    """Blocking client of the java process' binary RPC server
+
+    Calls are sent one at a time; use a client per thread.
+    """
+
+    def __init__(self, host, port=None, timeout=None):
+        """Connects to host and port, or to the Unix domain socket file
+        host if port is None"""
+        if port is None:
+            self.sock = socket.socket(socket.AF_UNIX, socket.SOCK_STREAM)
+            self.sock.settimeout(timeout)
+            self.sock.connect(host)
+        else:
+            self.sock = socket.create_connection((host, port), timeout)
+            self.sock.setsockopt(socket.IPPROTO_TCP, socket.TCP_NODELAY, 1)
+        self.last_id = 0
+
+    def call(self, method, *params):
+        """Calls a method, e.g. 'zenjmx.collect', and returns its result
+
+        Raises Fault if the java process reported an error.
+        """
+        self.last_id = (self.last_id + 1) & 0x7FFFFFFF
+        payload = encode([method] + list(params))
+        self.sock.sendall(struct.pack('>ii', len(payload) + 4, self.last_id)
+                          + payload)
+        length, request_id = struct.unpack('>ii', self._recv(8))
+        if length < 5 or length > MAX_FRAME:
+            raise IOError("bad frame length %d" % length)
+        if request_id != self.last_id:
+            raise IOError("response %d doesn't match request %d" %
+                          (request_id, self.last_id))
+        body = self._recv(length - 4)
+        result = decode(body[1:])
+        if bytearray(body[:1])[0] != OK:
+            raise Fault(result)
+        return result
+
+    def _recv(self, length):
+        chunks = []
+        while length:
+            chunk = self.sock.recv(min(length, 65536))
+            if not chunk:
+                raise IOError("connection closed")
+            chunks.append(chunk)
+            length -= len(chunk)
+        return b''.join(chunks)
+
+    def close(self):
+        self.sock.close()
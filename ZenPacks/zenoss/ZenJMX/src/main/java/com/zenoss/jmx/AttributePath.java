@@ -0,0 +1,296 @@
+///////////////////////////////////////////////////////////////////////////
+//
+//Copyright 2008 Zenoss Inc
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//    http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//
+///////////////////////////////////////////////////////////////////////////
+package com.zenoss.jmx;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * <p>
+ * A path through TabularData and CompositeData that has been parsed once so
+ * that it can be evaluated many times without any string handling.
+ * </p>
+ *
+ * <p>
+ * Paths use the syntax described in ValueExtractor.getDataValue(). Compiled
+ * paths are immutable and cached by their text, so compile() is cheap for
+ * the attribute paths and datapoint keys that are collected every cycle.
+ * </p>
+ *
+ * @see ValueExtractor#getDataValue(Object, String)
+ */
+public final class AttributePath {
+
+    // the number of distinct paths kept by the cache
+    private static final int MAX_CACHED = 10000;
+
+    // compiled paths by their text
+    private static final ConcurrentHashMap<String, AttributePath> _cache = new ConcurrentHashMap<String, AttributePath>();
+
+    // logger
+    private static final Log _logger = LogFactory.getLog(AttributePath.class);
+
+    // the path as given
+    private final String _path;
+
+    // the parsed path elements
+    private final Step[] _steps;
+
+    private AttributePath(String path, Step[] steps)
+        {
+        _path = path;
+        _steps = steps;
+        }
+
+    /**
+     * Returns the compiled form of the path, parsing it if it has not been
+     * seen before
+     *
+     * @param path
+     *            dot separated string that represents a path through the data
+     */
+    public static AttributePath compile(String path)
+        {
+        AttributePath compiled = _cache.get(path);
+        if ( compiled != null )
+            {
+            return compiled;
+            }
+        List<String> elements = ValueExtractor.split(path);
+        Step[] steps = new Step[elements.size()];
+        int i = 0;
+        for (String element : elements)
+            {
+            steps[i++] = new Step(element);
+            }
+        compiled = new AttributePath(path, steps);
+        if ( _cache.size() < MAX_CACHED )
+            {
+            AttributePath existing = _cache.putIfAbsent(path, compiled);
+            if ( existing != null )
+                {
+                compiled = existing;
+                }
+            }
+        if ( _logger.isDebugEnabled() )
+            {
+            _logger.debug("compiled path " + path + " to " + elements);
+            }
+        return compiled;
+        }
+
+    /**
+     * Returns the path as given to compile()
+     */
+    public String getPath()
+        {
+        return _path;
+        }
+
+    /**
+     * Returns the parsed path elements, shared and not to be modified
+     */
+    Step[] getSteps()
+        {
+        return _steps;
+        }
+
+    /**
+     * Traverses the data along this path
+     *
+     * @param obj
+     *            TabularData or CompositeData
+     * @return Object the value at the end of the path
+     * @throws JmxException
+     *             if a path element doesn't exist
+     * @see ValueExtractor#getDataValue(Object, String)
+     */
+    public Object evaluate(final Object obj) throws JmxException
+        {
+        if ( !(obj instanceof TabularData) && !(obj instanceof CompositeData) )
+            {
+            throw new IllegalArgumentException("Cannot process object of type "
+                    + obj.getClass().getName());
+            }
+        Object currentObj = obj;
+        try
+            {
+            for (int i = 0; i < _steps.length; i++)
+                {
+                Step step = _steps[i];
+                if ( currentObj instanceof TabularData )
+                    {
+                    CompositeData cData = step.getRow((TabularData) currentObj);
+                    Collection<?> row = cData.values();
+
+                    // look ahead for a column, explicit or required by the
+                    // width of the table
+                    Step next = i + 1 < _steps.length ? _steps[i + 1] : null;
+                    if ( next != null && (next._column || row.size() > 2) )
+                        {
+                        currentObj = cData.get(next._key);
+                        i++;
+                        }
+                    else if ( row.size() == 2 )
+                        {
+                        currentObj = step.getRowValue(row);
+                        }
+                    else
+                        {
+                        currentObj = cData;
+                        }
+                    }
+                else if ( currentObj instanceof CompositeData )
+                    {
+                    currentObj = ((CompositeData) currentObj).get(step._element);
+                    }
+                else
+                    {
+                    String remainingPath = remainingPath(i);
+                    _logger.warn("getDataValue: we still have a path but the "
+                            + "object isn't composite or tabluar");
+                    _logger.warn("getDataValue: remaining path is "
+                            + remainingPath);
+                    throw new JmxException("we still have a path but the "
+                            + "object isn't composite or tabluar, remaining "
+                            + "path is " + remainingPath);
+                    }
+                }
+            }
+        catch (Exception e)
+            {
+            _logger.warn("could not get object for path " + _path, e);
+            throw new JmxException("could not get object for path " + _path
+                    + "; " + e.getMessage(), e);
+            }
+        return currentObj;
+        }
+
+    private String remainingPath(int from)
+        {
+        StringBuilder remaining = new StringBuilder(_steps[from]._element);
+        for (int i = from + 1; i < _steps.length; i++)
+            {
+            remaining.append('.').append(_steps[i]._element);
+            }
+        return remaining.toString();
+        }
+
+    public String toString()
+        {
+        return _path;
+        }
+
+    /**
+     * A single path element along with every form the evaluation may need:
+     * the composite key, the table index and the column name.
+     */
+    static final class Step {
+
+        // the element as written in the path
+        final String _element;
+
+        // true if the element is a {column}
+        final boolean _column;
+
+        // the column name, the element without curly brackets if any
+        final String _key;
+
+        // the table index, the element without brackets split on commas
+        final String[] _index;
+
+        Step(String element)
+            {
+            _element = element;
+            _column = element.startsWith("{") && element.endsWith("}");
+            _key = _column ? element.substring(1, element.length() - 1)
+                    : element;
+            String index = element;
+            if ( element.startsWith("[") && element.endsWith("]") )
+                {
+                index = element.substring(1, element.length() - 1);
+                }
+            _index = index.split(",");
+            }
+
+        /**
+         * Returns the table row for this element's index
+         */
+        CompositeData getRow(TabularData tData) throws JmxException
+            {
+            CompositeData composite = (CompositeData) tData.get(_index);
+            if ( composite == null )
+                {
+                throw new JmxException(Arrays.toString(_index)
+                        + " is not an existing Index for this tabular data ");
+                }
+            return composite;
+            }
+
+        /**
+         * Returns the value of a two column row that is not part of this
+         * element's index
+         */
+        Object getRowValue(Collection<?> row) throws JmxException
+            {
+            for (String key : _index)
+                {
+                if ( !row.contains(key) )
+                    {
+                    _logger.warn(key
+                            + " not found in composite data row for tabular data");
+                    throw new JmxException(key
+                            + " not found in composite data row for tabular data");
+                    }
+                }
+
+            // find the last value that isn't a part of the index
+            Object result = null;
+            for (Object value : row)
+                {
+                if ( !contains(_index, value) )
+                    {
+                    result = value;
+                    }
+                }
+            return result;
+            }
+
+        private static boolean contains(String[] index, Object value)
+            {
+            for (String key : index)
+                {
+                if ( key.equals(value) )
+                    {
+                    return true;
+                    }
+                }
+            return false;
+            }
+
+        public String toString()
+            {
+            return _element;
+            }
+    }
+}
@@ -0,0 +1,350 @@
+///////////////////////////////////////////////////////////////////////////
+//
+//Copyright 2008 Zenoss Inc
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//    http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//
+///////////////////////////////////////////////////////////////////////////
+package com.zenoss.jmx;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * <p>
+ * A set of attribute paths merged into a prefix tree so that all of them can
+ * be read from one TabularData or CompositeData value in a single traversal.
+ * Paths sharing a prefix, e.g. used, committed and max of HeapMemoryUsage,
+ * look up the shared part once.
+ * </p>
+ *
+ * <p>
+ * Each path evaluates to the same value it would evaluate to on its own with
+ * AttributePath. A path that cannot be followed is left out of the result
+ * without affecting the other paths. Trees are immutable and cached by their
+ * list of paths.
+ * </p>
+ *
+ * @see AttributePath
+ */
+public final class AttributePathTree {
+
+    // the number of distinct path lists kept by the cache
+    private static final int MAX_CACHED = 10000;
+
+    // compiled trees by their paths
+    private static final ConcurrentHashMap<List<String>, AttributePathTree> _cache = new ConcurrentHashMap<List<String>, AttributePathTree>();
+
+    // logger
+    private static final Log _logger = LogFactory
+            .getLog(AttributePathTree.class);
+
+    // the first steps of the paths
+    private final Node[] _roots;
+
+    // the number of distinct paths
+    private final int _size;
+
+    private AttributePathTree(Node[] roots, int size)
+        {
+        _roots = roots;
+        _size = size;
+        }
+
+    /**
+     * Returns the tree of the paths provided, building it if the list has not
+     * been seen before
+     *
+     * @param paths
+     *            dot separated strings that represent paths through the data
+     */
+    public static AttributePathTree compile(List<String> paths)
+        {
+        AttributePathTree tree = _cache.get(paths);
+        if ( tree != null )
+            {
+            return tree;
+            }
+        Builder root = new Builder(null);
+        int size = 0;
+        for (String path : paths)
+            {
+            Builder node = root;
+            for (AttributePath.Step step : AttributePath.compile(path)
+                    .getSteps())
+                {
+                node = node.child(step);
+                }
+            if ( node._path == null )
+                {
+                node._path = path;
+                size++;
+                }
+            }
+        tree = new AttributePathTree(root.buildChildren(), size);
+        if ( _cache.size() < MAX_CACHED )
+            {
+            AttributePathTree existing = _cache.putIfAbsent(
+                    new ArrayList<String>(paths), tree);
+            if ( existing != null )
+                {
+                tree = existing;
+                }
+            }
+        return tree;
+        }
+
+    /**
+     * Traverses the data once and returns the value at the end of every path
+     * that could be followed
+     *
+     * @param obj
+     *            TabularData or CompositeData
+     * @return a Map<String, Object> of path to value
+     */
+    public Map<String, Object> evaluate(final Object obj)
+        {
+        if ( !(obj instanceof TabularData) && !(obj instanceof CompositeData) )
+            {
+            throw new IllegalArgumentException("Cannot process object of type "
+                    + obj.getClass().getName());
+            }
+        Map<String, Object> values = new HashMap<String, Object>(
+                (int) (_size / 0.75f) + 1);
+        for (Node node : _roots)
+            {
+            visit(node, obj, values);
+            }
+        return values;
+        }
+
+    /**
+     * Applies the node's step to the value and continues with its children
+     */
+    private static void visit(Node node, Object current,
+            Map<String, Object> values)
+        {
+        try
+            {
+            if ( current instanceof TabularData )
+                {
+                visitRow(node, node._step.getRow((TabularData) current), values);
+                }
+            else if ( current instanceof CompositeData )
+                {
+                resolved(node, ((CompositeData) current)
+                        .get(node._step._element), values);
+                }
+            else
+                {
+                throw new JmxException("we still have a path but the "
+                        + "object isn't composite or tabluar, remaining "
+                        + "path starts at " + node._step);
+                }
+            }
+        catch (Exception e)
+            {
+            failed(node, e);
+            }
+        }
+
+    /**
+     * Continues with the children of a table index. As in AttributePath a
+     * child is read as a column of the row if it is an explicit column or
+     * the row has more than two columns; otherwise it applies to the row's
+     * value, or to the row itself if the row has a single column.
+     */
+    private static void visitRow(Node node, CompositeData row,
+            Map<String, Object> values)
+        {
+        Collection<?> columns = row.values();
+
+        // the value the index stands for when not followed by a column,
+        // looked up once for every path that needs it
+        Object value = null;
+        Exception error = null;
+        if ( node._path != null || hasRowValueChild(node, columns) )
+            {
+            try
+                {
+                value = columns.size() == 2 ? node._step.getRowValue(columns)
+                        : row;
+                }
+            catch (Exception e)
+                {
+                error = e;
+                }
+            }
+        if ( node._path != null )
+            {
+            if ( error == null )
+                {
+                values.put(node._path, value);
+                }
+            else
+                {
+                failed(node._path, error);
+                }
+            }
+        for (Node child : node._children)
+            {
+            if ( isColumn(child, columns) )
+                {
+                try
+                    {
+                    resolved(child, row.get(child._step._key), values);
+                    }
+                catch (Exception e)
+                    {
+                    failed(child, e);
+                    }
+                }
+            else if ( error == null )
+                {
+                visit(child, value, values);
+                }
+            else
+                {
+                failed(child, error);
+                }
+            }
+        }
+
+    private static boolean isColumn(Node child, Collection<?> columns)
+        {
+        return child._step._column || columns.size() > 2;
+        }
+
+    private static boolean hasRowValueChild(Node node, Collection<?> columns)
+        {
+        for (Node child : node._children)
+            {
+            if ( !isColumn(child, columns) )
+                {
+                return true;
+                }
+            }
+        return false;
+        }
+
+    /**
+     * Records the value of a path ending at the node and continues with its
+     * children
+     */
+    private static void resolved(Node node, Object value,
+            Map<String, Object> values)
+        {
+        if ( node._path != null )
+            {
+            values.put(node._path, value);
+            }
+        for (Node child : node._children)
+            {
+            visit(child, value, values);
+            }
+        }
+
+    /**
+     * Reports every path ending at or below the node as not found
+     */
+    private static void failed(Node node, Exception e)
+        {
+        if ( node._path != null )
+            {
+            failed(node._path, e);
+            }
+        for (Node child : node._children)
+            {
+            failed(child, e);
+            }
+        }
+
+    private static void failed(String path, Exception e)
+        {
+        _logger.warn("no value found for datapoint " + path
+                + "; could not get object for path " + path + "; "
+                + e.getMessage());
+        if ( _logger.isDebugEnabled() )
+            {
+            _logger.debug("could not get object for path " + path, e);
+            }
+        }
+
+    /**
+     * A step shared by one or more paths
+     */
+    private static final class Node {
+
+        private final AttributePath.Step _step;
+
+        // the path ending at this step, null if none does
+        private final String _path;
+
+        private final Node[] _children;
+
+        private Node(AttributePath.Step step, String path, Node[] children)
+            {
+            _step = step;
+            _path = path;
+            _children = children;
+            }
+    }
+
+    /**
+     * A mutable node used while merging the paths
+     */
+    private static final class Builder {
+
+        private final AttributePath.Step _step;
+
+        private String _path;
+
+        private final Map<String, Builder> _children = new LinkedHashMap<String, Builder>();
+
+        private Builder(AttributePath.Step step)
+            {
+            _step = step;
+            }
+
+        private Builder child(AttributePath.Step step)
+            {
+            Builder child = _children.get(step._element);
+            if ( child == null )
+                {
+                child = new Builder(step);
+                _children.put(step._element, child);
+                }
+            return child;
+            }
+
+        private Node[] buildChildren()
+            {
+            Node[] children = new Node[_children.size()];
+            int i = 0;
+            for (Builder child : _children.values())
+                {
+                children[i++] = new Node(child._step, child._path, child
+                        .buildChildren());
+                }
+            return children;
+            }
+    }
+}
@@ -0,0 +1,193 @@
+///////////////////////////////////////////////////////////////////////////
+//
+//Copyright 2008 Zenoss Inc
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//    http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//
+///////////////////////////////////////////////////////////////////////////
+package com.zenoss.jmx;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * <p>
+ * Keeps track of JMX Agents that can't be connected to so that callers fail
+ * fast instead of waiting for the connect timeout again and again.
+ * </p>
+ *
+ * <p>
+ * A failed connect opens the circuit of its endpoint. While the circuit is
+ * open check() throws a CircuitOpenException. Once the backoff has passed a
+ * single caller is let through to probe the endpoint; if the probe fails too
+ * the backoff is doubled, up to a maximum, and the circuit stays open. A
+ * successful connect closes the circuit.
+ * </p>
+ *
+ * <p>
+ * The circuit of an endpoint that is no longer connected to is dropped once
+ * its backoff has been over for the maximum backoff without a probe.
+ * </p>
+ */
+public class CircuitBreaker {
+
+    // time in ms the circuit stays open after the first failure
+    private final long _initialBackoff;
+
+    // upper bound of the backoff in ms
+    private final long _maxBackoff;
+
+    // open circuits keyed by endpoint
+    private final Map<String, Circuit> _circuits = new HashMap<String, Circuit>();
+
+    // time in ms after which the circuits are next looked through for
+    // endpoints that are no longer connected to
+    private long _nextPrune;
+
+    // logger
+    private static final Log _logger = LogFactory.getLog(CircuitBreaker.class);
+
+    /**
+     * Creates a CircuitBreaker
+     *
+     * @param initialBackoff
+     *            time in ms an endpoint is left alone after its first failure
+     * @param maxBackoff
+     *            the longest time in ms an endpoint is left alone
+     */
+    public CircuitBreaker(long initialBackoff, long maxBackoff)
+        {
+        _initialBackoff = initialBackoff;
+        _maxBackoff = Math.max(initialBackoff, maxBackoff);
+        }
+
+    /**
+     * Returns if a connection to the endpoint may be attempted. A caller
+     * that is let through to probe an open circuit must report the outcome
+     * with succeeded() or failed().
+     *
+     * @throws CircuitOpenException
+     *             if the circuit of the endpoint is open
+     */
+    public synchronized void check(String endpoint) throws CircuitOpenException
+        {
+        Circuit circuit = _circuits.get(endpoint);
+        if ( circuit == null )
+            {
+            return;
+            }
+        long now = System.currentTimeMillis();
+        // a probe that never reported back doesn't block the endpoint
+        boolean probing = circuit._probing
+                && now < circuit._retryTime + _maxBackoff;
+        if ( !probing && now >= circuit._retryTime )
+            {
+            circuit._probing = true;
+            return;
+            }
+        long wait = Math.max(circuit._retryTime - now, 0) / 1000;
+        throw new CircuitOpenException("not connecting to " + endpoint
+                + " after " + circuit._failures
+                + " failed attempts; next attempt in " + wait + " s",
+                circuit._lastFailure);
+        }
+
+    /**
+     * Closes the circuit of the endpoint
+     */
+    public synchronized void succeeded(String endpoint)
+        {
+        Circuit circuit = _circuits.remove(endpoint);
+        if ( circuit != null )
+            {
+            _logger.info("connected to " + endpoint + " after "
+                    + circuit._failures + " failed attempts");
+            }
+        }
+
+    /**
+     * Opens the circuit of the endpoint, or keeps it open for longer
+     */
+    public synchronized void failed(String endpoint, Throwable cause)
+        {
+        long now = System.currentTimeMillis();
+        if ( now >= _nextPrune )
+            {
+            prune(now);
+            _nextPrune = now + _maxBackoff;
+            }
+        Circuit circuit = _circuits.get(endpoint);
+        if ( circuit == null )
+            {
+            circuit = new Circuit();
+            _circuits.put(endpoint, circuit);
+            circuit._backoff = _initialBackoff;
+            }
+        else
+            {
+            circuit._backoff = Math.min(circuit._backoff * 2, _maxBackoff);
+            }
+        circuit._failures++;
+        circuit._probing = false;
+        circuit._lastFailure = cause;
+        circuit._retryTime = now + circuit._backoff;
+        if ( _logger.isDebugEnabled() )
+            {
+            _logger.debug("not connecting to " + endpoint + " for "
+                    + circuit._backoff + " ms");
+            }
+        }
+
+    /**
+     * Drops the circuits whose backoff has been over for the maximum backoff
+     * without a probe reporting back. A probe reports back by updating or
+     * closing its circuit, and one that hasn't by then is ignored by check()
+     * as well.
+     */
+    private void prune(long now)
+        {
+        Iterator<Circuit> iter = _circuits.values().iterator();
+        while ( iter.hasNext() )
+            {
+            if ( now >= iter.next()._retryTime + _maxBackoff )
+                {
+                iter.remove();
+                }
+            }
+        }
+
+    /**
+     * Returns true if the circuit of the endpoint is open
+     */
+    public synchronized boolean isOpen(String endpoint)
+        {
+        return _circuits.containsKey(endpoint);
+        }
+
+    /**
+     * The state of an open circuit
+     */
+    private static class Circuit {
+
+        private int _failures;
+
+        private long _backoff;
+
+        private long _retryTime;
+
+        private boolean _probing;
+
+        private Throwable _lastFailure;
+    }
+}
@@ -0,0 +1,36 @@
+///////////////////////////////////////////////////////////////////////////
+//
+//Copyright 2008 Zenoss Inc
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//    http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//
+///////////////////////////////////////////////////////////////////////////
+package com.zenoss.jmx;
+
+/**
+ * <p>
+ * Thrown instead of connecting to a JMX Agent whose recent connection
+ * attempts failed. The cause is the failure of the last attempt.
+ * </p>
+ *
+ * @see CircuitBreaker
+ */
+public class CircuitOpenException extends JmxException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Creates a CircuitOpenException with a message and the last failure
+     */
+    public CircuitOpenException(String message, Throwable lastFailure)
+        {
+        super(message, lastFailure);
+        }
+}
@@ -15,18 +15,26 @@
 package com.zenoss.jmx;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.lang.management.ManagementFactory;
 import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.InstanceNotFoundException;
 import javax.management.MBeanServerConnection;
 import javax.management.MalformedObjectNameException;
+import javax.management.Notification;
+import javax.management.NotificationListener;
 import javax.management.ObjectName;
 import javax.management.openmbean.CompositeDataSupport;
-import javax.management.openmbean.InvalidKeyException;
 import javax.management.openmbean.TabularData;
+import javax.management.remote.JMXConnectionNotification;
 import javax.management.remote.JMXConnector;
 import javax.management.remote.JMXConnectorFactory;
 import javax.management.remote.JMXServiceURL;
@@ -68,7 +76,31 @@ public class JmxClient {
     private MBeanServerConnection _server;
 
     // flag used to track if we are connected to the server or not
-    private boolean _connected;
+    private volatile boolean _connected;
+
+    // flag set when the underlying connection is known to be broken
+    private volatile boolean _failed;
+
+    // flag used to turn the mbean registration cache on or off
+    private boolean _registrationCacheEnabled;
+
+    // names of the mbeans registered in the JMX Agent, null if not cached
+    private volatile MBeanRegistrationCache _registrations;
+
+    // time in ms to wait for a connection, 0 waits forever
+    private int _connectTimeout;
+
+    // time in ms to wait for a reply from the agent, 0 waits forever
+    private int _readTimeout;
+
+    // environment property naming the socket factory of JNDI RMI lookups
+    private static final String JNDI_SOCKET_FACTORY = "com.sun.jndi.rmi.factory.socket";
+
+    // environment property limiting how long a notification poll waits
+    private static final String NOTIF_FETCH_TIMEOUT = "jmx.remote.x.notification.fetch.timeout";
+
+    // environment property limiting how long a JMXMP request waits
+    private static final String JMXMP_REQUEST_TIMEOUT = "jmx.remote.x.request.waiting.timeout";
     
     // logger
     private static final Log _logger = LogFactory.getLog(JmxClient.class);
@@ -103,6 +135,7 @@ public class JmxClient {
             {
             throw new IllegalArgumentException(e);
             }
+        _registrationCacheEnabled = true;
         }
 
     /**
@@ -113,6 +146,62 @@ public class JmxClient {
         _creds = creds;
         }
 
+    /**
+     * Turns the local cache of registered mbeans on or off. When on, the
+     * registration check done before every query and invoke is answered
+     * from a copy of the agent's mbean names that is kept current with
+     * MBeanServerDelegate notifications instead of an isRegistered request.
+     * Must be called before connect().
+     */
+    public void setRegistrationCacheEnabled(boolean enabled)
+        {
+        _registrationCacheEnabled = enabled;
+        }
+
+    /**
+     * Sets the time in ms to wait for a connection to the agent, 0 to wait
+     * forever. Must be called before connect().
+     */
+    public void setConnectTimeout(int connectTimeout)
+        {
+        _connectTimeout = connectTimeout;
+        }
+
+    /**
+     * Sets the time in ms to wait for a reply from the agent, 0 to wait
+     * forever. Must be called before connect().
+     */
+    public void setReadTimeout(int readTimeout)
+        {
+        _readTimeout = readTimeout;
+        }
+
+    /**
+     * Returns the url of the JMX Agent this client talks to, null for the
+     * local Platform MBeanServer
+     */
+    public String getUrl()
+        {
+        return _url == null ? null : _url.toString();
+        }
+
+    /**
+     * Returns true if the client is connected and the connection has not
+     * been reported as failed or closed by the connector
+     */
+    public boolean isConnected()
+        {
+        return _connected && !_failed;
+        }
+
+    /**
+     * Returns the connection to the JMX Agent, null if not connected
+     */
+    public MBeanServerConnection getConnection()
+        {
+        return _server;
+        }
+
     /**
      * Connects to the JMX Agent
      * 
@@ -133,8 +222,11 @@ public class JmxClient {
             // honor the authentication credentials
             Map<String,Object> env = new HashMap<String,Object>();
             env.put(JMXConnector.CREDENTIALS, _creds);
+            addTimeouts(env);
 
-            _connector = JMXConnectorFactory.connect(_url, env);
+            _connector = createConnector(env);
+            _connector.addConnectionNotificationListener(
+                    new ConnectionListener(), null, null);
             _server = _connector.getMBeanServerConnection();
             }
         catch (IOException e)
@@ -142,9 +234,59 @@ public class JmxClient {
             throw new JmxException("Failed to connect to " + _url, e);
             }
 
+        if ( _registrationCacheEnabled )
+            {
+            _registrations = new MBeanRegistrationCache();
+            }
+        _failed = false;
         _connected = true;
         }
 
+    /**
+     * Adds the connect and read timeouts to the connector environment
+     */
+    private void addTimeouts(Map<String,Object> env)
+        {
+        if ( _readTimeout > 0 )
+            {
+            // notification polls have to return before the read times out
+            env.put(NOTIF_FETCH_TIMEOUT, Long.valueOf(_readTimeout / 2));
+            env.put(JMXMP_REQUEST_TIMEOUT, Long.valueOf(_readTimeout));
+            }
+        if ( isRmi() && (_connectTimeout > 0 || _readTimeout > 0) )
+            {
+            // the lookup of the connector stub uses the factory provided,
+            // calls on remote objects use the process wide factory
+            TimeoutSocketFactory.install(_connectTimeout, _readTimeout);
+            env.put(JNDI_SOCKET_FACTORY, new TimeoutSocketFactory(
+                    _connectTimeout, _readTimeout));
+            }
+        }
+
+    /**
+     * Creates a connector to the agent. The RMI socket factories bound
+     * each socket connect; other protocols connect on a separate thread
+     * that is abandoned once the connect timeout passes.
+     */
+    private JMXConnector createConnector(Map<String,Object> env)
+            throws IOException
+        {
+        if ( _connectTimeout <= 0 || isRmi() )
+            {
+            return JMXConnectorFactory.connect(_url, env);
+            }
+        ConnectAttempt attempt = new ConnectAttempt(_url, env);
+        Thread thread = new Thread(attempt, "zenjmx-connect " + _url);
+        thread.setDaemon(true);
+        thread.start();
+        return attempt.await(_connectTimeout);
+        }
+
+    private boolean isRmi()
+        {
+        return "rmi".equals(_url.getProtocol());
+        }
+
     /**
      * Closes the conncetion to the JMX Agent
      * 
@@ -175,6 +317,7 @@ public class JmxClient {
             _connected = false;
             _connector = null;
             _server = null;
+            _registrations = null;
             _creds = null;
             }
         }
@@ -235,6 +378,17 @@ public class JmxClient {
             {
             attribute = _server.getAttribute(on, attributeName);
             }
+        catch (InstanceNotFoundException e)
+            {
+            throw notRegistered(on);
+            }
+        catch (IOException e)
+            {
+            _failed = true;
+            String message = "error occurred while accessing attribute '"
+                    + attributeName + "' on object '" + on + "'";
+            throw new JmxException(message, e);
+            }
         catch (Exception e)
             {
             String message = "error occurred while accessing attribute '"
@@ -245,6 +399,67 @@ public class JmxClient {
         return attribute;
         }
 
+    /**
+     * Queries the JMX Agent and retrieves several attributes of the same MBean
+     * in a single request. Attributes that could not be read are not present
+     * in the result.
+     * 
+     * @param objectName
+     *            the name of the MBean
+     * @param attributeNames
+     *            the attributes to query
+     * @return a Map<String, Object> of attribute name to attribute value
+     * @throws JmxException
+     *             if an error occurs while querying
+     */
+    public Map<String, Object> queryAttributes(String objectName,
+            String[] attributeNames) throws JmxException
+        {
+
+        // make sure we're connected
+        if ( !_connected )
+            {
+            throw new JmxException("not connected");
+            }
+
+        // make sure the mbean described by the object name is registered
+        ObjectName on = buildObjectName(objectName);
+        checkRegistration(on);
+
+        AttributeList attributes = null;
+        try
+            {
+            attributes = _server.getAttributes(on, attributeNames);
+            }
+        catch (InstanceNotFoundException e)
+            {
+            throw notRegistered(on);
+            }
+        catch (IOException e)
+            {
+            _failed = true;
+            String message = "error occurred while accessing attributes "
+                    + Arrays.toString(attributeNames) + " on object '" + on
+                    + "'";
+            throw new JmxException(message, e);
+            }
+        catch (Exception e)
+            {
+            String message = "error occurred while accessing attributes "
+                    + Arrays.toString(attributeNames) + " on object '" + on
+                    + "'";
+            throw new JmxException(message, e);
+            }
+
+        Map<String, Object> values = new HashMap<String, Object>();
+        for (Object obj : attributes)
+            {
+            Attribute attribute = (Attribute) obj;
+            values.put(attribute.getName(), attribute.getValue());
+            }
+        return values;
+        }
+
     /**
      * Invokes the requested operation on the MBean provided, returning the
      * result as an Object.
@@ -281,6 +496,15 @@ public class JmxClient {
             {
             result = _server.invoke(on, operation, params, types);
             }
+        catch (InstanceNotFoundException e)
+            {
+            throw notRegistered(on);
+            }
+        catch (IOException e)
+            {
+            _failed = true;
+            throw new JmxException("error occurred while invoking method", e);
+            }
         catch (Exception e)
             {
             throw new JmxException("error occurred while invoking method", e);
@@ -302,6 +526,20 @@ public class JmxClient {
     private void checkRegistration(ObjectName on) throws JmxException
         {
 
+        MBeanRegistrationCache registrations = _registrations;
+        if ( registrations != null )
+            {
+            if ( !registrations.isValid() )
+                {
+                refreshRegistrations(registrations);
+                }
+            if ( registrations.contains(on) )
+                {
+                return;
+                }
+            }
+
+        // not cached; the notification may not have arrived yet so ask
         try
             {
             if ( !_server.isRegistered(on) )
@@ -311,10 +549,55 @@ public class JmxClient {
             }
         catch (IOException e)
             {
+            _failed = true;
             String msg = "error occurred while checking if mbean with name '"
                     + on + "' is registered";
             throw new JmxException(msg, e);
             }
+        if ( registrations != null )
+            {
+            registrations.add(on);
+            }
+        }
+
+    /**
+     * Fills the mbean registration cache. If the agent doesn't allow the
+     * names to be queried or the notifications to be received the cache is
+     * turned off for this connection.
+     */
+    private void refreshRegistrations(MBeanRegistrationCache registrations)
+            throws JmxException
+        {
+        try
+            {
+            registrations.refresh(_server);
+            }
+        catch (IOException e)
+            {
+            _failed = true;
+            throw new JmxException("error occurred while querying mbean names",
+                    e);
+            }
+        catch (Exception e)
+            {
+            _logger.warn("not caching mbean registrations for " + _url + "; "
+                    + e);
+            _registrations = null;
+            }
+        }
+
+    /**
+     * Creates the exception thrown when an mbean turns out not to be
+     * registered, dropping it from the registration cache.
+     */
+    private JmxException notRegistered(ObjectName on)
+        {
+        MBeanRegistrationCache registrations = _registrations;
+        if ( registrations != null )
+            {
+            registrations.remove(on);
+            }
+        return new JmxException("no MBean registered with name: " + on);
         }
 
     /**
@@ -336,16 +619,43 @@ public class JmxClient {
             List<String> keys, String dataPath) throws JmxException
         {
 
-        _logger.debug("using the following keys: " + keys);
-        _logger.debug("using the following attribute: " + attribute);
-        _logger.debug("using the following string: " + objectName);
-        String path = dataPath;
+        if ( _logger.isDebugEnabled() )
+            {
+            _logger.debug("using the following keys: " + keys);
+            _logger.debug("using the following attribute: " + attribute);
+            _logger.debug("using the following string: " + objectName);
+            }
         // issue the query
         Object value = query(objectName, attribute);
 
+        return extractValues(value, keys, dataPath);
+        }
+
+    /**
+     * Extracts the values of the keys provided from a multi-value attribute
+     * that has already been read from the JMX Agent.
+     * 
+     * @param value
+     *            the attribute value
+     * @param keys
+     *            the keys of the multi-value attributes to extract
+     * @param dataPath
+     *            path to the data within the attribute, may be null
+     * @return a Map<String, Object> where the key is the attribute name and the
+     *         value is the value retreived from the JMX Agent
+     * @throws JmxException
+     *             if the path cannot be processed
+     */
+    public Map<String, Object> extractValues(Object value, List<String> keys,
+            String dataPath) throws JmxException
+        {
+        String path = dataPath;
         if ( path != null && path.length() > 0 )
             {
-            _logger.debug("Extracting data with path " + path);
+            if ( _logger.isDebugEnabled() )
+                {
+                _logger.debug("Extracting data with path " + path);
+                }
             try
                 {
                 value = ValueExtractor.getDataValue(value, path);
@@ -385,30 +695,145 @@ public class JmxClient {
         return values;
         }
 
+    /**
+     * Reads every datapoint from the value in a single traversal
+     *
+     * @see AttributePathTree
+     */
     private Map<String, Object> mapValues(Object obj, List<String> dataPointKeys)
-            throws JmxException
         {
-        HashMap<String, Object> values = new HashMap<String, Object>();
-        for (String dataPoint : dataPointKeys)
+        return AttributePathTree.compile(dataPointKeys).evaluate(obj);
+        }
+
+    /**
+     * Connects to an agent on behalf of a caller that waits a limited time.
+     * A connector created after the caller gave up is closed.
+     */
+    private static class ConnectAttempt implements Runnable {
+
+        private final JMXServiceURL _url;
+
+        private final Map<String,Object> _env;
+
+        private JMXConnector _connector;
+
+        private IOException _error;
+
+        private boolean _done;
+
+        private boolean _abandoned;
+
+        private ConnectAttempt(JMXServiceURL url, Map<String,Object> env)
             {
+            _url = url;
+            _env = env;
+            }
+
+        public void run()
+            {
+            JMXConnector connector = null;
+            IOException error = null;
             try
                 {
-                Object value = ValueExtractor.getDataValue(obj, dataPoint);
-                values.put(dataPoint, value);
+                connector = JMXConnectorFactory.connect(_url, _env);
                 }
-            catch (JmxException jmxe)
+            catch (IOException e)
                 {
-                _logger.warn("no value found for datapoint " + dataPoint + "; "
-                        + jmxe.getMessage());
+                error = e;
                 }
-            catch (InvalidKeyException ike)
+            catch (RuntimeException e)
                 {
-                _logger.warn("no value found for datapoint " + dataPoint + "; "
-                        + ike.getMessage());
+                error = new IOException(e.toString());
+                error.initCause(e);
+                }
+            synchronized (this)
+                {
+                if ( !_abandoned )
+                    {
+                    _connector = connector;
+                    _error = error;
+                    _done = true;
+                    notifyAll();
+                    return;
+                    }
+                }
+            if ( connector != null )
+                {
+                try
+                    {
+                    connector.close();
+                    }
+                catch (IOException e)
+                    {
+                    _logger.debug("error closing late connection to " + _url
+                            + ": " + e.getMessage());
+                    }
                 }
             }
-        return values;
-        }
-    
+
+        /**
+         * Waits up to timeout ms for the connector
+         */
+        private synchronized JMXConnector await(long timeout)
+                throws IOException
+            {
+            long deadline = System.currentTimeMillis() + timeout;
+            try
+                {
+                while (!_done)
+                    {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if ( remaining <= 0 )
+                        {
+                        _abandoned = true;
+                        throw new SocketTimeoutException("timed out after "
+                                + timeout + " ms connecting to " + _url);
+                        }
+                    wait(remaining);
+                    }
+                }
+            catch (InterruptedException e)
+                {
+                _abandoned = true;
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted connecting to "
+                        + _url);
+                }
+            if ( _error != null )
+                {
+                throw _error;
+                }
+            return _connector;
+            }
+    }
+
+    /**
+     * Marks the client as failed when the connector reports that the
+     * connection to the JMX Agent was lost or closed, so that long-lived
+     * users of the client (e.g. a connection pool) know to reconnect. Lost
+     * notifications invalidate the mbean registration cache.
+     */
+    private class ConnectionListener implements NotificationListener {
+
+        public void handleNotification(Notification notification,
+                Object handback)
+            {
+            String type = notification.getType();
+            if ( JMXConnectionNotification.FAILED.equals(type)
+                    || JMXConnectionNotification.CLOSED.equals(type) )
+                {
+                _logger.debug("connection to " + _url + " reported " + type);
+                _failed = true;
+                }
+            else if ( JMXConnectionNotification.NOTIFS_LOST.equals(type) )
+                {
+                MBeanRegistrationCache registrations = _registrations;
+                if ( registrations != null )
+                    {
+                    registrations.invalidate();
+                    }
+                }
+            }
+    }
 
 }
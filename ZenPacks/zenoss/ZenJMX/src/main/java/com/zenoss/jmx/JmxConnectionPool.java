@@ -0,0 +1,518 @@
+///////////////////////////////////////////////////////////////////////////
+//
+//Copyright 2008 Zenoss Inc
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//    http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//
+///////////////////////////////////////////////////////////////////////////
+package com.zenoss.jmx;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * <p>
+ * Pool of connected JmxClients keyed by service url and credentials.
+ * </p>
+ *
+ * <p>
+ * A pooled client is shared by every borrower asking for the same url and
+ * credentials; MBeanServerConnections are thread safe so concurrent calls
+ * through the same client are fine. Clients that have not been borrowed for
+ * longer than the idle timeout are closed, as are clients whose connection
+ * has failed. When the pool is full the least recently used idle client is
+ * evicted; if every pooled client is in use the borrower gets a client that
+ * is closed as soon as it is released.
+ * </p>
+ */
+public class JmxConnectionPool {
+
+    // maximum number of clients kept in the pool
+    private final int _maxSize;
+
+    // time in ms after which an unused client is closed
+    private final long _idleTimeout;
+
+    // pooled clients in least recently used order
+    private final LinkedHashMap<String, Entry> _entries = new LinkedHashMap<String, Entry>(
+            16, 0.75f, true);
+
+    // every client currently handed out, pooled or not
+    private final Map<JmxClient, Entry> _leased = new IdentityHashMap<JmxClient, Entry>();
+
+    // last time idle clients were looked for
+    private long _lastSweep = System.currentTimeMillis();
+
+    // whether new clients cache the agent's mbean registrations
+    private volatile boolean _registrationCacheEnabled = true;
+
+    // connect timeout in ms of new clients, 0 waits forever
+    private volatile int _connectTimeout;
+
+    // read timeout in ms of new clients, 0 waits forever
+    private volatile int _readTimeout;
+
+    // endpoints that failed to connect, null if not tracked
+    private volatile CircuitBreaker _breaker;
+
+    // time taken by successful connects, null if not recorded
+    private volatile LatencyHistogram _connectLatency;
+
+    // logger
+    private static final Log _logger = LogFactory
+            .getLog(JmxConnectionPool.class);
+
+    /**
+     * Creates a pool
+     *
+     * @param maxSize
+     *            the maximum number of clients to keep connected
+     * @param idleTimeout
+     *            time in ms after which an unused client is closed
+     */
+    public JmxConnectionPool(int maxSize, long idleTimeout)
+        {
+        _maxSize = maxSize;
+        _idleTimeout = idleTimeout;
+        }
+
+    /**
+     * Turns the mbean registration cache of newly connected clients on or
+     * off
+     *
+     * @see JmxClient#setRegistrationCacheEnabled(boolean)
+     */
+    public void setRegistrationCacheEnabled(boolean enabled)
+        {
+        _registrationCacheEnabled = enabled;
+        }
+
+    /**
+     * Sets the connect and read timeouts of newly connected clients
+     *
+     * @see JmxClient#setConnectTimeout(int)
+     * @see JmxClient#setReadTimeout(int)
+     */
+    public void setTimeouts(int connectTimeout, int readTimeout)
+        {
+        _connectTimeout = connectTimeout;
+        _readTimeout = readTimeout;
+        }
+
+    /**
+     * Sets the circuit breaker consulted before connecting, null to always
+     * connect
+     */
+    public void setCircuitBreaker(CircuitBreaker breaker)
+        {
+        _breaker = breaker;
+        }
+
+    /**
+     * Sets the histogram recording how long new connections take, null to
+     * not record them
+     */
+    public void setConnectLatency(LatencyHistogram histogram)
+        {
+        _connectLatency = histogram;
+        }
+
+    /**
+     * Returns a connected client for the url and credentials provided,
+     * connecting a new one if there is no usable client in the pool. Every
+     * borrowed client must be handed back with release().
+     *
+     * @param url
+     *            the JMX service url
+     * @param creds
+     *            the credentials, null if the agent doesn't authenticate
+     * @throws CircuitOpenException
+     *             if recent connections to the url failed
+     * @throws JmxException
+     *             if a new connection cannot be established
+     */
+    public JmxClient borrow(String url, String[] creds) throws JmxException
+        {
+        CircuitBreaker breaker = _breaker;
+        if ( breaker != null )
+            {
+            breaker.check(url);
+            }
+        String key = createKey(url, creds);
+        List<JmxClient> stale = new ArrayList<JmxClient>();
+        Entry entry = null;
+        synchronized (this)
+            {
+            sweep(stale);
+            entry = _entries.get(key);
+            if ( entry != null && entry._client != null
+                    && !entry._client.isConnected() )
+                {
+                // retire the failed client, it is closed by its last borrower
+                remove(entry);
+                entry._pooled = false;
+                if ( entry._borrowers == 0 )
+                    {
+                    stale.add(entry._client);
+                    }
+                entry = null;
+                }
+            if ( entry == null )
+                {
+                entry = new Entry(key, makeRoom(stale));
+                if ( entry._pooled )
+                    {
+                    _entries.put(key, entry);
+                    }
+                }
+            entry._borrowers++;
+            }
+        closeAll(stale);
+
+        // connect outside of the pool lock so that a slow agent only holds
+        // up borrowers of the same url
+        JmxClient client = null;
+        try
+            {
+            client = entry.getClient(url, creds, this);
+            }
+        catch (CircuitOpenException e)
+            {
+            // another borrower's attempt failed and was already reported
+            discard(entry);
+            throw e;
+            }
+        catch (JmxException e)
+            {
+            discard(entry);
+            if ( breaker != null )
+                {
+                breaker.failed(url, e);
+                }
+            throw e;
+            }
+        catch (RuntimeException e)
+            {
+            // e.g. rejected credentials, the endpoint itself is reachable
+            discard(entry);
+            if ( breaker != null )
+                {
+                breaker.succeeded(url);
+                }
+            throw e;
+            }
+        if ( breaker != null )
+            {
+            breaker.succeeded(url);
+            }
+
+        synchronized (this)
+            {
+            _leased.put(client, entry);
+            }
+        return client;
+        }
+
+    /**
+     * Gives up on an entry whose client could not be connected
+     */
+    private synchronized void discard(Entry entry)
+        {
+        entry._borrowers--;
+        entry._pooled = false;
+        remove(entry);
+        }
+
+    /**
+     * Hands a client obtained from borrow() back to the pool. Clients that
+     * are no longer connected, or that were not pooled, are closed once the
+     * last borrower releases them.
+     */
+    public void release(JmxClient client)
+        {
+        List<JmxClient> stale = new ArrayList<JmxClient>();
+        synchronized (this)
+            {
+            Entry entry = _leased.get(client);
+            if ( entry == null )
+                {
+                _logger.warn("released a client that was not borrowed from "
+                        + "the pool: " + client.getUrl());
+                return;
+                }
+            entry._borrowers--;
+            entry._lastUsed = System.currentTimeMillis();
+            if ( entry._borrowers == 0 )
+                {
+                _leased.remove(client);
+                if ( !entry._pooled || !client.isConnected() )
+                    {
+                    remove(entry);
+                    stale.add(client);
+                    }
+                }
+            sweep(stale);
+            }
+        closeAll(stale);
+        }
+
+    /**
+     * Removes the client from the pool so that later borrowers get a new
+     * connection. The client is closed when it is released.
+     */
+    public synchronized void invalidate(JmxClient client)
+        {
+        Entry entry = _leased.get(client);
+        if ( entry != null )
+            {
+            remove(entry);
+            entry._pooled = false;
+            }
+        }
+
+    /**
+     * Returns the number of clients held by the pool
+     */
+    public synchronized int size()
+        {
+        return _entries.size();
+        }
+
+    /**
+     * Closes every idle client and empties the pool. Clients that are still
+     * borrowed are closed when they are released.
+     */
+    public void close()
+        {
+        List<JmxClient> stale = new ArrayList<JmxClient>();
+        synchronized (this)
+            {
+            for (Entry entry : _entries.values())
+                {
+                entry._pooled = false;
+                if ( entry._borrowers == 0 && entry._client != null )
+                    {
+                    stale.add(entry._client);
+                    }
+                }
+            _entries.clear();
+            }
+        closeAll(stale);
+        }
+
+    /**
+     * Makes room for a new entry, evicting the least recently used idle
+     * client if the pool is full.
+     *
+     * @return true if the new entry can be pooled
+     */
+    private boolean makeRoom(List<JmxClient> stale)
+        {
+        if ( _entries.size() < _maxSize )
+            {
+            return true;
+            }
+        Iterator<Entry> iter = _entries.values().iterator();
+        while (iter.hasNext())
+            {
+            Entry entry = iter.next();
+            if ( entry._borrowers == 0 )
+                {
+                iter.remove();
+                if ( entry._client != null )
+                    {
+                    stale.add(entry._client);
+                    }
+                return true;
+                }
+            }
+        _logger.debug("connection pool is full; using an unpooled client");
+        return false;
+        }
+
+    /**
+     * Removes idle and failed clients from the pool. Runs at most every few
+     * seconds.
+     */
+    private void sweep(List<JmxClient> stale)
+        {
+        long now = System.currentTimeMillis();
+        if ( now - _lastSweep < Math.min(_idleTimeout, 30000) )
+            {
+            return;
+            }
+        _lastSweep = now;
+        Iterator<Entry> iter = _entries.values().iterator();
+        while (iter.hasNext())
+            {
+            Entry entry = iter.next();
+            if ( entry._borrowers > 0 || entry._client == null )
+                {
+                continue;
+                }
+            if ( now - entry._lastUsed > _idleTimeout
+                    || !entry._client.isConnected() )
+                {
+                if ( _logger.isDebugEnabled() )
+                    {
+                    _logger.debug("closing idle connection to "
+                            + entry._client.getUrl());
+                    }
+                iter.remove();
+                stale.add(entry._client);
+                }
+            }
+        }
+
+    /**
+     * Removes the entry from the pool if it is still the pooled entry for its
+     * key
+     */
+    private void remove(Entry entry)
+        {
+        if ( _entries.get(entry._key) == entry )
+            {
+            _entries.remove(entry._key);
+            }
+        }
+
+    /**
+     * Closes the clients provided, ignoring any errors
+     */
+    private void closeAll(List<JmxClient> clients)
+        {
+        for (JmxClient client : clients)
+            {
+            try
+                {
+                client.close();
+                }
+            catch (JmxException e)
+                {
+                _logger.debug("error closing connection to "
+                        + client.getUrl() + ": " + e.getMessage());
+                }
+            }
+        }
+
+    /**
+     * Applies the pool's settings to a new client
+     */
+    private void configure(JmxClient client)
+        {
+        client.setRegistrationCacheEnabled(_registrationCacheEnabled);
+        client.setConnectTimeout(_connectTimeout);
+        client.setReadTimeout(_readTimeout);
+        }
+
+    /**
+     * Records the time a new client took to connect
+     */
+    private void connected(long latency)
+        {
+        LatencyHistogram histogram = _connectLatency;
+        if ( histogram != null )
+            {
+            histogram.record(latency);
+            }
+        }
+
+    private static String createKey(String url, String[] creds)
+        {
+        StringBuilder key = new StringBuilder(url);
+        if ( creds != null )
+            {
+            for (String cred : creds)
+                {
+                key.append('\u0000').append(cred);
+                }
+            }
+        return key.toString();
+        }
+
+    /**
+     * A pooled client along with its bookkeeping. All fields except _client
+     * are guarded by the pool's lock; _client is guarded by the entry.
+     */
+    private static class Entry {
+
+        private final String _key;
+
+        private boolean _pooled;
+
+        private int _borrowers;
+
+        private long _lastUsed = System.currentTimeMillis();
+
+        private volatile JmxClient _client;
+
+        // why connecting the client failed; borrowers waiting on the entry
+        // fail with it instead of each waiting out the connect timeout
+        private Exception _failure;
+
+        private Entry(String key, boolean pooled)
+            {
+            _key = key;
+            _pooled = pooled;
+            }
+
+        /**
+         * Returns the client for this entry, connecting it on first use
+         *
+         * @throws CircuitOpenException
+         *             if another borrower failed to connect the client
+         */
+        private synchronized JmxClient getClient(String url, String[] creds,
+                JmxConnectionPool pool) throws JmxException
+            {
+            if ( _client != null )
+                {
+                return _client;
+                }
+            if ( _failure instanceof RuntimeException )
+                {
+                throw (RuntimeException) _failure;
+                }
+            if ( _failure != null )
+                {
+                throw new CircuitOpenException("connecting to " + url
+                        + " just failed", _failure);
+                }
+            JmxClient client = new JmxClient(url);
+            client.setCredentials(creds);
+            pool.configure(client);
+            long start = System.currentTimeMillis();
+            try
+                {
+                client.connect();
+                }
+            catch (JmxException e)
+                {
+                _failure = e;
+                throw e;
+                }
+            catch (RuntimeException e)
+                {
+                _failure = e;
+                throw e;
+                }
+            pool.connected(System.currentTimeMillis() - start);
+            _client = client;
+            return client;
+            }
+    }
+}
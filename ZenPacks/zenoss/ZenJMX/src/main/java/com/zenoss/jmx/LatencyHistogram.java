@@ -0,0 +1,155 @@
+///////////////////////////////////////////////////////////////////////////
+//
+//Copyright 2008 Zenoss Inc
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//    http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//
+///////////////////////////////////////////////////////////////////////////
+package com.zenoss.jmx;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>
+ * Counts of latencies in fixed buckets. Recording is lock free and does
+ * not allocate, so a histogram can be fed from every call.
+ * </p>
+ *
+ * <p>
+ * Bucket i counts the latencies up to BOUNDS[i] ms that don't fit an
+ * earlier bucket; the last bucket counts everything above the last bound.
+ * </p>
+ */
+public class LatencyHistogram {
+
+    // upper bounds of the buckets in ms
+    private static final long[] BOUNDS = { 1, 2, 5, 10, 20, 50, 100, 200, 500,
+            1000, 2000, 5000, 10000, 30000, 60000 };
+
+    private final AtomicLongArray _buckets = new AtomicLongArray(
+            BOUNDS.length + 1);
+
+    private final AtomicLong _count = new AtomicLong();
+
+    private final AtomicLong _total = new AtomicLong();
+
+    private final AtomicLong _max = new AtomicLong();
+
+    /**
+     * Records a latency
+     *
+     * @param latency
+     *            time in ms
+     */
+    public void record(long latency)
+        {
+        int i = 0;
+        while (i < BOUNDS.length && latency > BOUNDS[i])
+            {
+            i++;
+            }
+        _buckets.incrementAndGet(i);
+        _count.incrementAndGet();
+        _total.addAndGet(latency);
+        long max = _max.get();
+        while (latency > max && !_max.compareAndSet(max, latency))
+            {
+            max = _max.get();
+            }
+        }
+
+    /**
+     * Returns the upper bounds in ms of every bucket but the last
+     */
+    public static long[] getBounds()
+        {
+        return BOUNDS.clone();
+        }
+
+    /**
+     * Returns the count of every bucket
+     */
+    public long[] getBuckets()
+        {
+        long[] buckets = new long[_buckets.length()];
+        for (int i = 0; i < buckets.length; i++)
+            {
+            buckets[i] = _buckets.get(i);
+            }
+        return buckets;
+        }
+
+    /**
+     * Returns the number of latencies recorded
+     */
+    public long getCount()
+        {
+        return _count.get();
+        }
+
+    /**
+     * Returns the sum of the latencies recorded in ms
+     */
+    public long getTotal()
+        {
+        return _total.get();
+        }
+
+    /**
+     * Returns the mean latency in ms, 0 if none was recorded
+     */
+    public double getMean()
+        {
+        long count = _count.get();
+        return count == 0 ? 0 : (double) _total.get() / count;
+        }
+
+    /**
+     * Returns the highest latency in ms
+     */
+    public long getMax()
+        {
+        return _max.get();
+        }
+
+    /**
+     * Returns the upper bound of the bucket holding the percentile, or the
+     * highest latency if that is lower or the percentile falls in the last
+     * bucket. 0 if nothing was recorded.
+     *
+     * @param percentile
+     *            between 0 and 100
+     */
+    public long getPercentile(double percentile)
+        {
+        long[] buckets = getBuckets();
+        long count = 0;
+        for (long bucket : buckets)
+            {
+            count += bucket;
+            }
+        if ( count == 0 )
+            {
+            return 0;
+            }
+        long rank = (long) Math.ceil(percentile / 100 * count);
+        long seen = 0;
+        for (int i = 0; i < BOUNDS.length; i++)
+            {
+            seen += buckets[i];
+            if ( seen >= rank && seen > 0 )
+                {
+                return Math.min(BOUNDS[i], getMax());
+                }
+            }
+        return getMax();
+        }
+}
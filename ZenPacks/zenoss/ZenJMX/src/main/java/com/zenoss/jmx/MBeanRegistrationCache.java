@@ -0,0 +1,160 @@
+///////////////////////////////////////////////////////////////////////////
+//
+//Copyright 2008 Zenoss Inc
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//    http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//
+///////////////////////////////////////////////////////////////////////////
+package com.zenoss.jmx;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServerConnection;
+import javax.management.MBeanServerDelegate;
+import javax.management.MBeanServerNotification;
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+import javax.management.relation.MBeanServerNotificationFilter;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * <p>
+ * Local copy of the names of the MBeans registered in a JMX Agent.
+ * </p>
+ *
+ * <p>
+ * The cache is filled with a single queryNames() request and kept current by
+ * listening to the registration and unregistration notifications sent by the
+ * agent's MBeanServerDelegate. If notifications are lost the cache is marked
+ * invalid and refilled on its next use.
+ * </p>
+ */
+public class MBeanRegistrationCache implements NotificationListener {
+
+    // names of the registered mbeans
+    private final ConcurrentHashMap<ObjectName, Boolean> _names = new ConcurrentHashMap<ObjectName, Boolean>();
+
+    // true while the cache reflects the agent's registrations
+    private volatile boolean _valid;
+
+    // true once the notification listener has been added
+    private boolean _listening;
+
+    // logger
+    private static final Log _logger = LogFactory
+            .getLog(MBeanRegistrationCache.class);
+
+    /**
+     * Fills the cache from the server provided, subscribing to registration
+     * notifications first so that no registration is missed.
+     *
+     * @throws IOException
+     *             if the server could not be reached
+     * @throws JMException
+     *             if the server rejected the request
+     */
+    public synchronized void refresh(MBeanServerConnection server)
+            throws IOException, JMException
+        {
+        if ( _valid )
+            {
+            return;
+            }
+        if ( !_listening )
+            {
+            // a new filter enables no mbean names, so nothing would arrive
+            MBeanServerNotificationFilter filter = new MBeanServerNotificationFilter();
+            filter.enableAllObjectNames();
+            server.addNotificationListener(MBeanServerDelegate.DELEGATE_NAME,
+                    this, filter, null);
+            _listening = true;
+            }
+        Set<ObjectName> names = server.queryNames(null, null);
+        _names.clear();
+        for (ObjectName name : names)
+            {
+            _names.put(name, Boolean.TRUE);
+            }
+        _valid = true;
+        if ( _logger.isDebugEnabled() )
+            {
+            _logger.debug("cached " + names.size() + " mbean names");
+            }
+        }
+
+    /**
+     * Returns true if the cache is valid
+     */
+    public boolean isValid()
+        {
+        return _valid;
+        }
+
+    /**
+     * Marks the cache invalid, e.g. because notifications were lost
+     */
+    public void invalidate()
+        {
+        _valid = false;
+        }
+
+    /**
+     * Returns true if the cache is valid and the mbean is known to be
+     * registered. A false return means the caller has to ask the agent.
+     */
+    public boolean contains(ObjectName name)
+        {
+        return _valid && _names.containsKey(name);
+        }
+
+    /**
+     * Records that the mbean is registered
+     */
+    public void add(ObjectName name)
+        {
+        _names.put(name, Boolean.TRUE);
+        }
+
+    /**
+     * Records that the mbean is not registered
+     */
+    public void remove(ObjectName name)
+        {
+        _names.remove(name);
+        }
+
+    /**
+     * Applies MBeanServerDelegate registration notifications to the cache
+     */
+    public void handleNotification(Notification notification, Object handback)
+        {
+        if ( !(notification instanceof MBeanServerNotification) )
+            {
+            return;
+            }
+        MBeanServerNotification mbsn = (MBeanServerNotification) notification;
+        String type = mbsn.getType();
+        if ( MBeanServerNotification.REGISTRATION_NOTIFICATION.equals(type) )
+            {
+            _names.put(mbsn.getMBeanName(), Boolean.TRUE);
+            }
+        else if ( MBeanServerNotification.UNREGISTRATION_NOTIFICATION
+                .equals(type) )
+            {
+            _names.remove(mbsn.getMBeanName());
+            }
+        }
+}
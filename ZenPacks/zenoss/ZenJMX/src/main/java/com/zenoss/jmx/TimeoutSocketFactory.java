@@ -0,0 +1,162 @@
+///////////////////////////////////////////////////////////////////////////
+//
+//Copyright 2008 Zenoss Inc
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//    http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//
+///////////////////////////////////////////////////////////////////////////
+package com.zenoss.jmx;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.rmi.server.RMISocketFactory;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * <p>
+ * RMI socket factory whose client sockets give up connecting after a
+ * connect timeout and give up waiting for data after a read timeout.
+ * </p>
+ *
+ * <p>
+ * An instance is handed to the JNDI lookup of the RMI connector's stub. The
+ * remote objects of a JMX Agent are normally exported without a client
+ * socket factory, in which case RMI uses the process wide factory; install()
+ * makes that factory a TimeoutSocketFactory as well. Server sockets are
+ * created as the default factory creates them.
+ * </p>
+ */
+public class TimeoutSocketFactory extends RMISocketFactory {
+
+    // time in ms to wait for a connection, 0 waits forever
+    private volatile int _connectTimeout;
+
+    // time in ms to wait for data, 0 waits forever
+    private volatile int _readTimeout;
+
+    // system property bounding the JRMP handshake, read once by RMI
+    private static final String HANDSHAKE_TIMEOUT = "sun.rmi.transport.tcp.handshakeTimeout";
+
+    // the process wide factory, null until installed
+    private static TimeoutSocketFactory _installed;
+
+    // logger
+    private static final Log _logger = LogFactory
+            .getLog(TimeoutSocketFactory.class);
+
+    /**
+     * Creates a factory with the timeouts provided
+     *
+     * @param connectTimeout
+     *            time in ms to wait for a connection, 0 waits forever
+     * @param readTimeout
+     *            time in ms to wait for data, 0 waits forever
+     */
+    public TimeoutSocketFactory(int connectTimeout, int readTimeout)
+        {
+        _connectTimeout = connectTimeout;
+        _readTimeout = readTimeout;
+        }
+
+    /**
+     * Makes a TimeoutSocketFactory the process wide RMI socket factory, or
+     * updates the timeouts of the one already installed. Nothing is changed
+     * if another factory has been installed.
+     */
+    public static synchronized void install(int connectTimeout,
+            int readTimeout)
+        {
+        if ( _installed != null )
+            {
+            _installed._connectTimeout = connectTimeout;
+            _installed._readTimeout = readTimeout;
+            return;
+            }
+        if ( RMISocketFactory.getSocketFactory() != null )
+            {
+            _logger.warn("an RMI socket factory is already installed; "
+                    + "RMI connections have no timeouts");
+            return;
+            }
+        if ( readTimeout > 0 && System.getProperty(HANDSHAKE_TIMEOUT) == null )
+            {
+            // RMI replaces the read timeout while handshaking; this only
+            // takes effect if no RMI connection has been made yet
+            System.setProperty(HANDSHAKE_TIMEOUT, String.valueOf(readTimeout));
+            }
+        TimeoutSocketFactory factory = new TimeoutSocketFactory(
+                connectTimeout, readTimeout);
+        try
+            {
+            RMISocketFactory.setSocketFactory(factory);
+            _installed = factory;
+            }
+        catch (IOException e)
+            {
+            _logger.warn("could not install the RMI socket factory: "
+                    + e.getMessage());
+            }
+        }
+
+    public int getConnectTimeout()
+        {
+        return _connectTimeout;
+        }
+
+    public int getReadTimeout()
+        {
+        return _readTimeout;
+        }
+
+    public Socket createSocket(String host, int port) throws IOException
+        {
+        Socket socket = new Socket();
+        try
+            {
+            socket.connect(new InetSocketAddress(host, port), _connectTimeout);
+            socket.setSoTimeout(_readTimeout);
+            }
+        catch (IOException e)
+            {
+            socket.close();
+            throw e;
+            }
+        return socket;
+        }
+
+    public ServerSocket createServerSocket(int port) throws IOException
+        {
+        return RMISocketFactory.getDefaultSocketFactory().createServerSocket(
+                port);
+        }
+
+    /**
+     * RMI reuses connections made through equal factories
+     */
+    public boolean equals(Object obj)
+        {
+        if ( !(obj instanceof TimeoutSocketFactory) )
+            {
+            return false;
+            }
+        TimeoutSocketFactory other = (TimeoutSocketFactory) obj;
+        return _connectTimeout == other._connectTimeout
+                && _readTimeout == other._readTimeout;
+        }
+
+    public int hashCode()
+        {
+        return 31 * _connectTimeout + _readTimeout;
+        }
+}
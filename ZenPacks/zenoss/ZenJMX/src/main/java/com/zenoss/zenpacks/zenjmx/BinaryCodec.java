@@ -0,0 +1,367 @@
+///////////////////////////////////////////////////////////////////////////
+//
+//Copyright 2008 Zenoss Inc
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//    http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//
+///////////////////////////////////////////////////////////////////////////
+package com.zenoss.zenpacks.zenjmx;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p> Compact tagged encoding of the values exchanged with zenjmx.py: the
+ * same types XML-RPC carries (nil, booleans, ints, longs, doubles,
+ * strings, byte arrays, arrays and structs) at a fraction of the size and
+ * parsing cost. </p>
+ *
+ * <p> Every value starts with a one byte tag.  Lengths, ints and longs
+ * are varints, ints and longs zigzag encoded; doubles are 8 bytes big
+ * endian.  The first occurrence of a string in a message is sent in UTF-8
+ * and numbered; later occurrences only send that number, so the keys and
+ * ids repeated in every result cost a byte or two. </p>
+ *
+ * <p> Arrays decode to Object[] and structs to HashMap, as with
+ * XML-RPC. </p>
+ */
+public class BinaryCodec {
+
+  public static final byte NIL = 'N';
+  public static final byte TRUE = 'T';
+  public static final byte FALSE = 'F';
+  public static final byte INT = 'I';
+  public static final byte LONG = 'L';
+  public static final byte DOUBLE = 'D';
+  public static final byte STRING = 'S';
+  public static final byte STRING_REF = 'R';
+  public static final byte BYTES = 'B';
+  public static final byte ARRAY = 'A';
+  public static final byte STRUCT = 'M';
+
+  // strings remembered by the encoder of a message
+  private static final int MAX_STRINGS = 65536;
+
+  // arrays and structs nested deeper than this are rejected by the
+  // decoder rather than overflowing the stack
+  public static final int MAX_DEPTH = 64;
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private BinaryCodec() { }
+
+  /**
+   * Encodes a value
+   * @throws IOException if the value, or one it contains, can't be encoded
+   */
+  public static byte[] encode(Object value) throws IOException {
+    Encoder encoder = new Encoder();
+    encoder.write(value);
+    return encoder.toByteArray();
+  }
+
+  /**
+   * Decodes a value encoded by encode()
+   * @throws IOException if the data isn't a single well formed value
+   */
+  public static Object decode(byte[] data) throws IOException {
+    return decode(data, 0, data.length);
+  }
+
+  /**
+   * Decodes the value encoded in len bytes of data starting at offset
+   * @throws IOException if the bytes aren't a single well formed value
+   */
+  public static Object decode(byte[] data, int offset, int len)
+      throws IOException {
+    Decoder decoder = new Decoder(data, offset, offset + len);
+    Object value = decoder.read();
+    if (decoder._pos != decoder._end) {
+      throw new IOException((decoder._end - decoder._pos)
+          + " bytes after the encoded value");
+    }
+    return value;
+  }
+
+  /**
+   * Writes values into a growing buffer
+   */
+  private static class Encoder {
+    private byte[] _buf = new byte[256];
+    private int _len;
+    private final Map<String, Integer> _strings = new HashMap<String, Integer>();
+    private int _nextString;
+
+    void write(Object value) throws IOException {
+      if (value == null) {
+        put(NIL);
+      } else if (value instanceof String) {
+        writeString((String) value);
+      } else if (value instanceof Integer || value instanceof Short
+          || value instanceof Byte) {
+        put(INT);
+        putVarLong(zigzag(((Number) value).intValue()));
+      } else if (value instanceof Long) {
+        put(LONG);
+        putVarLong(zigzag((Long) value));
+      } else if (value instanceof Number) {
+        put(DOUBLE);
+        putLong(Double.doubleToLongBits(((Number) value).doubleValue()));
+      } else if (value instanceof Boolean) {
+        put((Boolean) value ? TRUE : FALSE);
+      } else if (value instanceof Map<?, ?>) {
+        Map<?, ?> map = (Map<?, ?>) value;
+        put(STRUCT);
+        putVarLong(map.size());
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+          writeString(String.valueOf(entry.getKey()));
+          write(entry.getValue());
+        }
+      } else if (value instanceof Object[]) {
+        Object[] array = (Object[]) value;
+        put(ARRAY);
+        putVarLong(array.length);
+        for (Object element : array) {
+          write(element);
+        }
+      } else if (value instanceof Collection<?>) {
+        Collection<?> collection = (Collection<?>) value;
+        put(ARRAY);
+        putVarLong(collection.size());
+        for (Object element : collection) {
+          write(element);
+        }
+      } else if (value instanceof byte[]) {
+        byte[] bytes = (byte[]) value;
+        put(BYTES);
+        putVarLong(bytes.length);
+        put(bytes);
+      } else {
+        throw new IOException("cannot encode a "
+            + value.getClass().getName());
+      }
+    }
+
+    private void writeString(String s) {
+      Integer ref = _strings.get(s);
+      if (ref != null) {
+        put(STRING_REF);
+        putVarLong(ref);
+        return;
+      }
+      // the decoder numbers every string it reads, remembered or not
+      int index = _nextString++;
+      if (_strings.size() < MAX_STRINGS) {
+        _strings.put(s, index);
+      }
+      byte[] bytes = s.getBytes(UTF8);
+      put(STRING);
+      putVarLong(bytes.length);
+      put(bytes);
+    }
+
+    private static long zigzag(long n) {
+      return (n << 1) ^ (n >> 63);
+    }
+
+    private void put(byte b) {
+      ensure(1);
+      _buf[_len++] = b;
+    }
+
+    private void put(byte[] bytes) {
+      ensure(bytes.length);
+      System.arraycopy(bytes, 0, _buf, _len, bytes.length);
+      _len += bytes.length;
+    }
+
+    private void putVarLong(long n) {
+      ensure(10);
+      while ((n & ~0x7FL) != 0) {
+        _buf[_len++] = (byte) ((n & 0x7F) | 0x80);
+        n >>>= 7;
+      }
+      _buf[_len++] = (byte) n;
+    }
+
+    private void putLong(long n) {
+      ensure(8);
+      for (int shift = 56; shift >= 0; shift -= 8) {
+        _buf[_len++] = (byte) (n >>> shift);
+      }
+    }
+
+    private void ensure(int n) {
+      if (_len + n > _buf.length) {
+        byte[] buf = new byte[Math.max(_buf.length * 2, _len + n)];
+        System.arraycopy(_buf, 0, buf, 0, _len);
+        _buf = buf;
+      }
+    }
+
+    byte[] toByteArray() {
+      byte[] bytes = new byte[_len];
+      System.arraycopy(_buf, 0, bytes, 0, _len);
+      return bytes;
+    }
+  }
+
+  /**
+   * Reads values from a byte array
+   */
+  private static class Decoder {
+    private final byte[] _data;
+    private int _pos;
+    private final int _end;
+    private final List<String> _strings = new ArrayList<String>();
+    // arrays and structs being read
+    private int _depth;
+
+    Decoder(byte[] data, int pos, int end) {
+      _data = data;
+      _pos = pos;
+      _end = end;
+    }
+
+    Object read() throws IOException {
+      byte tag = get();
+      switch (tag) {
+      case NIL:
+        return null;
+      case TRUE:
+        return Boolean.TRUE;
+      case FALSE:
+        return Boolean.FALSE;
+      case INT:
+        return (int) unzigzag(getVarLong());
+      case LONG:
+        return unzigzag(getVarLong());
+      case DOUBLE:
+        return Double.longBitsToDouble(getLong());
+      case STRING:
+      case STRING_REF:
+        return readString(tag);
+      case BYTES: {
+        int len = getLength();
+        byte[] bytes = new byte[len];
+        System.arraycopy(_data, _pos, bytes, 0, len);
+        _pos += len;
+        return bytes;
+      }
+      case ARRAY: {
+        Object[] array = new Object[getCount()];
+        enter();
+        for (int i = 0; i < array.length; i++) {
+          array[i] = read();
+        }
+        _depth--;
+        return array;
+      }
+      case STRUCT: {
+        int size = getCount();
+        Map<String, Object> map = new HashMap<String, Object>(size * 4 / 3 + 1);
+        enter();
+        for (int i = 0; i < size; i++) {
+          String key = readString(get());
+          map.put(key, read());
+        }
+        _depth--;
+        return map;
+      }
+      default:
+        throw new IOException("unknown tag " + tag + " at offset "
+            + (_pos - 1));
+      }
+    }
+
+    private void enter() throws IOException {
+      if (++_depth > MAX_DEPTH) {
+        throw new IOException("values nested deeper than " + MAX_DEPTH
+            + " at offset " + _pos);
+      }
+    }
+
+    private String readString(byte tag) throws IOException {
+      if (tag == STRING_REF) {
+        long ref = getVarLong();
+        if (ref < 0 || ref >= _strings.size()) {
+          throw new IOException("unknown string reference " + ref);
+        }
+        return _strings.get((int) ref);
+      }
+      if (tag != STRING) {
+        throw new IOException("expected a string at offset " + (_pos - 1));
+      }
+      int len = getLength();
+      String s = new String(_data, _pos, len, UTF8);
+      _pos += len;
+      _strings.add(s);
+      return s;
+    }
+
+    private static long unzigzag(long n) {
+      return (n >>> 1) ^ -(n & 1);
+    }
+
+    private byte get() throws IOException {
+      if (_pos >= _end) {
+        throw new IOException("truncated value");
+      }
+      return _data[_pos++];
+    }
+
+    private long getVarLong() throws IOException {
+      long n = 0;
+      for (int shift = 0; shift < 64; shift += 7) {
+        byte b = get();
+        n |= (long) (b & 0x7F) << shift;
+        if ((b & 0x80) == 0) {
+          return n;
+        }
+      }
+      throw new IOException("malformed varint");
+    }
+
+    /**
+     * Reads the length of a string or byte array, which must fit the data
+     */
+    private int getLength() throws IOException {
+      long len = getVarLong();
+      if (len < 0 || len > _end - _pos) {
+        throw new IOException("truncated value");
+      }
+      return (int) len;
+    }
+
+    /**
+     * Reads the number of elements of an array or struct; each takes at
+     * least a byte, which bounds what a corrupt count can allocate
+     */
+    private int getCount() throws IOException {
+      return getLength();
+    }
+
+    private long getLong() throws IOException {
+      if (_end - _pos < 8) {
+        throw new IOException("truncated value");
+      }
+      long n = 0;
+      for (int i = 0; i < 8; i++) {
+        n = (n << 8) | (_data[_pos++] & 0xFF);
+      }
+      return n;
+    }
+  }
+}
@@ -0,0 +1,115 @@
+///////////////////////////////////////////////////////////////////////////
+//
+//Copyright 2008 Zenoss Inc
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//    http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//
+///////////////////////////////////////////////////////////////////////////
+package com.zenoss.zenpacks.zenjmx;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+
+/**
+ * <p> Client of the BinaryRpcServer, used by the tests and the load test.
+ * Calls are sent one at a time over a single connection. </p>
+ */
+public class BinaryRpcClient {
+
+  private final SocketChannel _channel;
+  private final DataInputStream _in;
+  private final DataOutputStream _out;
+  private int _lastId;
+
+  /**
+   * Connects to the server on the host and port provided
+   */
+  public BinaryRpcClient(String host, int port) throws IOException {
+    this(SocketChannel.open(new InetSocketAddress(host, port)));
+    _channel.socket().setTcpNoDelay(true);
+  }
+
+  /**
+   * Connects to the server listening on the Unix domain socket file
+   * provided
+   */
+  public BinaryRpcClient(String path) throws IOException {
+    this(UnixSockets.connect(path));
+  }
+
+  private BinaryRpcClient(SocketChannel channel) {
+    _channel = channel;
+    _in = new DataInputStream(new BufferedInputStream(Channels
+        .newInputStream(channel)));
+    _out = new DataOutputStream(new BufferedOutputStream(Channels
+        .newOutputStream(channel)));
+  }
+
+  /**
+   * Calls a method of the server and waits for its result
+   * @param method the XML-RPC method name, e.g. "zenjmx.collect"
+   * @throws FaultException if the server reported an error
+   * @throws IOException if the connection failed
+   */
+  public synchronized Object call(String method, Object... params)
+      throws IOException, FaultException {
+    Object[] request = new Object[params.length + 1];
+    request[0] = method;
+    System.arraycopy(params, 0, request, 1, params.length);
+    byte[] payload = BinaryCodec.encode(request);
+    int id = ++_lastId;
+    _out.writeInt(payload.length + 4);
+    _out.writeInt(id);
+    _out.write(payload);
+    _out.flush();
+
+    int len = _in.readInt();
+    if (len < 5 || len > BinaryRpcServer.MAX_FRAME) {
+      throw new IOException("bad frame length " + len);
+    }
+    int responseId = _in.readInt();
+    if (responseId != id) {
+      throw new IOException("response " + responseId
+          + " doesn't match request " + id);
+    }
+    byte status = _in.readByte();
+    byte[] response = new byte[len - 5];
+    _in.readFully(response);
+    Object result = BinaryCodec.decode(response);
+    if (status != BinaryRpcServer.OK) {
+      throw new FaultException(String.valueOf(result));
+    }
+    return result;
+  }
+
+  /**
+   * Closes the connection
+   */
+  public void close() throws IOException {
+    _channel.close();
+  }
+
+  /**
+   * An error reported by the server
+   */
+  public static class FaultException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    public FaultException(String message) {
+      super(message);
+    }
+  }
+}
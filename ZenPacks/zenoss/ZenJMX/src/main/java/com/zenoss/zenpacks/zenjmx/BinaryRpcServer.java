@@ -0,0 +1,435 @@
+///////////////////////////////////////////////////////////////////////////
+//
+//Copyright 2008 Zenoss Inc
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//    http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//
+///////////////////////////////////////////////////////////////////////////
+package com.zenoss.zenpacks.zenjmx;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.zenoss.zenpacks.zenjmx.call.ConfigurationException;
+
+/**
+ * <p> Serves the methods of ZenJmxService over TCP or a Unix domain socket
+ * with the BinaryCodec instead of XML-RPC. </p>
+ *
+ * <p> Every message is a frame: a 4 byte big endian length of the rest of
+ * the frame, a 4 byte request id chosen by the client, and the payload.
+ * A request's payload is an encoded array holding the XML-RPC method name
+ * (e.g. "zenjmx.collect") followed by its parameters.  A response echoes
+ * the id of its request and its payload is a status byte, OK or FAULT,
+ * followed by the encoded result or fault message. </p>
+ *
+ * <p> Requests run on a bounded pool of threads, so a client may send
+ * several requests over one connection without waiting; responses are
+ * sent as they complete, which may not be the order of the requests. </p>
+ *
+ * <p> The TCP port is bound to the loopback address unless another
+ * address is configured, and every connection has a reading thread, so
+ * connections beyond the configured maximum are closed as soon as they
+ * are accepted. </p>
+ */
+public class BinaryRpcServer {
+  private static final Log _logger = LogFactory.getLog(BinaryRpcServer.class);
+
+  public static final byte OK = 0;
+  public static final byte FAULT = 1;
+
+  // largest frame accepted, larger ones close the connection
+  public static final int MAX_FRAME = 64 * 1024 * 1024;
+
+  // buffer a payload starts in; it grows as the bytes arrive, so that
+  // a length alone can't make the server allocate up to MAX_FRAME
+  private static final int INITIAL_PAYLOAD = 64 * 1024;
+
+  private final int _port;
+  private final String _path;
+  private final ZenJmxService _service = new ZenJmxService();
+  private final Set<SocketChannel> _connections = new HashSet<SocketChannel>();
+  private ServerSocketChannel _serverChannel;
+  private ThreadPoolExecutor _executor;
+  private int _maxConnections;
+  private volatile boolean _running;
+
+  /**
+   * Creates a server listening on the port provided, 0 for any free port
+   */
+  public BinaryRpcServer(int port) {
+    _port = port;
+    _path = null;
+  }
+
+  /**
+   * Creates a server listening on the Unix domain socket file provided,
+   * which needs Java 16 or later
+   * @see UnixSockets
+   */
+  public BinaryRpcServer(String path) {
+    _port = -1;
+    _path = path;
+  }
+
+  /**
+   * Starts listening.  The number of request threads and queued requests
+   * and the accept queue come from the same options as the XML-RPC
+   * server; the address and the maximum number of connections from the
+   * binary RPC options.
+   */
+  public synchronized void start() throws IOException {
+    Configuration config = Configuration.instance();
+    int threads = Integer.parseInt(config.getProperty(
+        OptionsFactory.SERVER_THREADS, OptionsFactory.DEFAULT_SERVER_THREADS));
+    int queueSize = Integer.parseInt(config.getProperty(
+        OptionsFactory.SERVER_QUEUE_SIZE,
+        OptionsFactory.DEFAULT_SERVER_QUEUE_SIZE));
+    int acceptQueueSize = Integer.parseInt(config.getProperty(
+        OptionsFactory.ACCEPT_QUEUE_SIZE,
+        OptionsFactory.DEFAULT_ACCEPT_QUEUE_SIZE));
+    _maxConnections = Integer.parseInt(config.getProperty(
+        OptionsFactory.BINARY_CONNECTIONS,
+        OptionsFactory.DEFAULT_BINARY_CONNECTIONS));
+
+    if (_path != null) {
+      _serverChannel = UnixSockets.openServer(_path, acceptQueueSize);
+    } else {
+      InetAddress address = InetAddress.getByName(config.getProperty(
+          OptionsFactory.BINARY_ADDRESS,
+          OptionsFactory.DEFAULT_BINARY_ADDRESS));
+      _serverChannel = ServerSocketChannel.open();
+      _serverChannel.socket().setReuseAddress(true);
+      _serverChannel.socket().bind(new InetSocketAddress(address, _port),
+          acceptQueueSize);
+    }
+    _executor = new ThreadPoolExecutor(threads, threads, 60,
+        TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queueSize),
+        new ZenJmxService.CollectorThreadFactory("zenjmx-binrpc-"));
+    _executor.allowCoreThreadTimeOut(true);
+    _running = true;
+
+    Thread acceptor = new Thread(new Runnable() {
+      public void run() {
+        accept();
+      }
+    }, "zenjmx-binrpc-acceptor");
+    acceptor.setDaemon(true);
+    acceptor.start();
+    _logger.info("binary RPC server listening on "
+        + (_path != null ? _path : _serverChannel.socket()
+            .getInetAddress().getHostAddress() + " port " + getPort()));
+  }
+
+  /**
+   * Returns the port the server listens on, -1 for a Unix domain socket
+   */
+  public int getPort() {
+    return _path != null ? -1 : _serverChannel.socket().getLocalPort();
+  }
+
+  /**
+   * Stops listening and closes every connection.  Requests that are
+   * running complete but their responses are lost.
+   */
+  public void stop() {
+    _running = false;
+    try {
+      _serverChannel.close();
+    } catch (IOException e) {
+      _logger.debug("error closing the server socket: " + e.getMessage());
+    }
+    if (_path != null) {
+      new File(_path).delete();
+    }
+    List<SocketChannel> connections;
+    synchronized (_connections) {
+      connections = new ArrayList<SocketChannel>(_connections);
+    }
+    for (SocketChannel channel : connections) {
+      close(channel);
+    }
+    _executor.shutdown();
+  }
+
+  private void accept() {
+    int count = 0;
+    while (_running) {
+      SocketChannel channel;
+      try {
+        channel = _serverChannel.accept();
+      } catch (IOException e) {
+        if (_running) {
+          _logger.error("error accepting a connection", e);
+        }
+        continue;
+      }
+      synchronized (_connections) {
+        if (_connections.size() >= _maxConnections) {
+          _logger.warn("closing a binary RPC connection; "
+              + _maxConnections + " connections are already open");
+          close(channel);
+          continue;
+        }
+        _connections.add(channel);
+      }
+      try {
+        if (_path == null) {
+          channel.socket().setTcpNoDelay(true);
+          channel.socket().setKeepAlive(true);
+        }
+        Thread reader = new Thread(new Connection(channel),
+            "zenjmx-binrpc-connection-" + ++count);
+        reader.setDaemon(true);
+        reader.start();
+      } catch (IOException e) {
+        _logger.warn("error setting up a connection: " + e.getMessage());
+        close(channel);
+      }
+    }
+  }
+
+  private void close(SocketChannel channel) {
+    synchronized (_connections) {
+      _connections.remove(channel);
+    }
+    try {
+      channel.close();
+    } catch (IOException e) {
+      _logger.debug("error closing a connection: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Calls the service method named in a request
+   */
+  @SuppressWarnings("unchecked")
+  Object invoke(Object request) throws Exception {
+    if (!(request instanceof Object[]) || ((Object[]) request).length == 0
+        || !(((Object[]) request)[0] instanceof String)) {
+      throw new IllegalArgumentException("a request is an array starting "
+          + "with the method name");
+    }
+    Object[] call = (Object[]) request;
+    String method = (String) call[0];
+    Object[] params = Arrays.asList(call).subList(1, call.length).toArray();
+    if ("zenjmx.collect".equals(method)) {
+      checkParams(method, params, 1);
+      return _service.collect(toList(params[0]));
+    }
+    if ("zenjmx.register".equals(method)) {
+      checkParams(method, params, 2);
+      return _service.register((String) params[0], toList(params[1]));
+    }
+    if ("zenjmx.collectById".equals(method)) {
+      checkParams(method, params, 2);
+      return _service.collectById((String) params[0], (Integer) params[1]);
+    }
+    if ("zenjmx.collectBatch".equals(method)) {
+      checkParams(method, params, 1);
+      return _service.collectBatch((Map<String, Object>) params[0]);
+    }
+    if ("zenjmx.unregister".equals(method)) {
+      checkParams(method, params, 2);
+      return _service.unregister((String) params[0], (Integer) params[1]);
+    }
+    if ("zenjmx.lastValues".equals(method)) {
+      checkParams(method, params, 1);
+      return _service.lastValues((String) params[0]);
+    }
+    throw new IllegalArgumentException("no such method: " + method);
+  }
+
+  private static void checkParams(String method, Object[] params, int count) {
+    if (params.length != count) {
+      throw new IllegalArgumentException(method + " takes " + count
+          + " parameters, not " + params.length);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static List<Map<?, ?>> toList(Object param) {
+    List<?> list = Arrays.asList((Object[]) param);
+    return (List<Map<?, ?>>) list;
+  }
+
+  /**
+   * Reads the requests of a connection and writes their responses.  The
+   * channel is used directly rather than through streams, whose reads
+   * would block the writes of responses.
+   */
+  private class Connection implements Runnable {
+    private final SocketChannel _channel;
+    private final ByteBuffer _header = ByteBuffer.allocate(8);
+    private final Object _writeLock = new Object();
+
+    Connection(SocketChannel channel) {
+      _channel = channel;
+    }
+
+    public void run() {
+      try {
+        while (_running) {
+          _header.clear();
+          if (!read(_header)) {
+            break;
+          }
+          _header.flip();
+          int len = _header.getInt();
+          int id = _header.getInt();
+          if (len < 4 || len > MAX_FRAME) {
+            _logger.warn("closing a connection that sent a frame of " + len
+                + " bytes");
+            break;
+          }
+          dispatch(id, readPayload(len - 4));
+        }
+      } catch (IOException e) {
+        if (_running) {
+          _logger.debug("binary RPC connection failed: " + e.getMessage());
+        }
+      } finally {
+        close(_channel);
+      }
+    }
+
+    /**
+     * Reads a payload of the size provided into a buffer that doubles as
+     * it fills
+     */
+    private byte[] readPayload(int size) throws IOException {
+      ByteBuffer payload = ByteBuffer.allocate(Math.min(size,
+          INITIAL_PAYLOAD));
+      while (true) {
+        if (!read(payload)) {
+          throw new EOFException("connection closed within a frame");
+        }
+        if (payload.capacity() == size) {
+          return payload.array();
+        }
+        ByteBuffer larger = ByteBuffer.allocate((int) Math.min(size,
+            2L * payload.capacity()));
+        payload.flip();
+        larger.put(payload);
+        payload = larger;
+      }
+    }
+
+    /**
+     * Fills the buffer
+     * @return false if the connection was closed before the first byte
+     * @throws EOFException if it was closed after it
+     */
+    private boolean read(ByteBuffer buf) throws IOException {
+      while (buf.hasRemaining()) {
+        if (_channel.read(buf) < 0) {
+          if (buf.position() == 0) {
+            return false;
+          }
+          throw new EOFException("connection closed within a frame");
+        }
+      }
+      return true;
+    }
+
+    private void dispatch(final int id, final byte[] payload) {
+      try {
+        _executor.execute(new Runnable() {
+          public void run() {
+            handle(id, payload);
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        respond(id, FAULT, "too many requests waiting");
+      }
+    }
+
+    private void handle(int id, byte[] payload) {
+      Object result;
+      try {
+        result = invoke(BinaryCodec.decode(payload));
+      } catch (Exception e) {
+        if (isExpected(e)) {
+          _logger.debug("binary RPC request failed: " + e);
+        } else {
+          _logger.error("error handling binary RPC request", e);
+        }
+        String message = e.getMessage();
+        respond(id, FAULT, message == null ? e.toString() : message);
+        return;
+      }
+      respond(id, OK, result);
+    }
+
+    /**
+     * Returns whether a request failed because of what the client sent,
+     * e.g. a configuration version that isn't registered, rather than
+     * because of a bug
+     */
+    private boolean isExpected(Exception e) {
+      return e instanceof ConfigurationException
+          || e instanceof IllegalArgumentException
+          || e instanceof ClassCastException || e instanceof IOException;
+    }
+
+    private void respond(int id, byte status, Object value) {
+      byte[] payload;
+      try {
+        payload = BinaryCodec.encode(value);
+      } catch (IOException e) {
+        _logger.error("error encoding binary RPC response", e);
+        status = FAULT;
+        payload = encodeMessage(e.getMessage());
+      }
+      ByteBuffer header = ByteBuffer.allocate(9);
+      header.putInt(payload.length + 5).putInt(id).put(status).flip();
+      ByteBuffer[] frame = { header, ByteBuffer.wrap(payload) };
+      try {
+        synchronized (_writeLock) {
+          while (frame[1].hasRemaining()) {
+            _channel.write(frame);
+          }
+        }
+      } catch (IOException e) {
+        _logger.debug("error sending a binary RPC response: "
+            + e.getMessage());
+        close(_channel);
+      }
+    }
+
+    private byte[] encodeMessage(String message) {
+      try {
+        return BinaryCodec.encode(message);
+      } catch (IOException e) {
+        // strings always encode
+        throw new IllegalStateException(e);
+      }
+    }
+  }
+}
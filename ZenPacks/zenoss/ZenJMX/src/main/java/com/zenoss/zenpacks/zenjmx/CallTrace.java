@@ -0,0 +1,151 @@
+///////////////////////////////////////////////////////////////////////////
+//
+//Copyright 2008 Zenoss Inc
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//    http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//
+///////////////////////////////////////////////////////////////////////////
+package com.zenoss.zenpacks.zenjmx;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.zenoss.zenpacks.zenjmx.call.Summary;
+
+/**
+ * <p> Trace record of a single JMX call made while collecting: where it
+ * went, how long it waited and ran, and how it ended. </p>
+ *
+ * <p> Records are only created for calls that are traced, so collection
+ * pays for a trace only when one is wanted.  Every call is traced when
+ * debug logging is enabled for this class; otherwise one call in every
+ * traceSampleRate is traced and logged at info level, or none if the
+ * rate is 0. </p>
+ */
+public class CallTrace {
+
+  // outcomes of a traced call
+  public static final String OK = "ok";
+  public static final String ERROR = "error";
+  public static final String TIMED_OUT = "timed out";
+  public static final String REJECTED = "rejected";
+
+  // trace one call in this many, 0 for none; -1 until read
+  private static volatile int _sampleRate = -1;
+
+  // calls seen while sampling
+  private static final AtomicLong _calls = new AtomicLong();
+
+  // logger
+  private static final Log _logger = LogFactory.getLog(CallTrace.class);
+
+  private final ConfigAdapter _config;
+  private final Summary _summary;
+  private final long _queued;
+  private long _started;
+
+  private CallTrace(ConfigAdapter config, Summary summary, long queued) {
+    _config = config;
+    _summary = summary;
+    _queued = queued;
+  }
+
+  /**
+   * Returns a trace of the call with the summary provided, or null if the
+   * call isn't traced
+   *
+   * @param queued when the call was handed to the executor
+   */
+  public static CallTrace begin(ConfigAdapter config, Summary summary,
+      long queued) {
+    if (!isTraced()) {
+      return null;
+    }
+    return new CallTrace(config, summary, queued);
+  }
+
+  /**
+   * Returns true if the next call should be traced
+   */
+  private static boolean isTraced() {
+    if (_logger.isDebugEnabled()) {
+      return true;
+    }
+    int rate = getSampleRate();
+    return rate > 0 && _calls.incrementAndGet() % rate == 0;
+  }
+
+  private static int getSampleRate() {
+    int rate = _sampleRate;
+    if (rate < 0) {
+      rate = Integer.parseInt(Configuration.instance().getProperty(
+          OptionsFactory.TRACE_SAMPLE_RATE,
+          OptionsFactory.DEFAULT_TRACE_SAMPLE_RATE));
+      _sampleRate = rate;
+    }
+    return rate;
+  }
+
+  /**
+   * Sets the sample rate, overriding the configuration
+   *
+   * @param rate trace one call in this many, 0 for none
+   */
+  public static void setSampleRate(int rate) {
+    _sampleRate = rate;
+  }
+
+  /**
+   * Records when the request for the call was sent to the server; for
+   * batched attribute calls when the batch was sent
+   */
+  public void started(long when) {
+    _started = when;
+  }
+
+  /**
+   * Logs the record
+   *
+   * @param outcome one of OK, ERROR, TIMED_OUT or REJECTED
+   * @param error the cause of an error, may be null
+   */
+  public void end(String outcome, Throwable error) {
+    long now = System.currentTimeMillis();
+    String record = toString(outcome, error, now);
+    if (_logger.isDebugEnabled()) {
+      _logger.debug(record);
+    } else {
+      _logger.info(record);
+    }
+  }
+
+  String toString(String outcome, Throwable error, long now) {
+    StringBuilder record = new StringBuilder(256);
+    record.append("call ").append(outcome);
+    record.append("; device ").append(_config.getDevice());
+    record.append("; datasource ").append(_config.getDatasourceId());
+    record.append("; mbean ").append(_summary.getObjectName());
+    record.append("; ").append(_summary.getCallSummary());
+    long started = _started > 0 ? _started : now;
+    record.append("; queued ").append(started - _queued).append(" ms");
+    if (_started > 0) {
+      record.append("; ran ").append(now - _started).append(" ms");
+    }
+    if (OK.equals(outcome) && _summary.getResults() != null) {
+      record.append("; values ").append(_summary.getResults().size());
+    }
+    if (error != null) {
+      record.append("; ").append(error.getMessage());
+    }
+    return record.toString();
+  }
+}
@@ -0,0 +1,185 @@
+///////////////////////////////////////////////////////////////////////////
+//
+//Copyright 2008 Zenoss Inc
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//    http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//
+///////////////////////////////////////////////////////////////////////////
+package com.zenoss.zenpacks.zenjmx;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.zenoss.jmx.LatencyHistogram;
+
+/**
+ * <p> Counters and latency histograms of the collector, fed by the collect
+ * requests and read through the ZenJmxCollectorMXBean. </p>
+ *
+ * <p> Everything is lock free so that recording costs next to nothing on
+ * the collection path. </p>
+ */
+public class CollectorMetrics {
+
+  // singleton instance
+  private static final CollectorMetrics _instance = new CollectorMetrics();
+
+  private final AtomicLong _requests = new AtomicLong();
+  private final Rate _requestRate = new Rate();
+  private final AtomicLong _devices = new AtomicLong();
+  private final Rate _deviceRate = new Rate();
+  private final AtomicInteger _inFlightDevices = new AtomicInteger();
+
+  private final LatencyHistogram _deviceLatency = new LatencyHistogram();
+  private final LatencyHistogram _callLatency = new LatencyHistogram();
+  private final LatencyHistogram _connectLatency = new LatencyHistogram();
+
+  private final AtomicLong _connectionErrors = new AtomicLong();
+  private final AtomicLong _unreachable = new AtomicLong();
+  private final AtomicLong _callErrors = new AtomicLong();
+  private final AtomicLong _configurationErrors = new AtomicLong();
+  private final AtomicLong _timeouts = new AtomicLong();
+  private final AtomicLong _rejected = new AtomicLong();
+
+  /**
+   * Returns the metrics of this process
+   */
+  public static CollectorMetrics instance() {
+    return _instance;
+  }
+
+  /**
+   * Records an XML-RPC collect request
+   */
+  public void requestReceived() {
+    _requests.incrementAndGet();
+    _requestRate.mark();
+  }
+
+  /**
+   * Records the start of the collection of a device
+   */
+  public void deviceStarted() {
+    _inFlightDevices.incrementAndGet();
+  }
+
+  /**
+   * Records the end of the collection of a device
+   * @param latency time in ms the collection took
+   */
+  public void deviceFinished(long latency) {
+    _inFlightDevices.decrementAndGet();
+    _devices.incrementAndGet();
+    _deviceRate.mark();
+    _deviceLatency.record(latency);
+  }
+
+  /**
+   * Records a call that returned values
+   * @param runtime time in ms the call took
+   */
+  public void callFinished(long runtime) {
+    _callLatency.record(runtime);
+  }
+
+  public void callFailed() {
+    _callErrors.incrementAndGet();
+  }
+
+  public void callTimedOut() {
+    _timeouts.incrementAndGet();
+  }
+
+  public void callRejected() {
+    _rejected.incrementAndGet();
+  }
+
+  public void connectionFailed() {
+    _connectionErrors.incrementAndGet();
+  }
+
+  public void serverUnreachable() {
+    _unreachable.incrementAndGet();
+  }
+
+  public void configurationFailed() {
+    _configurationErrors.incrementAndGet();
+  }
+
+  public long getRequests() { return _requests.get(); }
+
+  /**
+   * Returns the mean number of requests per second over the last minute
+   */
+  public double getRequestRate() { return _requestRate.perSecond(); }
+
+  public long getDevices() { return _devices.get(); }
+
+  /**
+   * Returns the mean number of devices collected per second over the last
+   * minute
+   */
+  public double getDeviceRate() { return _deviceRate.perSecond(); }
+
+  public int getInFlightDevices() { return _inFlightDevices.get(); }
+
+  public LatencyHistogram getDeviceLatency() { return _deviceLatency; }
+
+  public LatencyHistogram getCallLatency() { return _callLatency; }
+
+  public LatencyHistogram getConnectLatency() { return _connectLatency; }
+
+  public long getConnectionErrors() { return _connectionErrors.get(); }
+
+  public long getUnreachable() { return _unreachable.get(); }
+
+  public long getCallErrors() { return _callErrors.get(); }
+
+  public long getConfigurationErrors() { return _configurationErrors.get(); }
+
+  public long getTimeouts() { return _timeouts.get(); }
+
+  public long getRejected() { return _rejected.get(); }
+
+  /**
+   * Events counted per second over the last minute
+   */
+  static class Rate {
+    private static final int SECONDS = 60;
+    private final AtomicLongArray _counts = new AtomicLongArray(SECONDS);
+    private final AtomicLongArray _stamps = new AtomicLongArray(SECONDS);
+
+    void mark() {
+      long second = System.currentTimeMillis() / 1000;
+      int i = (int) (second % SECONDS);
+      long stamp = _stamps.get(i);
+      if (stamp != second && _stamps.compareAndSet(i, stamp, second)) {
+        _counts.set(i, 0);
+      }
+      _counts.incrementAndGet(i);
+    }
+
+    /**
+     * Returns the mean rate over the last SECONDS complete seconds
+     */
+    double perSecond() {
+      long now = System.currentTimeMillis() / 1000;
+      long total = 0;
+      for (int i = 0; i < SECONDS; i++) {
+        long age = now - _stamps.get(i);
+        if (age > 0 && age <= SECONDS) {
+          total += _counts.get(i);
+        }
+      }
+      return (double) total / SECONDS;
+    }
+  }
+}
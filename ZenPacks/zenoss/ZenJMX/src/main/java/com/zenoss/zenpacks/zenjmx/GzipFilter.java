@@ -0,0 +1,285 @@
+///////////////////////////////////////////////////////////////////////////
+//
+//Copyright 2008 Zenoss Inc
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//    http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//
+///////////////////////////////////////////////////////////////////////////
+package com.zenoss.zenpacks.zenjmx;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * <p> Decompresses requests sent with "Content-Encoding: gzip" and
+ * compresses the responses to clients sending "Accept-Encoding: gzip",
+ * neither of which the XML-RPC servlet supports itself. </p>
+ *
+ * <p> Responses are buffered until they reach the threshold; smaller
+ * ones are sent as they are, since compressing them costs more than it
+ * saves. </p>
+ */
+public class GzipFilter implements Filter {
+
+  private static final String GZIP = "gzip";
+
+  // responses of fewer bytes aren't compressed
+  private final int _threshold;
+
+  public GzipFilter(int threshold) {
+    _threshold = threshold;
+  }
+
+  public void init(FilterConfig config) { }
+
+  public void destroy() { }
+
+  public void doFilter(ServletRequest req, ServletResponse resp,
+      FilterChain chain) throws IOException, ServletException {
+    HttpServletRequest request = (HttpServletRequest) req;
+    HttpServletResponse response = (HttpServletResponse) resp;
+    if (isGzip(request.getHeader("Content-Encoding"))) {
+      request = new GzipRequest(request);
+    }
+    response.addHeader("Vary", "Accept-Encoding");
+    if (!acceptsGzip(request.getHeader("Accept-Encoding"))) {
+      chain.doFilter(request, response);
+      return;
+    }
+    GzipResponse gzipResponse = new GzipResponse(response, _threshold);
+    chain.doFilter(request, gzipResponse);
+    gzipResponse.finish();
+  }
+
+  private static boolean isGzip(String encoding) {
+    return encoding != null && GZIP.equalsIgnoreCase(encoding.trim());
+  }
+
+  /**
+   * Tells whether an Accept-Encoding header accepts gzip, i.e. lists it
+   * without a q value of 0
+   */
+  static boolean acceptsGzip(String header) {
+    if (header == null) {
+      return false;
+    }
+    for (String coding : header.split(",")) {
+      String[] params = coding.split(";");
+      if (!GZIP.equalsIgnoreCase(params[0].trim())) {
+        continue;
+      }
+      for (int i = 1; i < params.length; i++) {
+        String param = params[i].trim();
+        if (param.startsWith("q=")) {
+          try {
+            return Double.parseDouble(param.substring(2)) > 0;
+          } catch (NumberFormatException e) {
+            return false;
+          }
+        }
+      }
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * A request whose body is decompressed as it is read.  Its length is
+   * unknown and its encoding headers are hidden from the servlet.
+   */
+  private static class GzipRequest extends HttpServletRequestWrapper {
+    private ServletInputStream _in;
+
+    GzipRequest(HttpServletRequest request) {
+      super(request);
+    }
+
+    public ServletInputStream getInputStream() throws IOException {
+      if (_in == null) {
+        final GZIPInputStream gzip = new GZIPInputStream(super
+            .getInputStream());
+        _in = new ServletInputStream() {
+          public int read() throws IOException {
+            return gzip.read();
+          }
+
+          public int read(byte[] b, int off, int len) throws IOException {
+            return gzip.read(b, off, len);
+          }
+
+          public void close() throws IOException {
+            gzip.close();
+          }
+        };
+      }
+      return _in;
+    }
+
+    public BufferedReader getReader() throws IOException {
+      String encoding = getCharacterEncoding();
+      return new BufferedReader(new InputStreamReader(getInputStream(),
+          encoding == null ? "ISO-8859-1" : encoding));
+    }
+
+    public int getContentLength() {
+      return -1;
+    }
+
+    public String getHeader(String name) {
+      return isHidden(name) ? null : super.getHeader(name);
+    }
+
+    public int getIntHeader(String name) {
+      return isHidden(name) ? -1 : super.getIntHeader(name);
+    }
+
+    @SuppressWarnings("rawtypes")
+    public Enumeration getHeaders(String name) {
+      return isHidden(name) ? Collections.enumeration(Collections
+          .emptyList()) : super.getHeaders(name);
+    }
+
+    private static boolean isHidden(String name) {
+      return "Content-Length".equalsIgnoreCase(name)
+          || "Content-Encoding".equalsIgnoreCase(name);
+    }
+  }
+
+  /**
+   * A response that is buffered until it reaches the threshold and
+   * compressed from then on.  The content length set by the servlet is
+   * replaced by the actual one when the response isn't compressed.
+   */
+  private static class GzipResponse extends HttpServletResponseWrapper {
+    private final int _threshold;
+    private ByteArrayOutputStream _buffer = new ByteArrayOutputStream();
+    private GZIPOutputStream _gzip;
+    private ServletOutputStream _out;
+    private PrintWriter _writer;
+
+    GzipResponse(HttpServletResponse response, int threshold) {
+      super(response);
+      _threshold = threshold;
+    }
+
+    public ServletOutputStream getOutputStream() {
+      if (_writer != null) {
+        throw new IllegalStateException("getWriter() has been called");
+      }
+      return getStream();
+    }
+
+    public PrintWriter getWriter() throws IOException {
+      if (_writer == null) {
+        if (_out != null) {
+          throw new IllegalStateException("getOutputStream() has been called");
+        }
+        _writer = new PrintWriter(new OutputStreamWriter(getStream(),
+            getCharacterEncoding()));
+      }
+      return _writer;
+    }
+
+    private ServletOutputStream getStream() {
+      if (_out == null) {
+        _out = new ServletOutputStream() {
+          public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+          }
+
+          public void write(byte[] b, int off, int len) throws IOException {
+            GzipResponse.this.write(b, off, len);
+          }
+        };
+      }
+      return _out;
+    }
+
+    private void write(byte[] b, int off, int len) throws IOException {
+      if (_gzip == null) {
+        _buffer.write(b, off, len);
+        if (_buffer.size() < _threshold) {
+          return;
+        }
+        setHeader("Content-Encoding", GZIP);
+        _gzip = new GZIPOutputStream(super.getOutputStream(), 8192);
+        _buffer.writeTo(_gzip);
+        _buffer = null;
+        return;
+      }
+      _gzip.write(b, off, len);
+    }
+
+    public void setContentLength(int len) {
+      // the length is set by finish() if the response isn't compressed
+    }
+
+    public void setHeader(String name, String value) {
+      if (!"Content-Length".equalsIgnoreCase(name)) {
+        super.setHeader(name, value);
+      }
+    }
+
+    public void flushBuffer() throws IOException {
+      if (_writer != null) {
+        _writer.flush();
+      }
+    }
+
+    public void resetBuffer() {
+      if (_gzip != null) {
+        throw new IllegalStateException("response is being compressed");
+      }
+      _buffer.reset();
+      super.resetBuffer();
+    }
+
+    public void reset() {
+      resetBuffer();
+      super.reset();
+    }
+
+    /**
+     * Sends what is left of the response
+     */
+    void finish() throws IOException {
+      if (_writer != null) {
+        _writer.flush();
+      }
+      if (_gzip != null) {
+        _gzip.finish();
+        return;
+      }
+      super.setContentLength(_buffer.size());
+      _buffer.writeTo(super.getOutputStream());
+    }
+  }
+}
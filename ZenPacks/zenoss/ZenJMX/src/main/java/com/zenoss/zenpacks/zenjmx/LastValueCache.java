@@ -0,0 +1,149 @@
+///////////////////////////////////////////////////////////////////////////
+//
+//Copyright 2008 Zenoss Inc
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//    http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//
+///////////////////////////////////////////////////////////////////////////
+package com.zenoss.zenpacks.zenjmx;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.zenoss.zenpacks.zenjmx.call.Summary;
+import com.zenoss.zenpacks.zenjmx.call.Utility;
+
+/**
+ * <p> The last numeric value collected of every datapoint, so that
+ * dashboards and threshold checks can read current values without
+ * making JMX calls.  Values are grouped by device; when the cache holds
+ * more than its maximum size the devices least recently collected or
+ * read are dropped. </p>
+ */
+public class LastValueCache {
+
+  private final int _maxSize;
+
+  // values of each device keyed by datasource and datapoint id, in least
+  // recently used order
+  private final LinkedHashMap<String, Map<String, LastValue>> _devices =
+      new LinkedHashMap<String, Map<String, LastValue>>(16, 0.75f, true);
+
+  // number of values held
+  private int _size;
+
+  /**
+   * @param maxSize the number of values to hold
+   */
+  public LastValueCache(int maxSize) {
+    _maxSize = maxSize;
+  }
+
+  /**
+   * Stores the numeric values of a call
+   * @param timestamp the time in ms the values were read
+   */
+  public void put(String device, String datasource, Summary summary,
+      long timestamp) {
+    Map<?, ?> values = summary.getResults();
+    if (values == null) {
+      return;
+    }
+    synchronized (this) {
+      Map<String, LastValue> cached = _devices.get(device);
+      if (cached == null) {
+        cached = new LinkedHashMap<String, LastValue>();
+        _devices.put(device, cached);
+      }
+      for (Map.Entry<?, ?> entry : values.entrySet()) {
+        double value = Utility.toDouble(entry.getValue());
+        if (Double.isNaN(value)) {
+          continue;
+        }
+        String datapoint = (String) entry.getKey();
+        LastValue last = new LastValue(datasource, datapoint, value,
+            timestamp, summary.getRuntime());
+        if (cached.put(datasource + '\u0000' + datapoint, last) == null) {
+          _size++;
+        }
+      }
+      evict();
+    }
+  }
+
+  /**
+   * Returns the values of a device, empty if none are cached
+   */
+  public synchronized List<LastValue> get(String device) {
+    Map<String, LastValue> cached = _devices.get(device);
+    if (cached == null) {
+      return new ArrayList<LastValue>();
+    }
+    return new ArrayList<LastValue>(cached.values());
+  }
+
+  /**
+   * Returns the number of values held
+   */
+  public synchronized int size() {
+    return _size;
+  }
+
+  /**
+   * Drops the least recently used devices until the cache fits, keeping
+   * at least the device most recently used
+   */
+  private void evict() {
+    Iterator<Map<String, LastValue>> iter = _devices.values().iterator();
+    while (_size > _maxSize && _devices.size() > 1) {
+      _size -= iter.next().size();
+      iter.remove();
+    }
+  }
+
+  /**
+   * A value along with when and how fast it was read
+   */
+  public static class LastValue {
+    private final String _datasource;
+    private final String _datapoint;
+    private final double _value;
+    private final long _timestamp;
+    private final long _runtime;
+
+    LastValue(String datasource, String datapoint, double value,
+        long timestamp, long runtime) {
+      _datasource = datasource;
+      _datapoint = datapoint;
+      _value = value;
+      _timestamp = timestamp;
+      _runtime = runtime;
+    }
+
+    public String getDatasource() { return _datasource; }
+
+    public String getDatapoint() { return _datapoint; }
+
+    public double getValue() { return _value; }
+
+    /**
+     * Returns the time in ms the value was read
+     */
+    public long getTimestamp() { return _timestamp; }
+
+    /**
+     * Returns the time in ms the call reading the value took
+     */
+    public long getRuntime() { return _runtime; }
+  }
+}
@@ -0,0 +1,213 @@
+///////////////////////////////////////////////////////////////////////////
+//
+//Copyright 2008 Zenoss Inc
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//    http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//
+///////////////////////////////////////////////////////////////////////////
+package com.zenoss.zenpacks.zenjmx;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.zenoss.jmx.LatencyHistogram;
+
+/**
+ * <p> Serves the collector's metrics in the Prometheus text exposition
+ * format, so its health can be scraped without XML-RPC or JMX. </p>
+ *
+ * <p> The values are those of the ZenJmxCollectorMXBean; latencies are
+ * converted to seconds as Prometheus expects.  With a device parameter,
+ * e.g. /metrics?device=host, the last values collected of the device's
+ * datapoints are served instead. </p>
+ */
+public class MetricsServlet extends HttpServlet {
+
+  private static final long serialVersionUID = 1L;
+
+  public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+  protected void doGet(HttpServletRequest request,
+      HttpServletResponse response) throws IOException {
+    response.setContentType(CONTENT_TYPE);
+    PrintWriter writer = response.getWriter();
+    String device = request.getParameter("device");
+    if (device != null) {
+      LastValueCache cache = ZenJmxService.getLastValueCache();
+      writeLastValues(writer, device, cache == null
+          ? new ArrayList<LastValueCache.LastValue>() : cache.get(device));
+    } else {
+      write(writer, new ZenJmxCollector(CollectorMetrics.instance()),
+          CollectorMetrics.instance());
+    }
+    writer.flush();
+  }
+
+  /**
+   * Writes every metric of the collector
+   */
+  static void write(PrintWriter out, ZenJmxCollectorMXBean collector,
+      CollectorMetrics metrics) {
+    counter(out, "zenjmx_requests_total", "XML-RPC collect requests received",
+        collector.getRequestCount());
+    counter(out, "zenjmx_devices_total", "Devices collected",
+        collector.getDeviceCount());
+    gauge(out, "zenjmx_devices_in_flight", "Devices being collected",
+        collector.getInFlightDevices());
+    gauge(out, "zenjmx_call_queue_depth",
+        "Jobs waiting for a collector thread", collector.getCallQueueDepth());
+    gauge(out, "zenjmx_active_call_threads",
+        "Collector threads running calls", collector.getActiveCallThreads());
+    gauge(out, "zenjmx_device_queue_depth",
+        "Devices of batch requests waiting for a thread",
+        collector.getDeviceQueueDepth());
+    gauge(out, "zenjmx_connection_pool_size",
+        "Connections held by the connection pool",
+        collector.getConnectionPoolSize());
+    histogram(out, "zenjmx_connect_latency_seconds",
+        "Time taken to connect to JMX servers", metrics.getConnectLatency());
+    histogram(out, "zenjmx_call_latency_seconds",
+        "Runtime of JMX calls that returned values", metrics.getCallLatency());
+    histogram(out, "zenjmx_device_latency_seconds",
+        "Time taken to collect a device", metrics.getDeviceLatency());
+
+    header(out, "zenjmx_errors_total", "Errors by type", "counter");
+    for (Map.Entry<String, Long> error : collector.getErrorCounts()
+        .entrySet()) {
+      out.print("zenjmx_errors_total{type=\"");
+      out.print(error.getKey());
+      out.print("\"} ");
+      out.println(error.getValue());
+    }
+  }
+
+  /**
+   * Writes the last values of a device, with the time they were read
+   */
+  static void writeLastValues(PrintWriter out, String device,
+      List<LastValueCache.LastValue> values) {
+    header(out, "zenjmx_last_value", "Last value collected of a datapoint",
+        "gauge");
+    for (LastValueCache.LastValue last : values) {
+      labels(out, "zenjmx_last_value", device, last);
+      out.print(format(last.getValue()));
+      out.print(' ');
+      out.println(last.getTimestamp());
+    }
+    header(out, "zenjmx_last_value_runtime_seconds",
+        "Runtime of the call that read the last value of a datapoint",
+        "gauge");
+    for (LastValueCache.LastValue last : values) {
+      labels(out, "zenjmx_last_value_runtime_seconds", device, last);
+      out.print(seconds(last.getRuntime()));
+      out.print(' ');
+      out.println(last.getTimestamp());
+    }
+  }
+
+  private static void labels(PrintWriter out, String name, String device,
+      LastValueCache.LastValue last) {
+    out.print(name);
+    out.print("{device=\"");
+    out.print(escape(device));
+    out.print("\",datasource=\"");
+    out.print(escape(last.getDatasource()));
+    out.print("\",datapoint=\"");
+    out.print(escape(last.getDatapoint()));
+    out.print("\"} ");
+  }
+
+  /**
+   * Escapes a label value
+   */
+  static String escape(String value) {
+    return value.replace("\\", "\\\\").replace("\"", "\\\"")
+        .replace("\n", "\\n");
+  }
+
+  private static void counter(PrintWriter out, String name, String help,
+      long value) {
+    header(out, name, help, "counter");
+    out.print(name);
+    out.print(' ');
+    out.println(value);
+  }
+
+  private static void gauge(PrintWriter out, String name, String help,
+      long value) {
+    header(out, name, help, "gauge");
+    out.print(name);
+    out.print(' ');
+    out.println(value);
+  }
+
+  private static void histogram(PrintWriter out, String name, String help,
+      LatencyHistogram histogram) {
+    header(out, name, help, "histogram");
+    long[] bounds = LatencyHistogram.getBounds();
+    long[] buckets = histogram.getBuckets();
+    long count = 0;
+    for (int i = 0; i < bounds.length; i++) {
+      count += buckets[i];
+      out.print(name);
+      out.print("_bucket{le=\"");
+      out.print(seconds(bounds[i]));
+      out.print("\"} ");
+      out.println(count);
+    }
+    count += buckets[bounds.length];
+    out.print(name);
+    out.print("_bucket{le=\"+Inf\"} ");
+    out.println(count);
+    out.print(name);
+    out.print("_sum ");
+    out.println(seconds(histogram.getTotal()));
+    out.print(name);
+    out.print("_count ");
+    out.println(count);
+  }
+
+  private static void header(PrintWriter out, String name, String help,
+      String type) {
+    out.print("# HELP ");
+    out.print(name);
+    out.print(' ');
+    out.println(help);
+    out.print("# TYPE ");
+    out.print(name);
+    out.print(' ');
+    out.println(type);
+  }
+
+  /**
+   * Formats a sample value, with infinities written as the text format
+   * expects them
+   */
+  static String format(double value) {
+    if (value == Double.POSITIVE_INFINITY) {
+      return "+Inf";
+    }
+    if (value == Double.NEGATIVE_INFINITY) {
+      return "-Inf";
+    }
+    return String.valueOf(value);
+  }
+
+  private static String seconds(long ms) {
+    return String.valueOf(ms / 1000.0);
+  }
+}
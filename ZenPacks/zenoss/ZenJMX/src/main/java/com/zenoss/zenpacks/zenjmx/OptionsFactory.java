@@ -34,9 +34,66 @@ public class OptionsFactory {
   public static final String CONFIG_FILE = "configfile";
   public static final String LOG_SEVERITY = "v";
   public static final String CONCURRENT_JMX_CALLS = "concurrentJMXCalls";
+  public static final String CONNECTION_POOL_SIZE = "connectionPoolSize";
+  public static final String CONNECTION_IDLE_TIMEOUT = "connectionIdleTimeout";
+  public static final String DISABLE_MBEAN_CACHE = "disableMBeanCache";
+  public static final String COMPUTE_RATES = "computeRates";
+  public static final String COLLECTION_THREADS = "collectionThreads";
+  public static final String COLLECTION_QUEUE_SIZE = "collectionQueueSize";
+  public static final String BATCH_THREADS = "batchThreads";
+  public static final String RESULT_FORMAT = "resultFormat";
+  public static final String CALL_TIMEOUT = "callTimeout";
+  public static final String DEVICE_TIMEOUT = "deviceTimeout";
+  public static final String CONNECT_TIMEOUT = "connectTimeout";
+  public static final String READ_TIMEOUT = "readTimeout";
+  public static final String CONNECT_RETRY_INTERVAL = "connectRetryInterval";
+  public static final String MAX_CONNECT_RETRY_INTERVAL = "maxConnectRetryInterval";
+  public static final String TRACE_SAMPLE_RATE = "traceSampleRate";
+  public static final String SERVER_THREADS = "serverThreads";
+  public static final String SERVER_QUEUE_SIZE = "serverQueueSize";
+  public static final String KEEP_ALIVE_TIMEOUT = "keepAliveTimeout";
+  public static final String ACCEPT_QUEUE_SIZE = "acceptQueueSize";
+  public static final String BINARY_PORT = "binaryPort";
+  public static final String BINARY_ADDRESS = "binaryAddress";
+  public static final String BINARY_CONNECTIONS = "binaryConnections";
+  public static final String GZIP_THRESHOLD = "gzipThreshold";
+  public static final String UNIX_SOCKET = "unixSocket";
+  public static final String RESULT_RING = "resultRing";
+  public static final String RESULT_RING_SIZE = "resultRingSize";
+  public static final String SAMPLE_INTERVAL = "sampleInterval";
+  public static final String SAMPLE_DATASOURCES = "sampleDatasources";
+  public static final String SAMPLE_SIZE = "sampleSize";
+  public static final String SAMPLE_SERIES = "sampleSeries";
+  public static final String LAST_VALUE_CACHE_SIZE = "lastValueCacheSize";
   
   // default values (also set in zenjmx.conf)
   public static final String DEFAULT_LISTENPORT = "9988";
+  public static final String DEFAULT_CONNECTION_POOL_SIZE = "1000";
+  public static final String DEFAULT_CONNECTION_IDLE_TIMEOUT = "900";
+  public static final String DEFAULT_COLLECTION_THREADS = "200";
+  public static final String DEFAULT_COLLECTION_QUEUE_SIZE = "10000";
+  public static final String DEFAULT_BATCH_THREADS = "50";
+  public static final String DEFAULT_RESULT_FORMAT = "legacy";
+  public static final String COMPACT_RESULT_FORMAT = "compact";
+  public static final String DEFAULT_CALL_TIMEOUT = "60";
+  public static final String DEFAULT_DEVICE_TIMEOUT = "300";
+  public static final String DEFAULT_CONNECT_TIMEOUT = "30";
+  public static final String DEFAULT_READ_TIMEOUT = "60";
+  public static final String DEFAULT_CONNECT_RETRY_INTERVAL = "30";
+  public static final String DEFAULT_MAX_CONNECT_RETRY_INTERVAL = "900";
+  public static final String DEFAULT_TRACE_SAMPLE_RATE = "0";
+  public static final String DEFAULT_SERVER_THREADS = "100";
+  public static final String DEFAULT_SERVER_QUEUE_SIZE = "5000";
+  public static final String DEFAULT_KEEP_ALIVE_TIMEOUT = "60";
+  public static final String DEFAULT_ACCEPT_QUEUE_SIZE = "1024";
+  public static final String DEFAULT_BINARY_PORT = "0";
+  public static final String DEFAULT_BINARY_ADDRESS = "127.0.0.1";
+  public static final String DEFAULT_BINARY_CONNECTIONS = "100";
+  public static final String DEFAULT_GZIP_THRESHOLD = "1024";
+  public static final String DEFAULT_RESULT_RING_SIZE = "1048576";
+  public static final String DEFAULT_SAMPLE_INTERVAL = "0";
+  public static final String DEFAULT_SAMPLE_SIZE = "360";
+  public static final String DEFAULT_LAST_VALUE_CACHE_SIZE = "100000";
 
   // singleton instance
   private static OptionsFactory _instance;
@@ -73,6 +130,37 @@ public class OptionsFactory {
     o.addOption(createOption(LISTEN_PORT, true,  "Port to listen for requests"));
     o.addOption(createOption(LOG_SEVERITY, true,  "Severity for logging"));
     o.addOption(createOption(CONCURRENT_JMX_CALLS, false,  "Enable concurrent calls to a JMX server"));
+    o.addOption(createOption(CONNECTION_POOL_SIZE, true,  "Maximum number of JMX connections kept open between collections; 0 disables pooling"));
+    o.addOption(createOption(CONNECTION_IDLE_TIMEOUT, true,  "Seconds an unused JMX connection is kept open"));
+    o.addOption(createOption(COLLECTION_THREADS, true,  "Number of threads making JMX calls"));
+    o.addOption(createOption(COLLECTION_QUEUE_SIZE, true,  "Maximum number of JMX calls waiting for a thread; calls beyond it are reported as errors"));
+    o.addOption(createOption(BATCH_THREADS, true,  "Number of devices of a batch request collected at the same time"));
+    o.addOption(createOption(RESULT_FORMAT, true,  "Format of the collect results: 'legacy' for one result per datapoint, 'compact' for one result per datasource"));
+    o.addOption(createOption(CALL_TIMEOUT, true,  "Seconds a single JMX call may take before it is abandoned; 0 means only the device timeout applies"));
+    o.addOption(createOption(DEVICE_TIMEOUT, true,  "Seconds a collect request waits for all the calls to a device"));
+    o.addOption(createOption(CONNECT_TIMEOUT, true,  "Seconds to wait for a connection to a JMX server; 0 waits forever"));
+    o.addOption(createOption(READ_TIMEOUT, true,  "Seconds to wait for a reply from a JMX server; 0 waits forever"));
+    o.addOption(createOption(CONNECT_RETRY_INTERVAL, true,  "Seconds to wait before connecting again to a JMX server that could not be connected to; doubled after every failure, 0 always connects"));
+    o.addOption(createOption(MAX_CONNECT_RETRY_INTERVAL, true,  "Longest time in seconds to wait before connecting again to a JMX server"));
+    o.addOption(createOption(TRACE_SAMPLE_RATE, true,  "Log a trace of one JMX call in this many at info level, 0 logs none"));
+    o.addOption(createOption(SERVER_THREADS, true,  "Maximum number of threads serving XML-RPC and binary RPC requests"));
+    o.addOption(createOption(SERVER_QUEUE_SIZE, true,  "Maximum number of requests waiting for a thread; XML-RPC connections beyond it are closed, binary RPC requests fail"));
+    o.addOption(createOption(KEEP_ALIVE_TIMEOUT, true,  "Seconds an idle XML-RPC connection is kept open"));
+    o.addOption(createOption(ACCEPT_QUEUE_SIZE, true,  "Maximum number of XML-RPC connections waiting to be accepted"));
+    o.addOption(createOption(GZIP_THRESHOLD, true,  "Size in bytes from which XML-RPC responses are gzip compressed for clients accepting it"));
+    o.addOption(createOption(BINARY_PORT, true,  "Port to listen for binary RPC requests; 0 disables them"));
+    o.addOption(createOption(BINARY_ADDRESS, true,  "Address to listen for binary RPC requests on; the loopback address by default"));
+    o.addOption(createOption(UNIX_SOCKET, true,  "Unix domain socket file to listen for binary RPC requests on; needs Java 16 or later"));
+    o.addOption(createOption(BINARY_CONNECTIONS, true,  "Maximum number of open binary RPC connections; connections beyond it are closed"));
+    o.addOption(createOption(RESULT_RING, true,  "File into which the values collected are also published for local readers, see ResultRing"));
+    o.addOption(createOption(RESULT_RING_SIZE, true,  "Number of values the result ring holds"));
+    o.addOption(createOption(SAMPLE_INTERVAL, true,  "Seconds between samples of the sampled datasources, 0 disables sampling"));
+    o.addOption(createOption(SAMPLE_DATASOURCES, true,  "Comma separated ids of the datasources sampled between collections"));
+    o.addOption(createOption(SAMPLE_SIZE, true,  "Number of samples kept per datapoint between collections"));
+    o.addOption(createOption(SAMPLE_SERIES, false,  "Send every sample along with the summary of the samples"));
+    o.addOption(createOption(LAST_VALUE_CACHE_SIZE, true,  "Number of collected values kept for zenjmx.lastValues, 0 disables the cache"));
+    o.addOption(createOption(DISABLE_MBEAN_CACHE, false,  "Check that an mbean is registered with the JMX server before every call instead of caching registrations"));
+    o.addOption(createOption(COMPUTE_RATES, false,  "Send per second rates of COUNTER, DERIVE and ABSOLUTE datapoints along with their raw values"));
     return o;
   }
 
@@ -0,0 +1,299 @@
+///////////////////////////////////////////////////////////////////////////
+//
+//Copyright 2008 Zenoss Inc
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//    http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//
+///////////////////////////////////////////////////////////////////////////
+package com.zenoss.zenpacks.zenjmx;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.zenoss.zenpacks.zenjmx.call.Summary;
+import com.zenoss.zenpacks.zenjmx.call.Utility;
+
+/**
+ * <p> Turns the values of COUNTER, DERIVE and ABSOLUTE datapoints into
+ * per second rates the way RRD does, so that they can be stored as they
+ * are.  The previous sample of every datapoint is kept in an open
+ * addressing table of primitive arrays, probed by a 64 bit hash of the
+ * device, datasource and datapoint ids.  The ids are kept beside the
+ * samples and compared on a hash match, so that two datapoints whose
+ * hashes collide never share a sample. </p>
+ *
+ * <p> A COUNTER that goes down is taken to have wrapped at 32 bits if
+ * the wrapped difference is less than 2^31; otherwise the counter was
+ * reset and, like a first sample, gives no rate.  DERIVE values may go
+ * down and give negative rates.  ABSOLUTE values are divided by the time
+ * since the previous sample.  COUNTER and DERIVE values must be integers.
+ * </p>
+ *
+ * <p> Samples older than the maximum age are dropped when the table
+ * grows, so that the datapoints of removed devices don't pile up. </p>
+ */
+public class RateCalculator {
+
+  public static final String COUNTER = "COUNTER";
+  public static final String DERIVE = "DERIVE";
+  public static final String ABSOLUTE = "ABSOLUTE";
+
+  private static final long WRAP_32 = 1L << 32;
+
+  private static final int MIN_CAPACITY = 16;
+
+  // time in ms after which a sample is no longer kept
+  private final long _maxAge;
+
+  // key hashes and the ids they were computed from, null ids for an
+  // empty slot
+  private long[] _keys = new long[MIN_CAPACITY];
+  private String[] _devices = new String[MIN_CAPACITY];
+  private String[] _datasources = new String[MIN_CAPACITY];
+  private String[] _datapoints = new String[MIN_CAPACITY];
+  private long[] _values = new long[MIN_CAPACITY];
+  private long[] _times = new long[MIN_CAPACITY];
+  private int _size;
+
+  /**
+   * @param maxAge time in ms after which a sample is no longer kept
+   */
+  public RateCalculator(long maxAge) {
+    _maxAge = maxAge;
+  }
+
+  /**
+   * Returns whether values of the RRD type provided are turned into
+   * rates
+   */
+  public static boolean isRate(String type) {
+    return COUNTER.equals(type) || DERIVE.equals(type)
+        || ABSOLUTE.equals(type);
+  }
+
+  /**
+   * Returns the values of a call with those of rate datapoints replaced
+   * by their rates as Doubles.  Rate datapoints without a rate yet are
+   * left out; other datapoints are kept as they are.
+   * @param now the time in ms the values were read
+   */
+  public Map<String, Object> convert(String device, String datasource,
+      Summary summary, long now) {
+    Map<?, ?> values = summary.getResults();
+    Map<String, String> types = summary.getTypeMap();
+    Map<String, Object> converted = new LinkedHashMap<String, Object>();
+    for (Map.Entry<?, ?> entry : values.entrySet()) {
+      String key = (String) entry.getKey();
+      String type = types == null ? null : types.get(key);
+      if (!isRate(type)) {
+        converted.put(key, entry.getValue());
+        continue;
+      }
+      Double rate = rate(device, datasource, key, type, entry.getValue(),
+          now);
+      if (rate != null) {
+        converted.put(key, rate);
+      }
+    }
+    return converted;
+  }
+
+  /**
+   * Records a sample of a rate datapoint and returns its rate per second
+   * since the previous one; null if there is no previous sample, the
+   * counter was reset or the value isn't usable
+   * @param now the time in ms the value was read
+   */
+  public synchronized Double rate(String device, String datasource,
+      String datapoint, String type, Object value, long now) {
+    long sample;
+    if (ABSOLUTE.equals(type)) {
+      double d = Utility.toDouble(value);
+      if (Double.isNaN(d)) {
+        return null;
+      }
+      sample = Double.doubleToLongBits(d);
+    } else {
+      Long l = toLong(value);
+      if (l == null) {
+        return null;
+      }
+      sample = l;
+    }
+    long key = key(device, datasource, datapoint);
+    int slot = find(key, device, datasource, datapoint);
+    if (_devices[slot] == null) {
+      if ((_size + 1) * 2 > _keys.length) {
+        rehash(now);
+        slot = find(key, device, datasource, datapoint);
+      }
+      _keys[slot] = key;
+      _devices[slot] = device;
+      _datasources[slot] = datasource;
+      _datapoints[slot] = datapoint;
+      _values[slot] = sample;
+      _times[slot] = now;
+      _size++;
+      return null;
+    }
+    long previous = _values[slot];
+    long elapsed = now - _times[slot];
+    if (elapsed <= 0) {
+      // same collection or a clock step; keep the older sample
+      return null;
+    }
+    _values[slot] = sample;
+    _times[slot] = now;
+    double seconds = elapsed / 1000.0;
+    if (ABSOLUTE.equals(type)) {
+      return Double.longBitsToDouble(sample) / seconds;
+    }
+    long delta = sample - previous;
+    if (COUNTER.equals(type) && delta < 0) {
+      if (previous >= 0 && previous < WRAP_32 && sample >= 0
+          && delta + WRAP_32 < WRAP_32 / 2) {
+        delta += WRAP_32;
+      } else {
+        return null;
+      }
+    }
+    return delta / seconds;
+  }
+
+  /**
+   * Returns the number of samples kept
+   */
+  public synchronized int size() {
+    return _size;
+  }
+
+  /**
+   * Returns the slot holding the ids, or the empty slot they would go in
+   * @param key the hash of the ids
+   */
+  private int find(long key, String device, String datasource,
+      String datapoint) {
+    int mask = _keys.length - 1;
+    int slot = (int) (key ^ (key >>> 32)) & mask;
+    while (_devices[slot] != null
+        && !(_keys[slot] == key && device.equals(_devices[slot])
+            && datasource.equals(_datasources[slot])
+            && datapoint.equals(_datapoints[slot]))) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  /**
+   * Returns the empty slot a key goes in when the table is rebuilt, all
+   * keys being distinct
+   */
+  private int findEmpty(long key) {
+    int mask = _keys.length - 1;
+    int slot = (int) (key ^ (key >>> 32)) & mask;
+    while (_devices[slot] != null) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  /**
+   * Drops the samples older than the maximum age and resizes the table
+   * so that it is at most a quarter full
+   */
+  private void rehash(long now) {
+    long[] keys = _keys;
+    String[] devices = _devices;
+    String[] datasources = _datasources;
+    String[] datapoints = _datapoints;
+    long[] values = _values;
+    long[] times = _times;
+    int live = 0;
+    for (int i = 0; i < keys.length; i++) {
+      if (devices[i] != null && now - times[i] <= _maxAge) {
+        live++;
+      }
+    }
+    int capacity = MIN_CAPACITY;
+    while (capacity < (live + 1) * 4) {
+      capacity <<= 1;
+    }
+    _keys = new long[capacity];
+    _devices = new String[capacity];
+    _datasources = new String[capacity];
+    _datapoints = new String[capacity];
+    _values = new long[capacity];
+    _times = new long[capacity];
+    _size = 0;
+    for (int i = 0; i < keys.length; i++) {
+      if (devices[i] != null && now - times[i] <= _maxAge) {
+        int slot = findEmpty(keys[i]);
+        _keys[slot] = keys[i];
+        _devices[slot] = devices[i];
+        _datasources[slot] = datasources[i];
+        _datapoints[slot] = datapoints[i];
+        _values[slot] = values[i];
+        _times[slot] = times[i];
+        _size++;
+      }
+    }
+  }
+
+  /**
+   * Returns the hash the sample of a datapoint is probed by
+   */
+  long key(String device, String datasource, String datapoint) {
+    return hash(device, datasource, datapoint);
+  }
+
+  /**
+   * Returns the 64 bit FNV-1a hash of the ids
+   */
+  static long hash(String device, String datasource, String datapoint) {
+    long h = 0xcbf29ce484222325L;
+    h = hash(h, device);
+    h = hash(h, datasource);
+    h = hash(h, datapoint);
+    return h;
+  }
+
+  private static long hash(long h, String s) {
+    for (int i = 0; i < s.length(); i++) {
+      h = (h ^ s.charAt(i)) * 0x100000001b3L;
+    }
+    // separates the ids so that "ab", "c" differs from "a", "bc"
+    return (h ^ 0xFFFF) * 0x100000001b3L;
+  }
+
+  /**
+   * Returns the value as a long, null if it isn't an integer
+   */
+  private static Long toLong(Object value) {
+    if (value instanceof Long || value instanceof Integer
+        || value instanceof Short || value instanceof Byte) {
+      return ((Number) value).longValue();
+    }
+    if (value == null) {
+      return null;
+    }
+    if (!(value instanceof Number)) {
+      try {
+        return Long.valueOf(value.toString().trim());
+      } catch (NumberFormatException e) {
+        // may still be an integral double, e.g. "12.0"
+      }
+    }
+    double d = Utility.toDouble(value);
+    if (d == Math.rint(d) && Math.abs(d) < Long.MAX_VALUE) {
+      return (long) d;
+    }
+    return null;
+  }
+}
@@ -0,0 +1,231 @@
+///////////////////////////////////////////////////////////////////////////
+//
+//Copyright 2008 Zenoss Inc
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//    http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//
+///////////////////////////////////////////////////////////////////////////
+package com.zenoss.zenpacks.zenjmx;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.zenoss.zenpacks.zenjmx.call.Summary;
+import com.zenoss.zenpacks.zenjmx.call.Utility;
+
+/**
+ * <p> Publishes the numeric datapoint values of every collection into a
+ * memory mapped ring of fixed size records, so that local consumers can
+ * read them without an RPC.  The collector's threads take turns writing,
+ * making the ring single producer; any number of processes may read it
+ * with a ResultRingReader. </p>
+ *
+ * <p> The file starts with a 64 byte header, all numbers big endian: </p>
+ * <pre>
+ *  0 int    magic, 0x5A4A5252 ("ZJRR")
+ *  4 int    layout version, 1
+ *  8 int    record size, 40
+ * 12 int    capacity, the number of records
+ * 16 long   epoch, the time in ms the ring was created
+ * 24 long   published, the number of records written so far
+ * </pre>
+ * <p> followed by the records.  Record n is at 64 + (n % capacity) * 40:
+ * </p>
+ * <pre>
+ *  0 long   stamp, n + 1 once the record is complete, 0 while written
+ *  8 long   timestamp in ms
+ * 16 double value
+ * 24 int    device id
+ * 28 int    datasource id
+ * 32 int    datapoint id
+ * 36 int    check, see check()
+ * </pre>
+ * <p> A reader copies a record and checks that its stamp was n + 1 both
+ * before and after and that the check matches the copy; otherwise the
+ * record was being overwritten meanwhile. </p>
+ *
+ * <p> Memory ordering: the writer clears the stamp, writes the fields
+ * and check, then sets the stamp, with a volatile write between each
+ * step; published is set after the records.  The reader reads the stamp,
+ * the fields and the stamp again with volatile reads in between.  On
+ * HotSpot these keep the JIT and the CPU from reordering the steps, but
+ * the Java memory model doesn't cover memory shared with another
+ * process, so the check is what guarantees that a record accepted by a
+ * reader was not torn: it covers the sequence number and every field.
+ * </p>
+ *
+ * <p> Ids are interned strings listed in the file of the same name plus
+ * ".ids", one "id TAB string" line each, in UTF-8 with backslash, tab and
+ * newline escaped as \\, \t and \n.  An id is listed before the first
+ * record using it. </p>
+ *
+ * <p> When the collector starts it reuses the files, so that readers
+ * mapping them notice the new epoch: the id file is truncated, published
+ * goes back to 0 and every stamp is cleared. </p>
+ */
+public class ResultRing {
+
+  public static final int MAGIC = 0x5A4A5252;
+  public static final int VERSION = 1;
+  public static final int HEADER_SIZE = 64;
+  public static final int RECORD_SIZE = 40;
+
+  static final int CAPACITY_OFFSET = 12;
+  static final int EPOCH_OFFSET = 16;
+  static final int PUBLISHED_OFFSET = 24;
+
+  static final String IDS_SUFFIX = ".ids";
+
+  // written and read around the steps of a record for their ordering
+  private static volatile long _fence;
+
+  private final MappedByteBuffer _buffer;
+  private final int _capacity;
+  private final OutputStream _ids;
+  private final Map<String, Integer> _idMap = new HashMap<String, Integer>();
+  private long _published;
+
+  /**
+   * Creates the ring file and its id file, or starts them over
+   * @param capacity the number of records the ring holds
+   */
+  public ResultRing(String path, int capacity) throws IOException {
+    _capacity = capacity;
+    RandomAccessFile raf = new RandomAccessFile(new File(path), "rw");
+    try {
+      long size = HEADER_SIZE + (long) capacity * RECORD_SIZE;
+      raf.setLength(size);
+      _buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+          size);
+    } finally {
+      // the mapping stays valid
+      raf.close();
+    }
+    _ids = new FileOutputStream(path + IDS_SUFFIX);
+    _buffer.putInt(0, MAGIC);
+    _buffer.putInt(4, VERSION);
+    _buffer.putInt(8, RECORD_SIZE);
+    _buffer.putInt(CAPACITY_OFFSET, capacity);
+    _buffer.putLong(PUBLISHED_OFFSET, 0);
+    for (int i = 0; i < capacity; i++) {
+      _buffer.putLong(HEADER_SIZE + i * RECORD_SIZE, 0);
+    }
+    _buffer.putLong(EPOCH_OFFSET, System.currentTimeMillis());
+  }
+
+  /**
+   * Publishes the numeric values of a call's summary
+   */
+  public void write(String device, String datasource, Summary summary)
+      throws IOException {
+    long now = System.currentTimeMillis();
+    Map<?, ?> values = summary.getResults();
+    if (values == null) {
+      return;
+    }
+    synchronized (this) {
+      int deviceId = intern(device);
+      int datasourceId = intern(datasource);
+      for (Map.Entry<?, ?> entry : values.entrySet()) {
+        double value = Utility.toDouble(entry.getValue());
+        if (!Double.isNaN(value)) {
+          put(deviceId, datasourceId, intern((String) entry.getKey()), now, value);
+        }
+      }
+      storeFence();
+      _buffer.putLong(PUBLISHED_OFFSET, _published);
+    }
+  }
+
+  /**
+   * Writes record number _published
+   */
+  private void put(int device, int datasource, int datapoint,
+      long timestamp, double value) {
+    long seq = _published++;
+    int offset = HEADER_SIZE + (int) (seq % _capacity) * RECORD_SIZE;
+    _buffer.putLong(offset, 0);
+    storeFence();
+    _buffer.putLong(offset + 8, timestamp);
+    _buffer.putDouble(offset + 16, value);
+    _buffer.putInt(offset + 24, device);
+    _buffer.putInt(offset + 28, datasource);
+    _buffer.putInt(offset + 32, datapoint);
+    _buffer.putInt(offset + 36, check(seq, timestamp,
+        Double.doubleToRawLongBits(value), device, datasource, datapoint));
+    storeFence();
+    _buffer.putLong(offset, seq + 1);
+  }
+
+  /**
+   * Returns the check of record number seq: the 64 bit multiplicative
+   * hash of its sequence number and fields, folded to 32 bits
+   */
+  static int check(long seq, long timestamp, long value, int device,
+      int datasource, int datapoint) {
+    long h = (seq + 1) * 0x9E3779B97F4A7C15L;
+    h = (h ^ timestamp) * 0xC2B2AE3D27D4EB4FL;
+    h = (h ^ value) * 0x9E3779B97F4A7C15L;
+    h = (h ^ (((long) device << 32) | (datasource & 0xFFFFFFFFL)))
+        * 0xC2B2AE3D27D4EB4FL;
+    h = (h ^ datapoint) * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32));
+  }
+
+  static void storeFence() {
+    _fence = 0;
+  }
+
+  static void loadFence() {
+    if (_fence != 0) {
+      // never true; the read is what matters
+      _fence = 0;
+    }
+  }
+
+  /**
+   * Returns the id of a string, listing it in the id file the first time
+   */
+  private int intern(String s) throws IOException {
+    Integer id = _idMap.get(s);
+    if (id == null) {
+      id = _idMap.size() + 1;
+      _idMap.put(s, id);
+      _ids.write((id + "\t" + escape(s) + "\n").getBytes("UTF-8"));
+      _ids.flush();
+    }
+    return id;
+  }
+
+  static String escape(String s) {
+    return s.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n");
+  }
+
+  /**
+   * Returns the number of records written so far
+   */
+  public synchronized long getPublished() {
+    return _published;
+  }
+
+  /**
+   * Closes the id file; the ring itself is unmapped when collected
+   */
+  public void close() throws IOException {
+    _ids.close();
+  }
+}
@@ -0,0 +1,203 @@
+///////////////////////////////////////////////////////////////////////////
+//
+//Copyright 2008 Zenoss Inc
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//    http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//
+///////////////////////////////////////////////////////////////////////////
+package com.zenoss.zenpacks.zenjmx;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p> Reads the records of a ResultRing, from this or another process.
+ * The reader starts with the oldest record still in the ring and keeps
+ * up with the collector by polling; records overwritten before they
+ * could be read are counted as lost.  A reader is not thread safe. </p>
+ */
+public class ResultRingReader {
+
+  /**
+   * Receives the records read by poll()
+   */
+  public interface Handler {
+    void result(String device, String datasource, String datapoint,
+        long timestamp, double value);
+  }
+
+  private final String _path;
+  private MappedByteBuffer _buffer;
+  private int _capacity;
+  private long _epoch;
+  private long _next;
+  private long _lost;
+
+  // strings of the id file by id, id 0 unused
+  private final List<String> _names = new ArrayList<String>();
+
+  // bytes of the id file parsed so far
+  private long _idsRead;
+
+  /**
+   * Maps the ring file provided
+   * @throws IOException if the file isn't a ring of a known layout
+   */
+  public ResultRingReader(String path) throws IOException {
+    _path = path;
+    open();
+    _next = Math.max(0, getPublished() - _capacity);
+  }
+
+  private void open() throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(new File(_path), "r");
+    try {
+      _buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+          raf.length());
+    } finally {
+      raf.close();
+    }
+    if (_buffer.capacity() < ResultRing.HEADER_SIZE
+        || _buffer.getInt(0) != ResultRing.MAGIC) {
+      throw new IOException(_path + " is not a result ring");
+    }
+    if (_buffer.getInt(4) != ResultRing.VERSION
+        || _buffer.getInt(8) != ResultRing.RECORD_SIZE) {
+      throw new IOException(_path + " has an unknown layout");
+    }
+    _capacity = _buffer.getInt(ResultRing.CAPACITY_OFFSET);
+    _epoch = _buffer.getLong(ResultRing.EPOCH_OFFSET);
+    _names.clear();
+    _names.add(null);
+    _idsRead = 0;
+  }
+
+  /**
+   * Hands every record published since the last poll to the handler
+   * @return the number of records read
+   */
+  public int poll(Handler handler) throws IOException {
+    if (_buffer.getLong(ResultRing.EPOCH_OFFSET) != _epoch) {
+      // the collector restarted
+      open();
+      _next = 0;
+    }
+    long published = getPublished();
+    ResultRing.loadFence();
+    if (published - _next > _capacity) {
+      _lost += published - _capacity - _next;
+      _next = published - _capacity;
+    }
+    int count = 0;
+    for (; _next < published; _next++) {
+      int offset = ResultRing.HEADER_SIZE + (int) (_next % _capacity)
+          * ResultRing.RECORD_SIZE;
+      long stamp = _buffer.getLong(offset);
+      ResultRing.loadFence();
+      long timestamp = _buffer.getLong(offset + 8);
+      long value = _buffer.getLong(offset + 16);
+      int device = _buffer.getInt(offset + 24);
+      int datasource = _buffer.getInt(offset + 28);
+      int datapoint = _buffer.getInt(offset + 32);
+      int check = _buffer.getInt(offset + 36);
+      ResultRing.loadFence();
+      if (stamp != _next + 1 || _buffer.getLong(offset) != stamp
+          || check != ResultRing.check(_next, timestamp, value, device,
+              datasource, datapoint)) {
+        _lost++;
+        continue;
+      }
+      handler.result(getName(device), getName(datasource),
+          getName(datapoint), timestamp, Double.longBitsToDouble(value));
+      count++;
+    }
+    return count;
+  }
+
+  /**
+   * Returns the number of records that were overwritten before they
+   * could be read
+   */
+  public long getLost() {
+    return _lost;
+  }
+
+  private long getPublished() {
+    return _buffer.getLong(ResultRing.PUBLISHED_OFFSET);
+  }
+
+  private String getName(int id) throws IOException {
+    if (id >= _names.size()) {
+      readIds();
+      if (id >= _names.size()) {
+        throw new IOException("id " + id + " is not listed in " + _path
+            + ResultRing.IDS_SUFFIX);
+      }
+    }
+    return _names.get(id);
+  }
+
+  /**
+   * Parses the lines added to the id file since the last call
+   */
+  private void readIds() throws IOException {
+    FileInputStream in = new FileInputStream(_path + ResultRing.IDS_SUFFIX);
+    byte[] data;
+    try {
+      in.skip(_idsRead);
+      data = new byte[(int) Math.max(0, in.getChannel().size() - _idsRead)];
+      int len = 0;
+      int n;
+      while (len < data.length && (n = in.read(data, len, data.length - len)) > 0) {
+        len += n;
+      }
+    } finally {
+      in.close();
+    }
+    int start = 0;
+    for (int i = 0; i < data.length; i++) {
+      if (data[i] != '\n') {
+        continue;
+      }
+      String line = new String(data, start, i - start, "UTF-8");
+      int tab = line.indexOf('\t');
+      _names.add(unescape(line.substring(tab + 1)));
+      start = i + 1;
+    }
+    // a partly written line is parsed next time
+    _idsRead += start;
+  }
+
+  static String unescape(String s) {
+    if (s.indexOf('\\') < 0) {
+      return s;
+    }
+    StringBuilder out = new StringBuilder(s.length());
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c == '\\' && i + 1 < s.length()) {
+        c = s.charAt(++i);
+        if (c == 't') {
+          c = '\t';
+        } else if (c == 'n') {
+          c = '\n';
+        }
+      }
+      out.append(c);
+    }
+    return out.toString();
+  }
+}
@@ -0,0 +1,338 @@
+///////////////////////////////////////////////////////////////////////////
+//
+//Copyright 2008 Zenoss Inc
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//    http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//
+///////////////////////////////////////////////////////////////////////////
+package com.zenoss.zenpacks.zenjmx;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.zenoss.jmx.JmxClient;
+import com.zenoss.jmx.JmxConnectionPool;
+import com.zenoss.jmx.JmxException;
+import com.zenoss.zenpacks.zenjmx.call.CallFactory;
+import com.zenoss.zenpacks.zenjmx.call.ConfigurationException;
+import com.zenoss.zenpacks.zenjmx.call.JmxCall;
+import com.zenoss.zenpacks.zenjmx.call.Utility;
+
+/**
+ * <p> Samples selected datasources more often than they are collected.
+ * A datasource is sampled from the first time it is collected, every
+ * interval, on a pooled connection; the numeric values of each datapoint
+ * go into a fixed size ring.  Every collection takes the samples
+ * gathered since the previous one, summarized by summarize(). </p>
+ *
+ * <p> A datasource that isn't collected any more is no longer sampled
+ * once ten intervals, or three times the time between its last two
+ * collections, have gone by. </p>
+ */
+public class Sampler {
+
+  // summary keys
+  public static final String MIN = "min";
+  public static final String MAX = "max";
+  public static final String AVG = "avg";
+  public static final String LAST = "last";
+  public static final String COUNT = "count";
+  public static final String TIMES = "times";
+  public static final String VALUES = "values";
+
+  private static final Log _logger = LogFactory.getLog(Sampler.class);
+
+  private final long _interval;
+  private final int _size;
+  private final Set<String> _datasources;
+  private final boolean _series;
+  private final JmxConnectionPool _pool;
+  private final Executor _executor;
+  private final ScheduledExecutorService _scheduler;
+
+  // sampled datasources by device and datasource id
+  private final ConcurrentHashMap<String, Series> _sampled =
+      new ConcurrentHashMap<String, Series>();
+
+  /**
+   * @param interval time in ms between samples
+   * @param size the number of samples kept per datapoint
+   * @param datasources the ids of the datasources to sample
+   * @param series whether summaries include every sample
+   * @param executor runs the samples
+   */
+  public Sampler(long interval, int size, Set<String> datasources,
+      boolean series, JmxConnectionPool pool, Executor executor,
+      ThreadFactory threadFactory) {
+    _interval = interval;
+    _size = size;
+    _datasources = datasources;
+    _series = series;
+    _pool = pool;
+    _executor = executor;
+    _scheduler = new ScheduledThreadPoolExecutor(1, threadFactory);
+    _scheduler.scheduleAtFixedRate(new Runnable() {
+      public void run() {
+        sampleAll();
+      }
+    }, interval, interval, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Returns whether the datasource is sampled
+   */
+  public boolean isSampled(ConfigAdapter config) {
+    return _datasources.contains(config.getDatasourceId());
+  }
+
+  /**
+   * Starts sampling the datasource if it isn't already and returns the
+   * summary of every datapoint sampled since the previous call, keyed by
+   * datapoint id.  Datapoints without samples are left out.
+   */
+  public Map<String, Map<String, Object>> collect(ConfigAdapter config)
+      throws ConfigurationException {
+    String key = config.getDevice() + '\u0000' + config.getDatasourceId();
+    JmxCall call = CallFactory.createCall(config);
+    Series series = _sampled.get(key);
+    if (series == null || !series._configured.equals(call)) {
+      // new, or its configuration changed
+      series = new Series(config, call, CallFactory.createCall(config),
+          Utility.getUrl(config));
+      _sampled.put(key, series);
+    }
+    return series.collect(System.currentTimeMillis());
+  }
+
+  /**
+   * Returns the number of datasources being sampled
+   */
+  public int size() {
+    return _sampled.size();
+  }
+
+  /**
+   * Stops sampling
+   */
+  public void stop() {
+    _scheduler.shutdownNow();
+  }
+
+  /**
+   * Starts a sample of every datasource whose previous sample is done
+   */
+  void sampleAll() {
+    long now = System.currentTimeMillis();
+    Iterator<Series> iter = _sampled.values().iterator();
+    while (iter.hasNext()) {
+      Series series = iter.next();
+      if (series.isExpired(now)) {
+        iter.remove();
+        continue;
+      }
+      if (!series._running.compareAndSet(false, true)) {
+        continue;
+      }
+      try {
+        _executor.execute(series);
+      } catch (RejectedExecutionException e) {
+        // collections come first; skip this sample
+        series._running.set(false);
+      }
+    }
+  }
+
+  /**
+   * Returns min, max, avg, last and count of the samples, plus their
+   * times in seconds and values if series is true
+   */
+  static Map<String, Object> summarize(long[] times, double[] values,
+      int count, boolean series) {
+    double min = Double.POSITIVE_INFINITY;
+    double max = Double.NEGATIVE_INFINITY;
+    double total = 0;
+    for (int i = 0; i < count; i++) {
+      min = Math.min(min, values[i]);
+      max = Math.max(max, values[i]);
+      total += values[i];
+    }
+    Map<String, Object> summary = new HashMap<String, Object>();
+    summary.put(MIN, min);
+    summary.put(MAX, max);
+    summary.put(AVG, total / count);
+    summary.put(LAST, values[count - 1]);
+    summary.put(COUNT, count);
+    if (series) {
+      List<Double> t = new ArrayList<Double>(count);
+      List<Double> v = new ArrayList<Double>(count);
+      for (int i = 0; i < count; i++) {
+        t.add(times[i] / 1000.0);
+        v.add(values[i]);
+      }
+      summary.put(TIMES, t);
+      summary.put(VALUES, v);
+    }
+    return summary;
+  }
+
+  /**
+   * A sampled datasource and the rings of its datapoints
+   */
+  private class Series implements Runnable {
+    private final ConfigAdapter _config;
+    // the call as configured, its summary is left untouched
+    private final JmxCall _configured;
+    private final JmxCall _call;
+    private final String _url;
+    private final Map<String, SampleRing> _rings =
+        new LinkedHashMap<String, SampleRing>();
+    private final AtomicBoolean _running = new AtomicBoolean();
+    private volatile long _lastCollected;
+    private volatile long _gap;
+
+    Series(ConfigAdapter config, JmxCall configured, JmxCall call,
+        String url) {
+      _config = config;
+      _configured = configured;
+      _call = call;
+      _url = url;
+    }
+
+    boolean isExpired(long now) {
+      long ttl = Math.max(10 * _interval, 3 * _gap);
+      return _lastCollected > 0 && now - _lastCollected > ttl;
+    }
+
+    Map<String, Map<String, Object>> collect(long now) {
+      if (_lastCollected > 0) {
+        _gap = now - _lastCollected;
+      }
+      _lastCollected = now;
+      Map<String, Map<String, Object>> summaries =
+          new HashMap<String, Map<String, Object>>();
+      synchronized (_rings) {
+        for (Map.Entry<String, SampleRing> entry : _rings.entrySet()) {
+          Map<String, Object> summary = entry.getValue().drain(_series);
+          if (summary != null) {
+            summaries.put(entry.getKey(), summary);
+          }
+        }
+      }
+      return summaries;
+    }
+
+    public void run() {
+      JmxClient client = null;
+      try {
+        String[] creds = null;
+        if (_config.authenticate()) {
+          creds = new String[] { _config.getUsername(),
+              _config.getPassword() };
+        }
+        client = _pool.borrow(_url, creds);
+        _call.call(client);
+        record(System.currentTimeMillis());
+      } catch (JmxException e) {
+        if (_logger.isDebugEnabled()) {
+          _logger.debug("sampling " + _config.getDatasourceId() + " of "
+              + _config.getDevice() + " failed: " + e.getMessage());
+        }
+      } catch (RuntimeException e) {
+        _logger.warn("error sampling " + _config.getDatasourceId()
+            + " of " + _config.getDevice(), e);
+      } finally {
+        if (client != null) {
+          _pool.release(client);
+        }
+        _running.set(false);
+      }
+    }
+
+    private void record(long now) {
+      Map<?, ?> results = _call.getSummary().getResults();
+      if (results == null) {
+        return;
+      }
+      synchronized (_rings) {
+        for (Map.Entry<?, ?> entry : results.entrySet()) {
+          double value = Utility.toDouble(entry.getValue());
+          if (Double.isNaN(value)) {
+            continue;
+          }
+          String dpId = (String) entry.getKey();
+          SampleRing ring = _rings.get(dpId);
+          if (ring == null) {
+            ring = new SampleRing(_size);
+            _rings.put(dpId, ring);
+          }
+          ring.add(now, value);
+        }
+      }
+    }
+  }
+
+  /**
+   * The latest samples of a datapoint, oldest first
+   */
+  static class SampleRing {
+    private final long[] _times;
+    private final double[] _values;
+    private int _next;
+    private int _count;
+
+    SampleRing(int size) {
+      _times = new long[size];
+      _values = new double[size];
+    }
+
+    void add(long time, double value) {
+      _times[_next] = time;
+      _values[_next] = value;
+      _next = (_next + 1) % _values.length;
+      _count = Math.min(_count + 1, _values.length);
+    }
+
+    /**
+     * Summarizes and removes the samples, null if there are none
+     */
+    Map<String, Object> drain(boolean series) {
+      if (_count == 0) {
+        return null;
+      }
+      long[] times = new long[_count];
+      double[] values = new double[_count];
+      int start = (_next - _count + _values.length) % _values.length;
+      for (int i = 0; i < _count; i++) {
+        int j = (start + i) % _values.length;
+        times[i] = _times[j];
+        values[i] = _values[j];
+      }
+      int count = _count;
+      _count = 0;
+      return summarize(times, values, count, series);
+    }
+  }
+}
@@ -0,0 +1,199 @@
+///////////////////////////////////////////////////////////////////////////
+//
+//Copyright 2008 Zenoss Inc
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//    http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//
+///////////////////////////////////////////////////////////////////////////
+package com.zenoss.zenpacks.zenjmx;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.SocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * <p> Unix domain socket channels, which Java only supports from version
+ * 16.  They are opened through reflection so that the collector still
+ * builds and runs on older JVMs; there isSupported() returns false. </p>
+ */
+public final class UnixSockets {
+
+  // ServerSocketChannel.open(ProtocolFamily), null if unsupported
+  private static final Method OPEN_SERVER;
+
+  // SocketChannel.open(ProtocolFamily)
+  private static final Method OPEN;
+
+  // UnixDomainSocketAddress.of(String)
+  private static final Method ADDRESS;
+
+  // ServerSocketChannel.bind(SocketAddress, int)
+  private static final Method BIND;
+
+  // StandardProtocolFamily.UNIX
+  private static final Object UNIX;
+
+  static {
+    Method openServer = null;
+    Method open = null;
+    Method address = null;
+    Method bind = null;
+    Object unix = null;
+    try {
+      Class<?> family = Class.forName("java.net.ProtocolFamily");
+      Class<?> standard = Class.forName("java.net.StandardProtocolFamily");
+      unix = standard.getField("UNIX").get(null);
+      address = Class.forName("java.net.UnixDomainSocketAddress").getMethod(
+          "of", String.class);
+      openServer = ServerSocketChannel.class.getMethod("open", family);
+      open = SocketChannel.class.getMethod("open", family);
+      bind = ServerSocketChannel.class.getMethod("bind",
+          SocketAddress.class, int.class);
+    } catch (Exception e) {
+      openServer = null;
+    }
+    OPEN_SERVER = openServer;
+    OPEN = open;
+    ADDRESS = address;
+    BIND = bind;
+    UNIX = unix;
+  }
+
+  private UnixSockets() { }
+
+  /**
+   * Tells whether this JVM supports Unix domain sockets
+   */
+  public static boolean isSupported() {
+    return OPEN_SERVER != null;
+  }
+
+  /**
+   * Listens on the socket file provided, which only its owner may connect
+   * to.  A file left behind by a process that is gone is replaced.  The
+   * socket is bound in a directory only the owner may enter and its
+   * permissions restricted there before it is moved to the path, so that
+   * nobody else can connect in between.
+   * @throws IOException if the JVM doesn't support Unix domain sockets or
+   *         another process listens on the file
+   */
+  public static ServerSocketChannel openServer(String path, int backlog)
+      throws IOException {
+    checkSupported();
+    File file = new File(path).getAbsoluteFile();
+    if (file.exists()) {
+      boolean listening;
+      try {
+        connect(path).close();
+        listening = true;
+      } catch (IOException e) {
+        listening = false;
+      }
+      if (listening) {
+        throw new IOException(path + " is in use");
+      }
+      if (!file.delete()) {
+        throw new IOException("cannot remove stale socket " + path);
+      }
+    }
+    File dir = createPrivateDirectory(file);
+    File bound = new File(dir, file.getName());
+    ServerSocketChannel channel = null;
+    try {
+      channel = (ServerSocketChannel) invoke(OPEN_SERVER, null, UNIX);
+      invoke(BIND, channel, invoke(ADDRESS, null, bound.getPath()), backlog);
+      if (!restrictToOwner(bound, false)) {
+        throw new IOException("cannot restrict the permissions of " + path);
+      }
+      if (!bound.renameTo(file)) {
+        throw new IOException("cannot move the socket to " + path);
+      }
+    } catch (IOException e) {
+      if (channel != null) {
+        channel.close();
+      }
+      bound.delete();
+      throw e;
+    } finally {
+      dir.delete();
+    }
+    return channel;
+  }
+
+  /**
+   * Creates an empty directory next to the file provided that only the
+   * owner may list, enter or write
+   */
+  private static File createPrivateDirectory(File file) throws IOException {
+    for (int i = 0; i < 10; i++) {
+      File dir = new File(file.getParentFile(), "." + file.getName() + "."
+          + Long.toHexString(System.nanoTime()));
+      if (dir.mkdir()) {
+        if (!restrictToOwner(dir, true)) {
+          dir.delete();
+          throw new IOException("cannot restrict the permissions of " + dir);
+        }
+        return dir;
+      }
+    }
+    throw new IOException("cannot create a directory next to " + file);
+  }
+
+  /**
+   * Gives the owner read and write permission, and execute permission for
+   * a directory, and takes every permission from everybody else
+   * @return false if the permissions couldn't be changed
+   */
+  private static boolean restrictToOwner(File file, boolean directory) {
+    return file.setReadable(false, false) && file.setWritable(false, false)
+        && file.setExecutable(false, false) && file.setReadable(true, true)
+        && file.setWritable(true, true)
+        && (!directory || file.setExecutable(true, true));
+  }
+
+  /**
+   * Connects to the socket file provided
+   */
+  public static SocketChannel connect(String path) throws IOException {
+    checkSupported();
+    SocketChannel channel = (SocketChannel) invoke(OPEN, null, UNIX);
+    try {
+      channel.connect((SocketAddress) invoke(ADDRESS, null, path));
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    }
+    return channel;
+  }
+
+  private static void checkSupported() throws IOException {
+    if (!isSupported()) {
+      throw new IOException("Unix domain sockets need Java 16 or later");
+    }
+  }
+
+  private static Object invoke(Method method, Object target, Object... args)
+      throws IOException {
+    try {
+      return method.invoke(target, args);
+    } catch (InvocationTargetException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException(String.valueOf(e.getCause()));
+    } catch (IllegalAccessException e) {
+      throw new IOException(e.toString());
+    }
+  }
+}
@@ -0,0 +1,145 @@
+///////////////////////////////////////////////////////////////////////////
+//
+//Copyright 2008 Zenoss Inc
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//    http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//
+///////////////////////////////////////////////////////////////////////////
+package com.zenoss.zenpacks.zenjmx;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.zenoss.jmx.LatencyHistogram;
+
+/**
+ * <p> Exposes the CollectorMetrics and the state of the shared executors
+ * and connection pool on the platform MBeanServer, so the collector can
+ * be watched like any other JMX Agent. </p>
+ */
+public class ZenJmxCollector implements ZenJmxCollectorMXBean {
+
+  // the name the collector is registered under
+  public static final String OBJECT_NAME = "ZenJMX:type=Collector";
+
+  // logger
+  private static final Log _logger = LogFactory.getLog(ZenJmxCollector.class);
+
+  private final CollectorMetrics _metrics;
+
+  public ZenJmxCollector(CollectorMetrics metrics) {
+    _metrics = metrics;
+  }
+
+  /**
+   * Registers the collector's mbean on the platform MBeanServer
+   */
+  public static void register() {
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(
+          new ZenJmxCollector(CollectorMetrics.instance()),
+          new ObjectName(OBJECT_NAME));
+    } catch (Exception e) {
+      _logger.warn("could not register " + OBJECT_NAME + ": "
+          + e.getMessage());
+    }
+  }
+
+  public long getRequestCount() { return _metrics.getRequests(); }
+
+  public double getRequestsPerSecond() { return _metrics.getRequestRate(); }
+
+  public long getDeviceCount() { return _metrics.getDevices(); }
+
+  public double getDevicesPerSecond() { return _metrics.getDeviceRate(); }
+
+  public int getInFlightDevices() { return _metrics.getInFlightDevices(); }
+
+  public int getCallQueueDepth() {
+    return ZenJmxService.getCallExecutor().getQueue().size();
+  }
+
+  public int getActiveCallThreads() {
+    return ZenJmxService.getCallExecutor().getActiveCount();
+  }
+
+  public int getDeviceQueueDepth() {
+    return ZenJmxService.getDeviceExecutor().getQueue().size();
+  }
+
+  public int getConnectionPoolSize() {
+    return ZenJmxService.getConnectionPool().size();
+  }
+
+  public long[] getLatencyBuckets() { return LatencyHistogram.getBounds(); }
+
+  public long[] getConnectLatencyHistogram() {
+    return _metrics.getConnectLatency().getBuckets();
+  }
+
+  public double getConnectLatencyMean() {
+    return _metrics.getConnectLatency().getMean();
+  }
+
+  public long getConnectLatency99thPercentile() {
+    return _metrics.getConnectLatency().getPercentile(99);
+  }
+
+  public long[] getCallLatencyHistogram() {
+    return _metrics.getCallLatency().getBuckets();
+  }
+
+  public double getCallLatencyMean() {
+    return _metrics.getCallLatency().getMean();
+  }
+
+  public long getCallLatency50thPercentile() {
+    return _metrics.getCallLatency().getPercentile(50);
+  }
+
+  public long getCallLatency99thPercentile() {
+    return _metrics.getCallLatency().getPercentile(99);
+  }
+
+  public long getCallLatencyMax() {
+    return _metrics.getCallLatency().getMax();
+  }
+
+  public long[] getDeviceLatencyHistogram() {
+    return _metrics.getDeviceLatency().getBuckets();
+  }
+
+  public long getDeviceLatency50thPercentile() {
+    return _metrics.getDeviceLatency().getPercentile(50);
+  }
+
+  public long getDeviceLatency99thPercentile() {
+    return _metrics.getDeviceLatency().getPercentile(99);
+  }
+
+  public long getCallTimeouts() { return _metrics.getTimeouts(); }
+
+  public Map<String, Long> getErrorCounts() {
+    Map<String, Long> errors = new LinkedHashMap<String, Long>();
+    errors.put("connection", _metrics.getConnectionErrors());
+    errors.put("unreachable", _metrics.getUnreachable());
+    errors.put("call", _metrics.getCallErrors());
+    errors.put("configuration", _metrics.getConfigurationErrors());
+    errors.put("timeout", _metrics.getTimeouts());
+    errors.put("rejected", _metrics.getRejected());
+    return errors;
+  }
+}
@@ -0,0 +1,88 @@
+///////////////////////////////////////////////////////////////////////////
+//
+//Copyright 2008 Zenoss Inc
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//    http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//
+///////////////////////////////////////////////////////////////////////////
+package com.zenoss.zenpacks.zenjmx;
+
+import java.util.Map;
+
+/**
+ * <p> Management interface of the collector itself: load, saturation,
+ * latencies and errors. Latencies are in ms; histograms hold a count per
+ * bucket of LatencyBuckets plus one for everything above the last
+ * bucket. </p>
+ */
+public interface ZenJmxCollectorMXBean {
+
+  /** XML-RPC collect requests received */
+  public long getRequestCount();
+
+  /** Collect requests per second over the last minute */
+  public double getRequestsPerSecond();
+
+  /** Devices collected */
+  public long getDeviceCount();
+
+  /** Devices collected per second over the last minute */
+  public double getDevicesPerSecond();
+
+  /** Devices being collected */
+  public int getInFlightDevices();
+
+  /** Jobs waiting for a collector thread */
+  public int getCallQueueDepth();
+
+  /** Collector threads running calls */
+  public int getActiveCallThreads();
+
+  /** Devices of batch requests waiting for a thread */
+  public int getDeviceQueueDepth();
+
+  /** Connections held by the connection pool */
+  public int getConnectionPoolSize();
+
+  /** Upper bounds of the histogram buckets */
+  public long[] getLatencyBuckets();
+
+  public long[] getConnectLatencyHistogram();
+
+  public double getConnectLatencyMean();
+
+  public long getConnectLatency99thPercentile();
+
+  /** Runtime of calls that returned values */
+  public long[] getCallLatencyHistogram();
+
+  public double getCallLatencyMean();
+
+  public long getCallLatency50thPercentile();
+
+  public long getCallLatency99thPercentile();
+
+  public long getCallLatencyMax();
+
+  public long[] getDeviceLatencyHistogram();
+
+  public long getDeviceLatency50thPercentile();
+
+  public long getDeviceLatency99thPercentile();
+
+  /** Calls abandoned after the call or device timeout */
+  public long getCallTimeouts();
+
+  /**
+   * Errors by type: connection, unreachable, call, configuration, timeout
+   * and rejected
+   */
+  public Map<String, Long> getErrorCounts();
+}
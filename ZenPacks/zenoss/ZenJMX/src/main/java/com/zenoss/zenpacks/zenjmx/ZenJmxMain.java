@@ -25,13 +25,17 @@ import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 import org.apache.xmlrpc.webserver.XmlRpcServlet;
 import org.eclipse.jetty.server.Connector;
+import org.eclipse.jetty.server.DispatcherType;
 import org.eclipse.jetty.server.Server;
-import org.eclipse.jetty.server.bio.SocketConnector;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
+import org.eclipse.jetty.servlet.FilterHolder;
 import org.eclipse.jetty.servlet.ServletHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
 
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.util.EnumSet;
 import java.util.HashMap;
 
 public class ZenJmxMain {
@@ -77,28 +81,108 @@ public class ZenJmxMain {
         String port = config.getProperty(OptionsFactory.LISTEN_PORT,
                 OptionsFactory.DEFAULT_LISTENPORT);
 
+        ZenJmxCollector.register();
+
+        Server server = null;
+        try
+            {
+            server = startServer(Integer.parseInt(port));
+            int binaryPort = Integer.parseInt(config.getProperty(
+                    OptionsFactory.BINARY_PORT,
+                    OptionsFactory.DEFAULT_BINARY_PORT));
+            if ( binaryPort > 0 )
+                {
+                // optional; XML-RPC keeps serving without it
+                try
+                    {
+                    new BinaryRpcServer(binaryPort).start();
+                    }
+                catch (Exception e)
+                    {
+                    _logger.error("cannot serve binary RPC requests on port "
+                            + binaryPort + ": " + e);
+                    }
+                }
+            String unixSocket = config.getProperty(OptionsFactory.UNIX_SOCKET,
+                    "");
+            if ( unixSocket.length() > 0 )
+                {
+                // optional, and needs Java 16; XML-RPC keeps serving
+                try
+                    {
+                    new BinaryRpcServer(unixSocket).start();
+                    }
+                catch (Exception e)
+                    {
+                    _logger.error("cannot serve binary RPC requests on "
+                            + unixSocket + ": " + e);
+                    }
+                }
+            }
+        catch (Exception e)
+            {
+            _logger.fatal("cannot start the XML-RPC server on port " + port,
+                    e);
+            System.exit(10);
+            }
+        server.join();
+        }
+
+    /**
+     * Starts the XML-RPC server on the port provided, with the collector's
+     * metrics at /metrics. Requests and responses may be gzip compressed.
+     *
+     * @return the running server
+     */
+    public static Server startServer(int port) throws Exception
+        {
+        Configuration config = Configuration.instance();
+        int threads = Integer.parseInt(config.getProperty(
+                OptionsFactory.SERVER_THREADS,
+                OptionsFactory.DEFAULT_SERVER_THREADS));
+        int queueSize = Integer.parseInt(config.getProperty(
+                OptionsFactory.SERVER_QUEUE_SIZE,
+                OptionsFactory.DEFAULT_SERVER_QUEUE_SIZE));
+        int keepAlive = Integer.parseInt(config.getProperty(
+                OptionsFactory.KEEP_ALIVE_TIMEOUT,
+                OptionsFactory.DEFAULT_KEEP_ALIVE_TIMEOUT));
+        int acceptQueueSize = Integer.parseInt(config.getProperty(
+                OptionsFactory.ACCEPT_QUEUE_SIZE,
+                OptionsFactory.DEFAULT_ACCEPT_QUEUE_SIZE));
+        int gzipThreshold = Integer.parseInt(config.getProperty(
+                OptionsFactory.GZIP_THRESHOLD,
+                OptionsFactory.DEFAULT_GZIP_THRESHOLD));
+
+        // requests are only given a thread once they have been read, idle
+        // keep-alive connections wait in the selector
+        QueuedThreadPool pool = new QueuedThreadPool();
+        pool.setName("zenjmx-server");
+        pool.setMaxThreads(threads);
+        pool.setMinThreads(Math.min(10, threads));
+        pool.setMaxQueued(queueSize);
+
         Server server = new Server();
-        Connector connector = new SocketConnector();
-        connector.setPort(Integer.parseInt(port));
+        server.setThreadPool(pool);
+        SelectChannelConnector connector = new SelectChannelConnector();
+        connector.setPort(port);
+        connector.setMaxIdleTime(keepAlive * 1000);
+        connector.setAcceptQueueSize(acceptQueueSize);
         server.setConnectors(new Connector[] { connector });
 
         ServletHandler handler = new ServletHandler();
 
         ServletHolder holder = new ServletHolder(new XmlRpcServlet());
         handler.addServletWithMapping(holder, "/");
+        handler.addServletWithMapping(new ServletHolder(new MetricsServlet()),
+                "/metrics");
+        handler.addFilterWithMapping(new FilterHolder(new GzipFilter(
+                gzipThreshold)), "/*", EnumSet.of(DispatcherType.REQUEST));
         // handler.start();
         handler.initialize();
 
         server.setHandler(handler);
-        try
-            {
-            server.start();
-            }
-        catch (Exception e)
-            {
-            System.exit(10);
-            }
-        server.join();
+        server.start();
+        return server;
         }
 
     /**
@@ -147,6 +231,38 @@ public class ZenJmxMain {
         overrideProperty(config, cmd, OptionsFactory.LISTEN_PORT);
         overrideProperty(config, cmd, OptionsFactory.LOG_SEVERITY);
         overrideOption(config, cmd, OptionsFactory.CONCURRENT_JMX_CALLS);
+        overrideProperty(config, cmd, OptionsFactory.CONNECTION_POOL_SIZE);
+        overrideProperty(config, cmd, OptionsFactory.CONNECTION_IDLE_TIMEOUT);
+        overrideOption(config, cmd, OptionsFactory.DISABLE_MBEAN_CACHE);
+        overrideOption(config, cmd, OptionsFactory.COMPUTE_RATES);
+        overrideProperty(config, cmd, OptionsFactory.COLLECTION_THREADS);
+        overrideProperty(config, cmd, OptionsFactory.COLLECTION_QUEUE_SIZE);
+        overrideProperty(config, cmd, OptionsFactory.BATCH_THREADS);
+        overrideProperty(config, cmd, OptionsFactory.RESULT_FORMAT);
+        overrideProperty(config, cmd, OptionsFactory.CALL_TIMEOUT);
+        overrideProperty(config, cmd, OptionsFactory.DEVICE_TIMEOUT);
+        overrideProperty(config, cmd, OptionsFactory.CONNECT_TIMEOUT);
+        overrideProperty(config, cmd, OptionsFactory.READ_TIMEOUT);
+        overrideProperty(config, cmd, OptionsFactory.CONNECT_RETRY_INTERVAL);
+        overrideProperty(config, cmd,
+                OptionsFactory.MAX_CONNECT_RETRY_INTERVAL);
+        overrideProperty(config, cmd, OptionsFactory.TRACE_SAMPLE_RATE);
+        overrideProperty(config, cmd, OptionsFactory.SERVER_THREADS);
+        overrideProperty(config, cmd, OptionsFactory.SERVER_QUEUE_SIZE);
+        overrideProperty(config, cmd, OptionsFactory.KEEP_ALIVE_TIMEOUT);
+        overrideProperty(config, cmd, OptionsFactory.ACCEPT_QUEUE_SIZE);
+        overrideProperty(config, cmd, OptionsFactory.BINARY_PORT);
+        overrideProperty(config, cmd, OptionsFactory.BINARY_ADDRESS);
+        overrideProperty(config, cmd, OptionsFactory.BINARY_CONNECTIONS);
+        overrideProperty(config, cmd, OptionsFactory.GZIP_THRESHOLD);
+        overrideProperty(config, cmd, OptionsFactory.UNIX_SOCKET);
+        overrideProperty(config, cmd, OptionsFactory.RESULT_RING);
+        overrideProperty(config, cmd, OptionsFactory.RESULT_RING_SIZE);
+        overrideProperty(config, cmd, OptionsFactory.SAMPLE_INTERVAL);
+        overrideProperty(config, cmd, OptionsFactory.SAMPLE_DATASOURCES);
+        overrideProperty(config, cmd, OptionsFactory.SAMPLE_SIZE);
+        overrideOption(config, cmd, OptionsFactory.SAMPLE_SERIES);
+        overrideProperty(config, cmd, OptionsFactory.LAST_VALUE_CACHE_SIZE);
         // tell the user about the arguments
         _logger.info("zenjmxjava configuration:");
         _logger.info(config.toString());
@@ -14,22 +14,47 @@
 ///////////////////////////////////////////////////////////////////////////
 package com.zenoss.zenpacks.zenjmx;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import com.zenoss.jmx.CircuitBreaker;
+import com.zenoss.jmx.CircuitOpenException;
 import com.zenoss.jmx.JmxClient;
+import com.zenoss.jmx.JmxConnectionPool;
 import com.zenoss.jmx.JmxException;
+import com.zenoss.zenpacks.zenjmx.call.AttributeBatch;
+import com.zenoss.zenpacks.zenjmx.call.AttributeCall;
 import com.zenoss.zenpacks.zenjmx.call.CallFactory;
 import com.zenoss.zenpacks.zenjmx.call.ConfigurationException;
 import com.zenoss.zenpacks.zenjmx.call.JmxCall;
@@ -39,39 +64,444 @@ import com.zenoss.zenpacks.zenjmx.call.Utility;
 public class ZenJmxService {
   private static final Log _logger = LogFactory.getLog(ZenJmxService.class);
 
+  // connections shared by all collect requests
+  private static JmxConnectionPool _connectionPool;
+
+  // threads shared by all collect requests
+  private static ThreadPoolExecutor _callExecutor;
+
+  // threads collecting the devices of batch requests
+  private static ThreadPoolExecutor _deviceExecutor;
+
+  // ring the collected values are published to, null if there is none
+  private static ResultRing _resultRing;
+
+  // whether the result ring was looked up in the configuration
+  private static boolean _resultRingConfigured;
+
+  // previous samples of rate datapoints, null unless rates are computed
+  private static RateCalculator _rateCalculator;
+
+  // time in ms after which the previous sample of a rate is forgotten
+  private static final long RATE_MAX_AGE = 3600 * 1000;
+
+  // samples datasources between collections, null if none are sampled
+  private static Sampler _sampler;
+
+  // whether the sampler was looked up in the configuration
+  private static boolean _samplerConfigured;
+
+  // last value of every datapoint, null if not kept
+  private static LastValueCache _lastValues;
+
+  // whether the last value cache was looked up in the configuration
+  private static boolean _lastValuesConfigured;
+
+  // configurations stored by register(), keyed by the caller's key
+  private static final ConcurrentHashMap<String, Registration> _registrations =
+      new ConcurrentHashMap<String, Registration>();
+
+  // last version handed out by register(); starts from the clock so that
+  // versions from before a restart aren't mistaken for current ones
+  private static final AtomicInteger _lastVersion = new AtomicInteger(
+      (int) (System.currentTimeMillis() / 1000));
+
+  /**
+   * Returns the connection pool shared by all collect requests, creating it
+   * from the configuration on first use.
+   */
+  static synchronized JmxConnectionPool getConnectionPool() {
+    if (_connectionPool == null) {
+      Configuration config = Configuration.instance();
+      int size = Integer.parseInt(config.getProperty(
+          OptionsFactory.CONNECTION_POOL_SIZE,
+          OptionsFactory.DEFAULT_CONNECTION_POOL_SIZE));
+      long idleTimeout = Long.parseLong(config.getProperty(
+          OptionsFactory.CONNECTION_IDLE_TIMEOUT,
+          OptionsFactory.DEFAULT_CONNECTION_IDLE_TIMEOUT));
+      _connectionPool = new JmxConnectionPool(size, idleTimeout * 1000);
+      _connectionPool.setRegistrationCacheEnabled(!config.propertyExists(
+          OptionsFactory.DISABLE_MBEAN_CACHE));
+      int connectTimeout = Integer.parseInt(config.getProperty(
+          OptionsFactory.CONNECT_TIMEOUT,
+          OptionsFactory.DEFAULT_CONNECT_TIMEOUT));
+      int readTimeout = Integer.parseInt(config.getProperty(
+          OptionsFactory.READ_TIMEOUT, OptionsFactory.DEFAULT_READ_TIMEOUT));
+      _connectionPool.setTimeouts(connectTimeout * 1000, readTimeout * 1000);
+      long retryInterval = Long.parseLong(config.getProperty(
+          OptionsFactory.CONNECT_RETRY_INTERVAL,
+          OptionsFactory.DEFAULT_CONNECT_RETRY_INTERVAL));
+      long maxRetryInterval = Long.parseLong(config.getProperty(
+          OptionsFactory.MAX_CONNECT_RETRY_INTERVAL,
+          OptionsFactory.DEFAULT_MAX_CONNECT_RETRY_INTERVAL));
+      _connectionPool.setConnectLatency(CollectorMetrics.instance()
+          .getConnectLatency());
+      if (retryInterval > 0) {
+        _connectionPool.setCircuitBreaker(new CircuitBreaker(
+            retryInterval * 1000, maxRetryInterval * 1000));
+      }
+    }
+    return _connectionPool;
+  }
+
+  /**
+   * Returns the executor that runs the JMX calls of all collect requests,
+   * creating it from the configuration on first use.  The executor has a
+   * fixed number of threads and a bounded queue; calls that don't fit are
+   * rejected.
+   */
+  static synchronized ThreadPoolExecutor getCallExecutor() {
+    if (_callExecutor == null) {
+      Configuration config = Configuration.instance();
+      int threads = Integer.parseInt(config.getProperty(
+          OptionsFactory.COLLECTION_THREADS,
+          OptionsFactory.DEFAULT_COLLECTION_THREADS));
+      int queueSize = Integer.parseInt(config.getProperty(
+          OptionsFactory.COLLECTION_QUEUE_SIZE,
+          OptionsFactory.DEFAULT_COLLECTION_QUEUE_SIZE));
+      _callExecutor = new ThreadPoolExecutor(threads, threads, 60,
+          TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queueSize),
+          new CollectorThreadFactory("zenjmx-collector-"),
+          new ThreadPoolExecutor.AbortPolicy());
+    }
+    return _callExecutor;
+  }
+
+  /**
+   * Returns the ring the collected values are also published to, creating
+   * it from the configuration on first use; null if there is none or it
+   * couldn't be created.
+   */
+  static synchronized ResultRing getResultRing() {
+    if (!_resultRingConfigured) {
+      _resultRingConfigured = true;
+      Configuration config = Configuration.instance();
+      String path = config.getProperty(OptionsFactory.RESULT_RING, "");
+      if (path.length() > 0) {
+        int size = Integer.parseInt(config.getProperty(
+            OptionsFactory.RESULT_RING_SIZE,
+            OptionsFactory.DEFAULT_RESULT_RING_SIZE));
+        try {
+          _resultRing = new ResultRing(path, size);
+          _logger.info("publishing results to " + path);
+        } catch (IOException e) {
+          _logger.error("cannot create the result ring " + path, e);
+        }
+      }
+    }
+    return _resultRing;
+  }
+
+  /**
+   * Returns the calculator turning counters into rates, creating it on
+   * first use; null if rates aren't computed
+   */
+  static synchronized RateCalculator getRateCalculator() {
+    if (_rateCalculator == null && Configuration.instance().propertyExists(
+        OptionsFactory.COMPUTE_RATES)) {
+      _rateCalculator = new RateCalculator(RATE_MAX_AGE);
+    }
+    return _rateCalculator;
+  }
+
+  /**
+   * Returns the sampler of the datasources sampled between collections,
+   * creating it from the configuration on first use; null if no
+   * datasource is sampled
+   */
+  static synchronized Sampler getSampler() {
+    if (!_samplerConfigured) {
+      _samplerConfigured = true;
+      Configuration config = Configuration.instance();
+      int interval = Integer.parseInt(config.getProperty(
+          OptionsFactory.SAMPLE_INTERVAL,
+          OptionsFactory.DEFAULT_SAMPLE_INTERVAL));
+      Set<String> datasources = new HashSet<String>();
+      for (String id : config.getProperty(OptionsFactory.SAMPLE_DATASOURCES,
+          "").split(",")) {
+        if (id.trim().length() > 0) {
+          datasources.add(id.trim());
+        }
+      }
+      if (interval > 0 && !datasources.isEmpty()) {
+        int size = Integer.parseInt(config.getProperty(
+            OptionsFactory.SAMPLE_SIZE, OptionsFactory.DEFAULT_SAMPLE_SIZE));
+        _sampler = new Sampler(interval * 1000L, size, datasources,
+            config.propertyExists(OptionsFactory.SAMPLE_SERIES),
+            getConnectionPool(), getCallExecutor(),
+            new CollectorThreadFactory("zenjmx-sampler-"));
+      }
+    }
+    return _sampler;
+  }
+
+  /**
+   * Returns the cache of the last values collected, creating it from the
+   * configuration on first use; null if values aren't cached
+   */
+  static synchronized LastValueCache getLastValueCache() {
+    if (!_lastValuesConfigured) {
+      _lastValuesConfigured = true;
+      int size = Integer.parseInt(Configuration.instance().getProperty(
+          OptionsFactory.LAST_VALUE_CACHE_SIZE,
+          OptionsFactory.DEFAULT_LAST_VALUE_CACHE_SIZE));
+      if (size > 0) {
+        _lastValues = new LastValueCache(size);
+      }
+    }
+    return _lastValues;
+  }
+
   public Object collect(List<Map<?, ?>> dsConfigs) throws Exception {
+    CollectorMetrics.instance().requestReceived();
+    return collect(toConfigs(dsConfigs));
+  }
+
+  /**
+   * Returns the executor that collects the devices of collectBatch()
+   * requests, creating it from the configuration on first use.  Device
+   * jobs wait for their calls, which run on the call executor.
+   */
+  static synchronized ThreadPoolExecutor getDeviceExecutor() {
+    if (_deviceExecutor == null) {
+      int threads = Integer.parseInt(Configuration.instance().getProperty(
+          OptionsFactory.BATCH_THREADS, OptionsFactory.DEFAULT_BATCH_THREADS));
+      _deviceExecutor = new ThreadPoolExecutor(threads, threads, 60,
+          TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+          new CollectorThreadFactory("zenjmx-device-"));
+    }
+    return _deviceExecutor;
+  }
+
+  /**
+   * Registers the datasource configurations of a device so that they can
+   * be collected with collectById() without being sent again.  A new
+   * registration under the same key replaces the previous one.
+   * @param key identifies the configurations, e.g. device and connection
+   * @return the version to pass to collectById()
+   */
+  public Object register(String key, List<Map<?, ?>> dsConfigs) {
+    ConfigAdapter[] configs = toConfigs(dsConfigs);
+    // validate once; invalid datasources still report an error when
+    // they are collected
+    for (ConfigAdapter config : configs) {
+      try {
+        CallFactory.createCall(config);
+      } catch (ConfigurationException e) {
+        _logger.warn("invalid datasource registered for " + key + ": "
+            + e.getMessage());
+      }
+    }
+    int version = _lastVersion.incrementAndGet();
+    _registrations.put(key, new Registration(version, configs));
+    if (_logger.isDebugEnabled()) {
+      _logger.debug("registered " + configs.length + " datasources for "
+          + key + " as version " + version);
+    }
+    return version;
+  }
+
+  /**
+   * Collects the configurations registered under the key provided
+   * @throws ConfigurationException if the key isn't registered or was
+   *         registered with another version; the caller has to register
+   *         the configurations again
+   */
+  public Object collectById(String key, int version) throws Exception {
+    CollectorMetrics.instance().requestReceived();
+    ConfigAdapter[] configs = getRegistered(key, version);
+    if (configs == null) {
+      throw new ConfigurationException("version " + version + " of "
+          + key + " is not registered");
+    }
+    return collect(configs);
+  }
+
+  /**
+   * Collects many devices with one request.  Each entry of the request
+   * maps a key either to the version of the configurations registered
+   * under it or to a list of datasource configurations.  The devices are
+   * collected in parallel on a bounded number of threads.
+   * @return a map with "results", the results of each key, and
+   *         "unregistered", the keys whose version isn't registered
+   */
+  public Object collectBatch(Map<String, Object> requests) throws Exception {
+    CollectorMetrics.instance().requestReceived();
+    long start = System.currentTimeMillis();
+    Map<String, Future<Object>> futures = new LinkedHashMap<String, Future<Object>>();
+    List<String> unregistered = new ArrayList<String>();
+    ThreadPoolExecutor executor = getDeviceExecutor();
+    for (Entry<String, Object> request : requests.entrySet()) {
+      final ConfigAdapter[] configs = getConfigs(request.getKey(),
+          request.getValue());
+      if (configs == null) {
+        unregistered.add(request.getKey());
+        continue;
+      }
+      futures.put(request.getKey(), executor.submit(new Callable<Object>() {
+        public Object call() {
+          return collect(configs);
+        }
+      }));
+    }
+
+    Map<String, Object> results = new HashMap<String, Object>();
+    for (Entry<String, Future<Object>> future : futures.entrySet()) {
+      try {
+        results.put(future.getKey(), future.getValue().get());
+      } catch (ExecutionException e) {
+        _logger.error("error collecting " + future.getKey(), e.getCause());
+        results.put(future.getKey(), new ArrayList<Object>());
+      }
+    }
+    _logger.info(String.format("finished batch of %1$s devices in %2$s ms",
+        requests.size(), (System.currentTimeMillis() - start)));
+
+    Map<String, Object> response = new HashMap<String, Object>();
+    response.put("results", results);
+    response.put("unregistered", unregistered);
+    return response;
+  }
+
+  /**
+   * Returns the last value collected of every datapoint of a device, as
+   * maps of datasourceId, dpId, value, timestamp in seconds and runtime
+   * of the call in ms; empty if none are cached.  No JMX call is made.
+   */
+  public Object lastValues(String deviceId) {
+    List<Map<String, Object>> results = new ArrayList<Map<String, Object>>();
+    LastValueCache cache = getLastValueCache();
+    if (cache == null) {
+      return results;
+    }
+    for (LastValueCache.LastValue last : cache.get(deviceId)) {
+      Map<String, Object> result = new HashMap<String, Object>();
+      result.put(ConfigAdapter.DATASOURCE_ID, last.getDatasource());
+      result.put("dpId", last.getDatapoint());
+      result.put("value", last.getValue());
+      result.put("timestamp", last.getTimestamp() / 1000.0);
+      result.put("runtime", (int) last.getRuntime());
+      results.add(result);
+    }
+    return results;
+  }
 
+  /**
+   * Forgets the configurations registered under the key provided unless
+   * they have been replaced by another version
+   */
+  public Object unregister(String key, int version) {
+    Registration registration = _registrations.get(key);
+    if (registration == null || registration._version != version) {
+      return false;
+    }
+    return _registrations.remove(key, registration);
+  }
+
+  private Object collect(ConfigAdapter[] configs) {
     long start = System.currentTimeMillis();
     if (_logger.isDebugEnabled()) {
-      _logger.debug("processing " + dsConfigs.size() + " datasources");
+      _logger.debug("processing " + configs.length + " datasources");
     }
     boolean concurrentCalls = Configuration.instance().propertyExists(
         OptionsFactory.CONCURRENT_JMX_CALLS);
-    JMXCollector collector = new JMXCollector(dsConfigs, concurrentCalls);
-    List<Map<String, String>> result = collector.collect();
+    JMXCollector collector = new JMXCollector(configs, concurrentCalls);
+    collector.setCompactResults(OptionsFactory.COMPACT_RESULT_FORMAT
+        .equals(Configuration.instance().getProperty(
+            OptionsFactory.RESULT_FORMAT,
+            OptionsFactory.DEFAULT_RESULT_FORMAT)));
+    collector.setRateCalculator(getRateCalculator());
+    collector.setSampler(getSampler());
+    CollectorMetrics metrics = CollectorMetrics.instance();
+    metrics.deviceStarted();
+    List<Map<String, Object>> result;
+    try {
+      result = collector.collect();
+    } finally {
+      metrics.deviceFinished(System.currentTimeMillis() - start);
+    }
     String msg = "finished processing %1$s datasources for device %2$s in %3$s ms";
-    _logger.info(String.format(msg, dsConfigs.size(), collector._deviceId,
+    _logger.info(String.format(msg, configs.length, collector._deviceId,
         (System.currentTimeMillis() - start)));
     return result;
   }
 
+  /**
+   * Returns the configurations registered under the key, null if the
+   * version provided isn't the registered one
+   */
+  private static ConfigAdapter[] getRegistered(String key, int version) {
+    Registration registration = _registrations.get(key);
+    if (registration == null || registration._version != version) {
+      return null;
+    }
+    return registration._configs;
+  }
+
+  /**
+   * Returns the configurations of a collectBatch() request, which is
+   * either a registered version or a list of configurations
+   */
+  @SuppressWarnings("unchecked")
+  private static ConfigAdapter[] getConfigs(String key, Object request) {
+    if (request instanceof Integer) {
+      return getRegistered(key, (Integer) request);
+    }
+    if (request instanceof Object[]) {
+      request = Arrays.asList((Object[]) request);
+    }
+    return toConfigs((List<Map<?, ?>>) request);
+  }
+
+  private static ConfigAdapter[] toConfigs(List<Map<?, ?>> dsConfigs) {
+    ConfigAdapter[] configs = new ConfigAdapter[dsConfigs.size()];
+    for (int i = 0; i < configs.length; i++) {
+      configs[i] = new ConfigAdapter(dsConfigs.get(i));
+    }
+    return configs;
+  }
+
+  /**
+   * Configurations stored by register()
+   */
+  private static class Registration {
+    private final int _version;
+    private final ConfigAdapter[] _configs;
+
+    Registration(int version, ConfigAdapter[] configs) {
+      _version = version;
+      _configs = configs;
+    }
+  }
+
   public static class JMXCollector {
     private static final String SUMMARY = "summary";
+    // largest magnitude up to which a double holds every long exactly
+    private static final long MAX_EXACT_DOUBLE = 1L << 53;
     // logger
     private static final Log _logger = LogFactory.getLog(JMXCollector.class);
     boolean _concurrentServerCalls = false;
+    boolean _compactResults = false;
     boolean _authenticate;
     String _username;
     String _password;
     String _deviceId;
     ConfigAdapter _config;
     List<ConfigAdapter> _configs = new ArrayList<ConfigAdapter>();
+    ResultRing _resultRing;
+    LastValueCache _lastValues;
+    RateCalculator _rates;
+    Sampler _sampler;
 
     public JMXCollector(List<Map<?, ?>> dataSourceConfigs, boolean concurrent) {
+      this(toConfigs(dataSourceConfigs), concurrent);
+    }
+
+    public JMXCollector(ConfigAdapter[] configs, boolean concurrent) {
       _concurrentServerCalls = concurrent;
       ConfigAdapter config = null;
-      for (Map<?, ?> configMap : dataSourceConfigs) {
-        config = new ConfigAdapter(configMap);
+      for (ConfigAdapter configAdapter : configs) {
+        config = configAdapter;
         _configs.add(config);
       }
       // we assume all configs are to the same device
@@ -86,124 +516,253 @@ public class ZenJmxService {
 
     }
 
+    /**
+     * Turns on the compact result format: one result per datasource
+     * instead of one per datapoint
+     */
+    public void setCompactResults(boolean compact) {
+      _compactResults = compact;
+    }
+
+    /**
+     * Sets the calculator turning the values of COUNTER, DERIVE and
+     * ABSOLUTE datapoints into rates, null to send raw values
+     */
+    public void setRateCalculator(RateCalculator rates) {
+      _rates = rates;
+    }
+
+    /**
+     * Sets the sampler whose samples are sent along with the values of
+     * sampled datasources, null if none are sampled
+     */
+    public void setSampler(Sampler sampler) {
+      _sampler = sampler;
+    }
+
     /**
      * collects jmx values and returns a list of results.
      * 
      * @param dsConfigs
      * @return
      */
-    public List<Map<String, String>> collect() {
-      List<Map<String, String>> result = new LinkedList<Map<String, String>>();
+    public List<Map<String, Object>> collect() {
+      List<Map<String, Object>> result = new LinkedList<Map<String, Object>>();
+      JmxConnectionPool pool = getConnectionPool();
       JmxClient client = null;
+      _resultRing = getResultRing();
+      _lastValues = getLastValueCache();
 
       try {
-        client = createJmxClient();
-        client.connect();
+        client = pool.borrow(Utility.getUrl(_config), getCredentials());
         result.addAll(doCollect(client));
+      } catch (CircuitOpenException e) {
+        // the server was down moments ago; one error is enough
+        CollectorMetrics.instance().serverUnreachable();
+        result.add(createConnectionError(_config,
+            "server unreachable", e));
       } catch (Throwable e) {
+        CollectorMetrics.instance().connectionFailed();
         for(ConfigAdapter config : _configs)
             {
-            Map<String, String> error = createConnectionError(config,
+            Map<String, Object> error = createConnectionError(config,
                     "error connecting to server", e);
             result.add(error);
             }
 
       } finally {
         if (client != null) {
-          try {
-            client.close();
-          } catch (JmxException e) {
-          for(ConfigAdapter config : _configs)
-              {
-              Map<String, String> error = createConnectionError(config, 
-                      "error closing connection to server", e);
-              result.add(error);
-              }
-          }
+          pool.release(client);
         }
       }
       return result;
     }
 
-    private List<Map<String, String>> doCollect(final JmxClient client) {
+    private List<Map<String, Object>> doCollect(final JmxClient client) {
 
       // all calls should be to same server with same credentials
       int size = _configs.size();
-      final List<Map<String, String>> results = Collections
-          .synchronizedList(new ArrayList<Map<String, String>>(size));
-      // used to keep track of running calls
+      final List<Map<String, Object>> results = Collections
+          .synchronizedList(new ArrayList<Map<String, Object>>(size));
+      // used to keep track of unfinished calls
       final Map<Summary, ConfigAdapter> summaries = Collections
           .synchronizedMap(new HashMap<Summary, ConfigAdapter>());
-      ExecutorService es = null;
-      // create an single or multi-threaded executor
+
+      Configuration configuration = Configuration.instance();
+      long callTimeout = 1000 * Long.parseLong(configuration.getProperty(
+          OptionsFactory.CALL_TIMEOUT, OptionsFactory.DEFAULT_CALL_TIMEOUT));
+      long deviceTimeout = 1000 * Long.parseLong(configuration.getProperty(
+          OptionsFactory.DEVICE_TIMEOUT,
+          OptionsFactory.DEFAULT_DEVICE_TIMEOUT));
+      if (callTimeout <= 0 || callTimeout > deviceTimeout) {
+        callTimeout = deviceTimeout;
+      }
+      long deadline = System.currentTimeMillis() + deviceTimeout;
+
+      List<CallGroup> groups = createCallGroups(results);
+      for (CallGroup group : groups) {
+        group.track(client, results, summaries);
+      }
+
+      // submit the jobs to the shared executor; without concurrent calls
+      // a single runner works through the groups one after another
+      ThreadPoolExecutor executor = getCallExecutor();
+      Queue<CallGroup> queue = new ConcurrentLinkedQueue<CallGroup>();
+      AtomicInteger runner = new AtomicInteger();
+      List<CallGroup> pending = new ArrayList<CallGroup>(groups.size());
       if (_concurrentServerCalls) {
-        es = Executors.newCachedThreadPool();
-      } else {
-        es = Executors.newSingleThreadExecutor();
+        for (CallGroup group : groups) {
+          try {
+            executor.execute(group.getTask());
+            pending.add(group);
+          } catch (RejectedExecutionException e) {
+            _logger.warn("collection queue is full; not running call for "
+                + "device " + _deviceId);
+            group.reject();
+          }
+        }
+      } else if (!groups.isEmpty()) {
+        queue.addAll(groups);
+        pending.addAll(groups);
+        startRunner(executor, queue, runner);
       }
-      for (final ConfigAdapter config : _configs) {
-        try {
 
-          final JmxCall call = CallFactory.createCall(config);
-          // create job to query and create result
-          Runnable job = new Runnable() {
-            public void run() {
-              Summary summary = call.getSummary();
-              // keep track of unfinished summaries
-              summaries.put(summary, config);
-              try {
-                call.call(client);
-                results.addAll(createResult(summary, config));
-              } catch (JmxException e) {
-                results.add(createError(summary, config, e));
-              } finally {
-                summaries.remove(summary);
+      // wait for the jobs, abandoning any call that runs past its deadline
+      try {
+        while (!pending.isEmpty()) {
+          long now = System.currentTimeMillis();
+          if (now >= deadline) {
+            _logger.warn("timed out waiting for calls to device " + _deviceId);
+            break;
+          }
+          long wake = Math.min(deadline, now + callTimeout);
+          Iterator<CallGroup> iter = pending.iterator();
+          while (iter.hasNext()) {
+            CallGroup group = iter.next();
+            long started = group.getCallStarted();
+            if (group.getTask().isDone()) {
+              iter.remove();
+            } else if (started > 0 && now - started >= callTimeout) {
+              _logger.warn("abandoning call to " + group.getObjectName()
+                  + " on device " + _deviceId + " after "
+                  + (now - started) + " ms");
+              iter.remove();
+              group.timeOut();
+              if (!_concurrentServerCalls && !queue.isEmpty()) {
+                // the abandoned runner may never return; if it does it
+                // sees it was replaced and stops
+                startRunner(executor, queue, runner);
               }
+            } else if (started > 0) {
+              wake = Math.min(wake, started + callTimeout);
             }
-
-            
-          };
-          // submit job to be run
-          es.execute(job);
-        } catch (ConfigurationException e) {
-          Map<String, String> err = createError(config, e);
-          results.add(err);
+          }
+          if (!pending.isEmpty()) {
+            pending.get(0).await(wake - now);
+          }
         }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
 
+      // anything still running is abandoned and reported as timed out
+      for (CallGroup group : pending) {
+        group.timeOut();
+      }
+      // calls finishing after this point don't change what we return
+      synchronized (results) {
+        return new ArrayList<Map<String, Object>>(results);
       }
-      // shutdown the executor service and wait for all pending jobs to
-      // finish
-      es.shutdown();
+    }
+
+    /**
+     * Starts a job that runs the queued groups one after another, in place
+     * of any job started before.  A replaced job stops once its current
+     * group returns, so that only one job takes groups from the queue.  If
+     * the executor is full the queued groups are reported as not run.
+     * @param current the generation of the job taking groups from the queue
+     */
+    private void startRunner(ThreadPoolExecutor executor,
+        final Queue<CallGroup> queue, final AtomicInteger current) {
+      final int generation = current.incrementAndGet();
+      Runnable runner = new Runnable() {
+        public void run() {
+          CallGroup group;
+          while (current.get() == generation
+              && (group = queue.poll()) != null) {
+            group.getTask().run();
+            // don't let the cancellation of one group interrupt the next
+            Thread.interrupted();
+          }
+        }
+      };
       try {
-        es.awaitTermination(5 * 60 * 1000, TimeUnit.MILLISECONDS);
-      } catch (InterruptedException e) {
-        for (Entry<Summary, ConfigAdapter> entry : summaries.entrySet()) {
-          results.add(createTimeOutError(entry.getKey(), entry.getValue()));
+        executor.execute(runner);
+      } catch (RejectedExecutionException e) {
+        _logger.warn("collection queue is full; not running calls for "
+            + "device " + _deviceId);
+        CallGroup group;
+        while ((group = queue.poll()) != null) {
+          group.reject();
         }
       }
-      return results;
     }
 
-    private JmxClient createJmxClient() throws ConfigurationException {
-      JmxClient jmxClient = null;
-      String url = Utility.getUrl(_config);
-      jmxClient = new JmxClient(url);
-      if (_authenticate) {
-        String[] creds = new String[] { _username, _password };
-        jmxClient.setCredentials(creds);
+    /**
+     * Creates the calls for every datasource and groups them into jobs.
+     * Attribute calls on the same mbean end up in the same group.
+     * Datasources that can't be turned into calls produce an error in
+     * the results.
+     */
+    private List<CallGroup> createCallGroups(
+        List<Map<String, Object>> results) {
+      List<CallGroup> groups = new ArrayList<CallGroup>();
+      Map<String, CallGroup> attributeGroups = new HashMap<String, CallGroup>();
+      for (ConfigAdapter config : _configs) {
+        try {
+          JmxCall call = CallFactory.createCall(config);
+          CallGroup group = null;
+          if (call instanceof AttributeCall) {
+            group = attributeGroups.get(call.getObjectName());
+          }
+          if (group == null) {
+            group = new CallGroup();
+            groups.add(group);
+            if (call instanceof AttributeCall) {
+              attributeGroups.put(call.getObjectName(), group);
+            }
+          }
+          group.add(call, config);
+        } catch (ConfigurationException e) {
+          CollectorMetrics.instance().configurationFailed();
+          Map<String, Object> err = createError(config, e);
+          results.add(err);
+        }
       }
+      return groups;
+    }
 
-      return jmxClient;
+    private String[] getCredentials() {
+      String[] creds = null;
+      if (_authenticate) {
+        creds = new String[] { _username, _password };
+      }
+      return creds;
     }
 
-    private List<Map<String, String>> createResult(Summary summary, 
+    List<Map<String, Object>> createResult(Summary summary,
             ConfigAdapter config) {
       if (_logger.isDebugEnabled()) {
         _logger.debug(summary.toString());
       }
-      List<Map<String, String>> results = new ArrayList<Map<String, String>>();
+      if (_compactResults) {
+        return Collections.singletonList(createCompactResult(summary, config));
+      }
+      List<Map<String, Object>> results = new ArrayList<Map<String, Object>>();
 
-      Map<String, Object> values = summary.getResults();
+      Map<String, Object> values = getValues(summary, config);
+      Map<String, Object> rawValues = getRawValues(summary);
+      Map<String, Map<String, Object>> samples = getSamples(config);
 
       for (String key : values.keySet()) {
         Object value = values.get(key);
@@ -212,36 +771,210 @@ public class ZenJmxService {
               + "): null value for data point: " + key);
           continue;
         }
-        HashMap<String, String> result = new HashMap<String, String>();
+        HashMap<String, Object> result = new HashMap<String, Object>();
         results.add(result);
         populateEventFields(result, config);
+        putRatesFlag(result);
         result.put("value", value.toString());
         result.put("dpId", key);
+        if (rawValues != null && rawValues.get(key) != null) {
+          result.put("rawValue", rawValues.get(key).toString());
+        }
+        if (samples != null && samples.containsKey(key)) {
+          result.put("samples", samples.get(key));
+        }
+      }
+      if (rawValues != null) {
+        // rate datapoints without a rate yet only send their raw value
+        for (Entry<String, Object> entry : rawValues.entrySet()) {
+          if (values.containsKey(entry.getKey())
+              || entry.getValue() == null) {
+            continue;
+          }
+          HashMap<String, Object> result = new HashMap<String, Object>();
+          results.add(result);
+          populateEventFields(result, config);
+          putRatesFlag(result);
+          result.put("rawValue", entry.getValue().toString());
+          result.put("dpId", entry.getKey());
+        }
       }
       return results;
     }
 
-    private Map<String, String> createError(Summary summary,
+    /**
+     * Creates a single result for all the datapoints of a datasource.  The
+     * event fields are sent once, "dpIds" lists the datapoints and
+     * "values" their values in the same order.  Integers and doubles are
+     * sent as such; longs that a double can't hold exactly are sent as
+     * strings.  Values that aren't numbers can't be stored and are left
+     * out.  With rates, "rawValues" maps the COUNTER, DERIVE and ABSOLUTE
+     * datapoints to their raw values, including those without a rate yet.
+     */
+    private Map<String, Object> createCompactResult(Summary summary,
+        ConfigAdapter config) {
+      Map<String, Object> values = getValues(summary, config);
+      List<String> dpIds = new ArrayList<String>(values.size());
+      List<Object> numbers = new ArrayList<Object>(values.size());
+      for (Entry<String, Object> entry : values.entrySet()) {
+        Object value = toNumber(entry.getValue());
+        if (value == null) {
+          _logger.warn("(" + summary.getCallId()
+              + "): no numeric value for data point: " + entry.getKey());
+          continue;
+        }
+        dpIds.add(entry.getKey());
+        numbers.add(value);
+      }
+      HashMap<String, Object> result = new HashMap<String, Object>();
+      populateEventFields(result, config);
+      putRatesFlag(result);
+      result.put("dpIds", dpIds);
+      result.put("values", numbers);
+      Map<String, Object> rawValues = getRawValues(summary);
+      if (rawValues != null) {
+        Map<String, Object> rawNumbers = new HashMap<String, Object>();
+        for (Entry<String, Object> entry : rawValues.entrySet()) {
+          Object value = toNumber(entry.getValue());
+          if (value != null) {
+            rawNumbers.put(entry.getKey(), value);
+          }
+        }
+        result.put("rawValues", rawNumbers);
+      }
+      Map<String, Map<String, Object>> samples = getSamples(config);
+      if (samples != null) {
+        result.put("samples", samples);
+      }
+      return result;
+    }
+
+    /**
+     * Returns the values of a call to send, with rates in place of the
+     * raw values of COUNTER, DERIVE and ABSOLUTE datapoints if rates are
+     * computed
+     */
+    private Map<String, Object> getValues(Summary summary,
+        ConfigAdapter config) {
+      if (_rates == null) {
+        return summary.getResults();
+      }
+      return _rates.convert(config.getDevice(), config.getDatasourceId(),
+          summary, System.currentTimeMillis());
+    }
+
+    /**
+     * Returns the raw values of the COUNTER, DERIVE and ABSOLUTE
+     * datapoints of a call, which are sent along with their rates so that
+     * RRD files created with those types keep getting what they expect;
+     * null if rates aren't computed
+     */
+    private Map<String, Object> getRawValues(Summary summary) {
+      Map<String, String> types = summary.getTypeMap();
+      if (_rates == null || types == null) {
+        return null;
+      }
+      Map<?, ?> values = summary.getResults();
+      Map<String, Object> rawValues = new LinkedHashMap<String, Object>();
+      for (Map.Entry<?, ?> entry : values.entrySet()) {
+        if (RateCalculator.isRate(types.get(entry.getKey()))) {
+          rawValues.put((String) entry.getKey(), entry.getValue());
+        }
+      }
+      return rawValues;
+    }
+
+    /**
+     * Returns the summaries of the samples taken of the datasource since
+     * its previous collection, by datapoint id; null if it isn't sampled
+     */
+    private Map<String, Map<String, Object>> getSamples(
+        ConfigAdapter config) {
+      if (_sampler == null || !_sampler.isSampled(config)) {
+        return null;
+      }
+      try {
+        return _sampler.collect(config);
+      } catch (ConfigurationException e) {
+        // already reported by the collection itself
+        return null;
+      }
+    }
+
+    /**
+     * Tells the receiver that rate datapoints hold rates, not raw values
+     */
+    private void putRatesFlag(Map<String, Object> result) {
+      if (_rates != null) {
+        result.put("rates", Boolean.TRUE);
+      }
+    }
+
+    /**
+     * Returns the value as an Integer, Double or, for longs too large for
+     * a double, a String; null if it isn't a number
+     */
+    private Object toNumber(Object value) {
+      if (value instanceof Integer || value instanceof Double) {
+        return value;
+      }
+      if (value instanceof Short || value instanceof Byte) {
+        return ((Number) value).intValue();
+      }
+      if (value instanceof Long || value instanceof AtomicLong
+          || value instanceof AtomicInteger) {
+        long l = ((Number) value).longValue();
+        if (l == (int) l) {
+          return (int) l;
+        }
+        if (Math.abs(l) <= MAX_EXACT_DOUBLE) {
+          return (double) l;
+        }
+        return value.toString();
+      }
+      if (value instanceof Number) {
+        return ((Number) value).doubleValue();
+      }
+      if (value == null) {
+        return null;
+      }
+      try {
+        return Double.valueOf(value.toString().trim());
+      } catch (NumberFormatException e) {
+        return null;
+      }
+    }
+
+    private Map<String, Object> createError(Summary summary,
         ConfigAdapter config, Exception e) {
       String msg = "DataSource %1$s; Error calling mbean %2$s: Exception: %3$s";
       msg = String.format(msg, config.getDatasourceId(), summary
           .getObjectName(), e.getMessage());
-      Map<String, String> error = createError(config, e);
+      Map<String, Object> error = createError(config, e);
       error.put(SUMMARY, msg);
       return error;
     }
 
-    private Map<String, String> createTimeOutError(Summary summary,
+    private Map<String, Object> createTimeOutError(Summary summary,
         ConfigAdapter config) {
       String msg = "DataSource %1$s; Timed out %2$s on mbean %3$s ";
       msg = String.format(msg, config.getDatasourceId(), summary
           .getCallSummary(), summary.getObjectName());
-      Map<String, String> error = createError(config, msg);
+      Map<String, Object> error = createError(config, msg);
       return error;
     }
 
-    private HashMap<String, String> createError(ConfigAdapter config, String msg) {
-      HashMap<String, String> error = new HashMap<String, String>();
+    private Map<String, Object> createRejectedError(Summary summary,
+        ConfigAdapter config) {
+      String msg = "DataSource %1$s; Collector busy, %2$s on mbean %3$s not run";
+      msg = String.format(msg, config.getDatasourceId(), summary
+          .getCallSummary(), summary.getObjectName());
+      Map<String, Object> error = createError(config, msg);
+      return error;
+    }
+
+    private HashMap<String, Object> createError(ConfigAdapter config, String msg) {
+      HashMap<String, Object> error = new HashMap<String, Object>();
 
       populateEventFields(error, config);
       error.put(SUMMARY, msg);
@@ -249,29 +982,29 @@ public class ZenJmxService {
       return error;
     }
 
-    private Map<String, String> createConnectionError(ConfigAdapter config,
+    private Map<String, Object> createConnectionError(ConfigAdapter config,
         String msg, Throwable e) {
 
       Utility.debugStack(e);
       String errorMsg = "DataSource %1$s; %2$s; Exception %3$s ";
       errorMsg = String.format(errorMsg, config.getDatasourceId(), msg, 
               e.getMessage());
-      HashMap<String, String> error = createError(config, errorMsg);
+      HashMap<String, Object> error = createError(config, errorMsg);
       
       error.put(ConfigAdapter.EVENT_CLASS, "/Status/JMX/Connection");
       return error;
     }
 
-    private Map<String, String> createError(ConfigAdapter config, Exception e) {
+    private Map<String, Object> createError(ConfigAdapter config, Exception e) {
       String msg = "";
       if (e != null)
         Utility.debugStack(e);
         msg = e.getMessage();
-      HashMap<String, String> error = createError(config, msg);
+      HashMap<String, Object> error = createError(config, msg);
       return error;
     }
     
-    private void populateEventFields(Map<String,String> evt, 
+    private void populateEventFields(Map<String,Object> evt, 
             ConfigAdapter config)
         {
         evt.put(ConfigAdapter.DEVICE, config.getDevice());
@@ -287,6 +1020,220 @@ public class ZenJmxService {
         evt.put(ConfigAdapter.COMPONENT_KEY, config.getComponent());
         evt.put(ConfigAdapter.RRD_PATH, config.getRrdPath());
         }
+
+    /**
+     * Calls that are run one after another by a single job.  When the
+     * group holds attribute calls on the same mbean their attributes are
+     * read with one getAttributes() request and handed out to each call.
+     */
+    private class CallGroup {
+      private List<JmxCall> _calls = new ArrayList<JmxCall>();
+      private List<ConfigAdapter> _callConfigs = new ArrayList<ConfigAdapter>();
+      private AttributeBatch _batch;
+      private FutureTask<Object> _task;
+      private List<Map<String, Object>> _results;
+      private Map<Summary, ConfigAdapter> _summaries;
+      private long _queued;
+      private volatile long _callStarted;
+
+      void add(JmxCall call, ConfigAdapter config) {
+        _calls.add(call);
+        _callConfigs.add(config);
+        if (call instanceof AttributeCall) {
+          if (_batch == null) {
+            _batch = new AttributeBatch(call.getObjectName());
+          }
+          _batch.add((AttributeCall) call);
+        }
+      }
+
+      /**
+       * Records the summaries of the group's calls as unfinished and
+       * creates the job that runs them
+       */
+      void track(final JmxClient client,
+          final List<Map<String, Object>> results,
+          final Map<Summary, ConfigAdapter> summaries) {
+        _results = results;
+        _summaries = summaries;
+        _queued = System.currentTimeMillis();
+        for (int i = 0; i < _calls.size(); i++) {
+          summaries.put(_calls.get(i).getSummary(), _callConfigs.get(i));
+        }
+        Runnable job = new Runnable() {
+          public void run() {
+            CallGroup.this.run(client, results, summaries);
+          }
+        };
+        _task = new FutureTask<Object>(job, null);
+      }
+
+      FutureTask<Object> getTask() { return _task; }
+
+      String getObjectName() { return _calls.get(0).getObjectName(); }
+
+      /**
+       * Returns when the request currently made by the group was started,
+       * 0 if the group isn't running
+       */
+      long getCallStarted() { return _callStarted; }
+
+      /**
+       * Waits up to timeout ms for the group to finish
+       */
+      void await(long timeout) throws InterruptedException {
+        try {
+          _task.get(Math.max(timeout, 1), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+          // checked again by the caller
+        } catch (CancellationException e) {
+          // rejected or abandoned
+        } catch (ExecutionException e) {
+          _logger.error("unexpected error collecting from device "
+              + _deviceId, e.getCause());
+        }
+      }
+
+      /**
+       * Reports every unfinished call of the group as not run
+       */
+      void reject() {
+        _task.cancel(false);
+        for (int i = 0; i < _calls.size(); i++) {
+          Summary summary = _calls.get(i).getSummary();
+          if (_summaries.remove(summary) != null) {
+            _results.add(createRejectedError(summary, _callConfigs.get(i)));
+            CollectorMetrics.instance().callRejected();
+            trace(i, CallTrace.REJECTED);
+          }
+        }
+      }
+
+      /**
+       * Cancels the group and reports its unfinished calls as timed out.
+       * Calls that complete afterwards are ignored.
+       */
+      void timeOut() {
+        _task.cancel(true);
+        for (int i = 0; i < _calls.size(); i++) {
+          Summary summary = _calls.get(i).getSummary();
+          if (_summaries.remove(summary) != null) {
+            _results.add(createTimeOutError(summary, _callConfigs.get(i)));
+            CollectorMetrics.instance().callTimedOut();
+            trace(i, CallTrace.TIMED_OUT);
+          }
+        }
+      }
+
+      /**
+       * Traces a call that did not complete
+       */
+      private void trace(int i, String outcome) {
+        CallTrace trace = CallTrace.begin(_callConfigs.get(i), _calls.get(i)
+            .getSummary(), _queued);
+        if (trace != null) {
+          trace.started(_callStarted);
+          trace.end(outcome, null);
+        }
+      }
+
+      void run(JmxClient client, List<Map<String, Object>> results,
+          Map<Summary, ConfigAdapter> summaries) {
+        Map<String, Object> attributes = null;
+        JmxException batchError = null;
+        long batchStarted = 0;
+        if (_batch != null && _batch.size() > 1) {
+          try {
+            _callStarted = batchStarted = System.currentTimeMillis();
+            attributes = _batch.fetch(client);
+          } catch (JmxException e) {
+            batchError = e;
+          }
+        }
+        for (int i = 0; i < _calls.size(); i++) {
+          JmxCall call = _calls.get(i);
+          ConfigAdapter config = _callConfigs.get(i);
+          Summary summary = call.getSummary();
+          if (!summaries.containsKey(summary)) {
+            // already reported as timed out
+            continue;
+          }
+          CallTrace trace = CallTrace.begin(config, summary, _queued);
+          try {
+            if (batchError != null) {
+              throw batchError;
+            }
+            _callStarted = System.currentTimeMillis();
+            if (trace != null) {
+              trace.started(batchStarted > 0 ? batchStarted : _callStarted);
+            }
+            if (attributes != null) {
+              ((AttributeCall) call).call(client, attributes, batchStarted);
+            } else {
+              call.call(client);
+            }
+            // the result is only created once the call is claimed, so
+            // that a call reported as timed out doesn't move the rates on
+            if (summaries.remove(summary) != null) {
+              results.addAll(createResult(summary, config));
+              CollectorMetrics.instance().callFinished(summary.getRuntime());
+              publish(summary, config);
+              if (trace != null) {
+                trace.end(CallTrace.OK, null);
+              }
+            }
+          } catch (JmxException e) {
+            if (summaries.remove(summary) != null) {
+              results.add(createError(summary, config, e));
+              CollectorMetrics.instance().callFailed();
+              if (trace != null) {
+                trace.end(CallTrace.ERROR, e);
+              }
+            }
+          }
+        }
+      }
+
+      /**
+       * Publishes the values of a successful call to the last value cache
+       * and the result ring
+       */
+      private void publish(Summary summary, ConfigAdapter config) {
+        LastValueCache cache = _lastValues;
+        if (cache != null) {
+          cache.put(config.getDevice(), config.getDatasourceId(), summary,
+              System.currentTimeMillis());
+        }
+        ResultRing ring = _resultRing;
+        if (ring == null) {
+          return;
+        }
+        try {
+          ring.write(config.getDevice(), config.getDatasourceId(), summary);
+        } catch (IOException e) {
+          _logger.warn("cannot publish results to the result ring", e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Creates the daemon threads that collect devices, run JMX calls and
+   * serve binary RPC requests
+   */
+  static class CollectorThreadFactory implements ThreadFactory {
+    private final String _prefix;
+    private final AtomicInteger _count = new AtomicInteger();
+
+    CollectorThreadFactory(String prefix) {
+      _prefix = prefix;
+    }
+
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, _prefix + _count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
   }
 
 }
@@ -0,0 +1,88 @@
+///////////////////////////////////////////////////////////////////////////
+//
+//Copyright 2008 Zenoss Inc
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//    http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//
+///////////////////////////////////////////////////////////////////////////
+package com.zenoss.zenpacks.zenjmx.call;
+
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.zenoss.jmx.JmxClient;
+import com.zenoss.jmx.JmxException;
+
+
+/**
+ * <p> Reads the attributes needed by several AttributeCalls on the
+ * same mbean with a single getAttributes() request.  The values are
+ * handed to each call through AttributeCall.call(JmxClient, Map). </p>
+ */
+public class AttributeBatch {
+
+  // the mbean all attributes are read from
+  private String _objectName;
+
+  // the distinct attributes to read
+  private Set<String> _attrNames = new LinkedHashSet<String>();
+
+  // logger
+  private static final Log _logger = LogFactory.getLog(AttributeBatch.class);
+
+
+  /**
+   * Creates an AttributeBatch for the mbean provided
+   */
+  public AttributeBatch(String objectName) {
+    _objectName = objectName;
+  }
+
+
+  /**
+   * Adds the attribute read by the call to the batch
+   */
+  public void add(AttributeCall call) {
+    _attrNames.add(call.getAttributeName());
+  }
+
+
+  /**
+   * Returns the name of the mbean the batch reads from
+   */
+  public String getObjectName() { return _objectName; }
+
+
+  /**
+   * Returns the number of distinct attributes in the batch
+   */
+  public int size() { return _attrNames.size(); }
+
+
+  /**
+   * Reads every attribute in the batch.  Attributes that could not be
+   * read are missing from the result.
+   * @return attribute values keyed by attribute name
+   * @throws JmxException if the mbean could not be queried
+   */
+  public Map<String, Object> fetch(JmxClient client) throws JmxException {
+    String[] names = _attrNames.toArray(new String[_attrNames.size()]);
+    Map<String, Object> values = client.queryAttributes(_objectName, names);
+    if (_logger.isDebugEnabled() && values.size() < names.length) {
+      _logger.debug("read " + values.size() + " of " + names.length
+          + " attributes from " + _objectName);
+    }
+    return values;
+  }
+}
@@ -95,6 +95,38 @@ public class AttributeCall
       // issue the query
       Map<String, Object> values = client.query(_objectName, _attrName, _keys, _attributePath);
       
+      return finish(values);
+  }
+
+
+  /**
+   * Extracts the results from attribute values that were already read
+   * by an AttributeBatch.  Falls back to querying the attribute if it
+   * is not among the values provided.
+   * @param client the client used to read the values
+   * @param attributes attribute values read from the mbean, keyed by
+   * attribute name
+   * @param started when the values started being read, so that the
+   * runtime of the call includes the request reading them
+   */
+  public Summary call(JmxClient client, Map<String, Object> attributes,
+      long started) throws JmxException {
+      if (attributes == null || ! attributes.containsKey(_attrName)) {
+        return call(client);
+      }
+
+      _startTime = started;
+      Map<String, Object> values = 
+        client.extractValues(attributes.get(_attrName), _keys, _attributePath);
+
+      return finish(values);
+  }
+
+
+  /**
+   * Records the results and runtime of the call in the summary
+   */
+  private Summary finish(Map<String, Object> values) {
       _summary.setResults(values);
       
       // record the runtime of the call
@@ -126,6 +158,7 @@ public class AttributeCall
     
     call.setDeviceId(config.getDevice());
     call.setDataSourceId(config.getDatasourceId());
+    call.setTypeMap(call.buildTypeMap(keys, config.getDataPointTypes()));
 
     return call;
   }
@@ -56,7 +56,9 @@ public class CallFactory {
   public static JmxCall createCall(ConfigAdapter config) 
       throws ConfigurationException {
       
-      _logger.debug("config: " + config);
+      if (_logger.isDebugEnabled()) {
+        _logger.debug("config: " + config);
+      }
 
       List<String>dataPoints = config.getDataPoints();
       if (dataPoints.isEmpty()) {
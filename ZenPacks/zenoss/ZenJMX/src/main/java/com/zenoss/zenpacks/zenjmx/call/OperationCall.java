@@ -264,7 +264,9 @@ public class OperationCall
     paramValues = createParamValues(config);
 
     List<String> keys = config.getDataPoints();
-    _logger.debug("keys: " + keys);
+    if (_logger.isDebugEnabled()) {
+      _logger.debug("keys: " + keys);
+    }
 
     List<String> rrdTypes = config.getDataPointTypes();
 
@@ -93,7 +93,9 @@ public class Utility {
             url += "rmi:///jndi/rmi://" + hostAddr + ":" + port + "/"+ rmiContext;
     }
 
-    _logger.debug("JMX URL is: "+url);
+    if (_logger.isDebugEnabled()) {
+      _logger.debug("JMX URL is: "+url);
+    }
     return url;
   }
 
@@ -166,6 +168,24 @@ public class Utility {
     return toReturn;
   }
 
+  /**
+   * Returns a collected value as a double, NaN if it isn't a number
+   */
+  public static double toDouble(Object value) {
+    if (value instanceof Number) {
+      return ((Number) value).doubleValue();
+    }
+    if (value == null) {
+      return Double.NaN;
+    }
+    try {
+      return Double.parseDouble(value.toString().trim());
+    } catch (NumberFormatException e) {
+      return Double.NaN;
+    }
+  }
+
+
   public static void debugStack(Throwable e)
    {
     if ( !_logger.isDebugEnabled() ) return;
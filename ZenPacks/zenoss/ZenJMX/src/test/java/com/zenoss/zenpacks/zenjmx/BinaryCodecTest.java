@@ -0,0 +1,145 @@
+///////////////////////////////////////////////////////////////////////////
+//
+//Copyright 2008 Zenoss Inc
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//    http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//
+///////////////////////////////////////////////////////////////////////////
+package com.zenoss.zenpacks.zenjmx;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+public class BinaryCodecTest extends TestCase {
+
+    public void testRoundTrip() throws Exception
+        {
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put("int", -42);
+        map.put("long", 1L << 40);
+        map.put("double", 0.25);
+        map.put("float", 1.5f);
+        map.put("true", true);
+        map.put("false", false);
+        map.put("nil", null);
+        map.put("string", "h\u00e9llo");
+        map.put("empty", "");
+        map.put("bytes", new byte[] { 1, 2, 3 });
+        List<Object> list = new ArrayList<Object>();
+        list.add(Integer.MIN_VALUE);
+        list.add(Long.MAX_VALUE);
+        list.add(new Object[] { "string", 7 });
+        map.put("list", list);
+
+        Map<?, ?> decoded = (Map<?, ?>) BinaryCodec.decode(BinaryCodec
+                .encode(map));
+        assertEquals(map.size(), decoded.size());
+        assertEquals(-42, decoded.get("int"));
+        assertEquals(1L << 40, decoded.get("long"));
+        assertEquals(0.25, decoded.get("double"));
+        assertEquals(1.5, decoded.get("float"));
+        assertEquals(Boolean.TRUE, decoded.get("true"));
+        assertEquals(Boolean.FALSE, decoded.get("false"));
+        assertTrue(decoded.containsKey("nil"));
+        assertNull(decoded.get("nil"));
+        assertEquals("h\u00e9llo", decoded.get("string"));
+        assertEquals("", decoded.get("empty"));
+        assertTrue(Arrays.equals(new byte[] { 1, 2, 3 }, (byte[]) decoded
+                .get("bytes")));
+        Object[] array = (Object[]) decoded.get("list");
+        assertEquals(Integer.MIN_VALUE, array[0]);
+        assertEquals(Long.MAX_VALUE, array[1]);
+        assertTrue(Arrays.equals(new Object[] { "string", 7 },
+                (Object[]) array[2]));
+        }
+
+    public void testRepeatedStringsAreReferenced() throws Exception
+        {
+        List<Map<String, Object>> results = new ArrayList<Map<String, Object>>();
+        for (int i = 0; i < 100; i++)
+            {
+            Map<String, Object> result = new HashMap<String, Object>();
+            result.put("dsId", "heapMemoryUsage");
+            result.put("value", i);
+            results.add(result);
+            }
+        byte[] encoded = BinaryCodec.encode(results);
+
+        // after the first result each costs 9 or 10 bytes: the struct
+        // tag and size, three string references and the value
+        assertTrue(encoded.length < 100 * 11);
+        Object[] decoded = (Object[]) BinaryCodec.decode(encoded);
+        assertEquals(100, decoded.length);
+        assertEquals("heapMemoryUsage", ((Map<?, ?>) decoded[99]).get("dsId"));
+        assertEquals(99, ((Map<?, ?>) decoded[99]).get("value"));
+        }
+
+    public void testMalformedData() throws Exception
+        {
+        byte[] encoded = BinaryCodec.encode("value");
+        assertMalformed(Arrays.copyOf(encoded, encoded.length - 1));
+        assertMalformed(new byte[] { 'X' });
+        assertMalformed(new byte[] { 'R', 0 });
+        assertMalformed(new byte[] { 'A', 100, 'N' });
+        assertMalformed(new byte[] { 'N', 'N' });
+        }
+
+    public void testDeepNesting() throws Exception
+        {
+        assertTrue(BinaryCodec.decode(nestedArrays(BinaryCodec.MAX_DEPTH))
+            instanceof Object[]);
+        assertMalformed(nestedArrays(BinaryCodec.MAX_DEPTH + 1));
+        // would overflow the stack without the limit
+        assertMalformed(nestedArrays(1000000));
+        }
+
+    private static byte[] nestedArrays(int depth)
+        {
+        byte[] data = new byte[2 * depth + 1];
+        for (int i = 0; i < depth; i++)
+            {
+            data[2 * i] = 'A';
+            data[2 * i + 1] = 1;
+            }
+        data[2 * depth] = 'N';
+        return data;
+        }
+
+    private void assertMalformed(byte[] data)
+        {
+        try
+            {
+            BinaryCodec.decode(data);
+            fail("decoded malformed data");
+            }
+        catch (java.io.IOException e)
+            {
+            // expected
+            }
+        }
+
+    public void testUnsupportedType()
+        {
+        try
+            {
+            BinaryCodec.encode(new Object());
+            fail("encoded an Object");
+            }
+        catch (java.io.IOException e)
+            {
+            // expected
+            }
+        }
+}
@@ -0,0 +1,85 @@
+///////////////////////////////////////////////////////////////////////////
+//
+//Copyright 2008 Zenoss Inc
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//    http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//
+///////////////////////////////////////////////////////////////////////////
+package com.zenoss.zenpacks.zenjmx;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import com.zenoss.zenpacks.zenjmx.call.Summary;
+
+public class CallTraceTest extends TestCase {
+
+    private ConfigAdapter _config;
+
+    private Summary _summary;
+
+    @Override
+    protected void setUp() throws Exception
+        {
+        Map<String, Object> config = new HashMap<String, Object>();
+        config.put(ConfigAdapter.DEVICE, "localhost");
+        config.put(ConfigAdapter.DATASOURCE_ID, "heap");
+        _config = new ConfigAdapter(config);
+        _summary = new Summary();
+        _summary.setObjectName("java.lang:type=Memory");
+        _summary.setCallSummary("attribute: HeapMemoryUsage");
+        }
+
+    @Override
+    protected void tearDown() throws Exception
+        {
+        CallTrace.setSampleRate(0);
+        }
+
+    public void testNotTracedWithoutSampling() throws Exception
+        {
+        CallTrace.setSampleRate(0);
+        for (int i = 0; i < 10; i++)
+            {
+            assertNull(CallTrace.begin(_config, _summary, 0));
+            }
+        }
+
+    public void testSampling() throws Exception
+        {
+        CallTrace.setSampleRate(5);
+        int traced = 0;
+        for (int i = 0; i < 50; i++)
+            {
+            if ( CallTrace.begin(_config, _summary, 0) != null )
+                {
+                traced++;
+                }
+            }
+        assertEquals(10, traced);
+        }
+
+    public void testRecord() throws Exception
+        {
+        CallTrace.setSampleRate(1);
+        CallTrace trace = CallTrace.begin(_config, _summary, 1000);
+        trace.started(1250);
+        Map<String, Object> values = new HashMap<String, Object>();
+        values.put("used", 1);
+        _summary.setResults(values);
+
+        String record = trace.toString(CallTrace.OK, null, 1300);
+        assertTrue(record, record.startsWith("call ok; device localhost; "
+                + "datasource heap; mbean java.lang:type=Memory"));
+        assertTrue(record, record.indexOf("queued 250 ms; ran 50 ms; values 1") > 0);
+        }
+}
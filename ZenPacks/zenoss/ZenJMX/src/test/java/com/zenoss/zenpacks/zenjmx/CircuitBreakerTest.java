@@ -0,0 +1,97 @@
+///////////////////////////////////////////////////////////////////////////
+//
+//Copyright 2008 Zenoss Inc
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//    http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//
+///////////////////////////////////////////////////////////////////////////
+package com.zenoss.zenpacks.zenjmx;
+
+import junit.framework.TestCase;
+
+import com.zenoss.jmx.CircuitBreaker;
+import com.zenoss.jmx.CircuitOpenException;
+
+public class CircuitBreakerTest extends TestCase {
+
+    private static final String ENDPOINT = "service:jmx:rmi:///jndi/rmi://down:1/jmxrmi";
+
+    public void testFailureOpensCircuit() throws Exception
+        {
+        CircuitBreaker breaker = new CircuitBreaker(60000, 60000);
+        breaker.check(ENDPOINT);
+        Exception cause = new Exception("connection refused");
+        breaker.failed(ENDPOINT, cause);
+        try
+            {
+            breaker.check(ENDPOINT);
+            fail("circuit is closed");
+            }
+        catch (CircuitOpenException e)
+            {
+            assertSame(cause, e.getCause());
+            }
+        breaker.check("service:jmx:rmi:///jndi/rmi://up:1/jmxrmi");
+        }
+
+    public void testSingleProbeAfterBackoff() throws Exception
+        {
+        CircuitBreaker breaker = new CircuitBreaker(50, 1000);
+        breaker.failed(ENDPOINT, new Exception());
+        Thread.sleep(100);
+
+        // the first caller probes, others keep failing fast
+        breaker.check(ENDPOINT);
+        assertOpen(breaker);
+
+        breaker.succeeded(ENDPOINT);
+        assertFalse(breaker.isOpen(ENDPOINT));
+        breaker.check(ENDPOINT);
+        }
+
+    public void testBackoffDoubles() throws Exception
+        {
+        CircuitBreaker breaker = new CircuitBreaker(100, 1000);
+        breaker.failed(ENDPOINT, new Exception());
+        Thread.sleep(150);
+        breaker.check(ENDPOINT);
+        breaker.failed(ENDPOINT, new Exception());
+
+        // the backoff is now 200 ms
+        Thread.sleep(150);
+        assertOpen(breaker);
+        Thread.sleep(100);
+        breaker.check(ENDPOINT);
+        }
+
+    public void testCircuitsNoLongerUsedAreDropped() throws Exception
+        {
+        CircuitBreaker breaker = new CircuitBreaker(50, 100);
+        String other = "service:jmx:rmi:///jndi/rmi://other:1/jmxrmi";
+        breaker.failed(ENDPOINT, new Exception());
+        Thread.sleep(200);
+        breaker.failed(other, new Exception());
+        assertFalse(breaker.isOpen(ENDPOINT));
+        assertTrue(breaker.isOpen(other));
+        }
+
+    private void assertOpen(CircuitBreaker breaker)
+        {
+        try
+            {
+            breaker.check(ENDPOINT);
+            fail("circuit is closed");
+            }
+        catch (CircuitOpenException e)
+            {
+            // expected
+            }
+        }
+}
@@ -0,0 +1,144 @@
+///////////////////////////////////////////////////////////////////////////
+//
+//Copyright 2008 Zenoss Inc
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//    http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//
+///////////////////////////////////////////////////////////////////////////
+package com.zenoss.zenpacks.zenjmx;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import junit.framework.TestCase;
+
+import org.eclipse.jetty.server.Server;
+
+/**
+ * Sends compressed and uncompressed requests to the XML-RPC server
+ */
+public class GzipFilterTest extends TestCase {
+
+    private static final String COLLECT = "<?xml version=\"1.0\"?>"
+            + "<methodCall><methodName>zenjmx.collect</methodName><params>"
+            + "<param><value><array><data></data></array></value></param>"
+            + "</params></methodCall>";
+
+    private Server server;
+    private int port;
+
+    @Override
+    protected void setUp() throws Exception
+        {
+        ServerSocket socket = new ServerSocket(0);
+        port = socket.getLocalPort();
+        socket.close();
+        server = ZenJmxMain.startServer(port);
+        }
+
+    @Override
+    protected void tearDown() throws Exception
+        {
+        server.stop();
+        Configuration.instance().setProperty(OptionsFactory.GZIP_THRESHOLD,
+                OptionsFactory.DEFAULT_GZIP_THRESHOLD);
+        }
+
+    public void testAcceptsGzip()
+        {
+        assertTrue(GzipFilter.acceptsGzip("gzip"));
+        assertTrue(GzipFilter.acceptsGzip("deflate, GZIP;q=0.5"));
+        assertFalse(GzipFilter.acceptsGzip("gzip;q=0"));
+        assertFalse(GzipFilter.acceptsGzip("identity"));
+        assertFalse(GzipFilter.acceptsGzip(null));
+        }
+
+    public void testSmallResponseIsNotCompressed() throws Exception
+        {
+        HttpURLConnection conn = post(COLLECT.getBytes("UTF-8"), false);
+        assertEquals(200, conn.getResponseCode());
+        assertNull(conn.getHeaderField("Content-Encoding"));
+        String response = new String(read(conn.getInputStream()), "UTF-8");
+        assertEquals(response.length(), conn.getContentLength());
+        assertTrue(response.contains("<methodResponse>"));
+        }
+
+    public void testCompressedRequestAndResponse() throws Exception
+        {
+        server.stop();
+        Configuration.instance().setProperty(OptionsFactory.GZIP_THRESHOLD,
+                "0");
+        server = ZenJmxMain.startServer(port);
+
+        HttpURLConnection conn = post(gzip(COLLECT.getBytes("UTF-8")), true);
+        assertEquals(200, conn.getResponseCode());
+        assertEquals("gzip", conn.getHeaderField("Content-Encoding"));
+        String response = new String(read(new GZIPInputStream(conn
+                .getInputStream())), "UTF-8");
+        assertTrue(response.contains("<methodResponse><params>"));
+        }
+
+    public void testMetricsAreCompressed() throws Exception
+        {
+        HttpURLConnection conn = (HttpURLConnection) new URL(
+                "http://localhost:" + port + "/metrics").openConnection();
+        conn.setRequestProperty("Accept-Encoding", "gzip");
+        assertEquals("gzip", conn.getHeaderField("Content-Encoding"));
+        String metrics = new String(read(new GZIPInputStream(conn
+                .getInputStream())), "UTF-8");
+        assertTrue(metrics.contains("zenjmx_requests_total"));
+        }
+
+    private HttpURLConnection post(byte[] body, boolean gzip)
+            throws Exception
+        {
+        HttpURLConnection conn = (HttpURLConnection) new URL(
+                "http://localhost:" + port + "/").openConnection();
+        conn.setDoOutput(true);
+        conn.setRequestProperty("Content-Type", "text/xml");
+        if ( gzip )
+            {
+            conn.setRequestProperty("Content-Encoding", "gzip");
+            conn.setRequestProperty("Accept-Encoding", "gzip");
+            }
+        OutputStream out = conn.getOutputStream();
+        out.write(body);
+        out.close();
+        return conn;
+        }
+
+    private static byte[] gzip(byte[] data) throws Exception
+        {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream out = new GZIPOutputStream(bytes);
+        out.write(data);
+        out.close();
+        return bytes.toByteArray();
+        }
+
+    private static byte[] read(InputStream in) throws Exception
+        {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int n;
+        while ((n = in.read(buf)) > 0)
+            {
+            bytes.write(buf, 0, n);
+            }
+        in.close();
+        return bytes.toByteArray();
+        }
+}
@@ -0,0 +1,270 @@
+///////////////////////////////////////////////////////////////////////////
+//
+//Copyright 2008 Zenoss Inc
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//    http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//
+///////////////////////////////////////////////////////////////////////////
+package com.zenoss.zenpacks.zenjmx;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.ServerSocket;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerDelegate;
+import javax.management.MBeanServerNotification;
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+import javax.management.remote.JMXConnectorServer;
+import javax.management.remote.JMXConnectorServerFactory;
+import javax.management.remote.JMXServiceURL;
+
+import junit.framework.TestCase;
+
+import com.zenoss.jmx.JmxClient;
+import com.zenoss.jmx.JmxException;
+import com.zenoss.zenpacks.zenjmx.call.ZenJMXTest;
+
+public class JmxClientTest extends TestCase {
+
+    private static final String OBJECT_NAME = "com.zenoss:type=JmxClientTest";
+
+    private static final String SLOW_MBEAN = "com.zenoss:type=JmxClientTest,name=slow";
+
+    private MBeanServer mbs;
+    private Registry registry;
+    private JMXConnectorServer server;
+    private JmxClient client;
+
+    @Override
+    protected void setUp() throws Exception
+        {
+        ServerSocket socket = new ServerSocket(0);
+        int port = socket.getLocalPort();
+        socket.close();
+
+        mbs = ManagementFactory.getPlatformMBeanServer();
+        registry = LocateRegistry.createRegistry(port);
+        String url = "service:jmx:rmi:///jndi/rmi://localhost:" + port
+                + "/jmxrmi";
+        server = JMXConnectorServerFactory.newJMXConnectorServer(
+                new JMXServiceURL(url), null, mbs);
+        server.start();
+
+        client = new JmxClient(url);
+        client.connect();
+        }
+
+    @Override
+    protected void tearDown() throws Exception
+        {
+        client.close();
+        for (String name : new String[] { OBJECT_NAME, SLOW_MBEAN })
+            {
+            if ( mbs.isRegistered(new ObjectName(name)) )
+                {
+                mbs.unregisterMBean(new ObjectName(name));
+                }
+            }
+        server.stop();
+        UnicastRemoteObject.unexportObject(registry, true);
+        }
+
+    public void testRegistrationChangesAreSeen() throws Exception
+        {
+        // fills the registration cache
+        assertNotNull(client.query("java.lang:type=Runtime", "Uptime"));
+        assertUnregistered();
+
+        mbs.registerMBean(new ZenJMXTest(), new ObjectName(OBJECT_NAME));
+        assertNotNull(client.query(OBJECT_NAME, "CompositeTestData"));
+
+        mbs.unregisterMBean(new ObjectName(OBJECT_NAME));
+        assertUnregistered();
+        }
+
+    public void testRegistrationCacheFollowsNotifications() throws Exception
+        {
+        // serve the mbean server through a proxy that counts the requests
+        final Map<String, Integer> requests = Collections
+                .synchronizedMap(new HashMap<String, Integer>());
+        InvocationHandler counter = new InvocationHandler()
+            {
+            public Object invoke(Object proxy, Method method, Object[] args)
+                    throws Throwable
+                {
+                synchronized (requests)
+                    {
+                    Integer count = requests.get(method.getName());
+                    requests.put(method.getName(), count == null ? 1
+                            : count + 1);
+                    }
+                try
+                    {
+                    return method.invoke(mbs, args);
+                    }
+                catch (InvocationTargetException e)
+                    {
+                    throw e.getCause();
+                    }
+                }
+            };
+        MBeanServer counted = (MBeanServer) Proxy.newProxyInstance(
+                MBeanServer.class.getClassLoader(),
+                new Class<?>[] { MBeanServer.class }, counter);
+        ServerSocket socket = new ServerSocket(0);
+        int port = socket.getLocalPort();
+        socket.close();
+        JMXConnectorServer countedServer = JMXConnectorServerFactory
+                .newJMXConnectorServer(new JMXServiceURL(
+                        "service:jmx:rmi://localhost:" + port), null, counted);
+        countedServer.start();
+
+        JmxClient cached = new JmxClient(countedServer.getAddress()
+                .toString());
+        cached.setRegistrationCacheEnabled(true);
+        try
+            {
+            cached.connect();
+            final BlockingQueue<String> types = new LinkedBlockingQueue<String>();
+            cached.getConnection().addNotificationListener(
+                    MBeanServerDelegate.DELEGATE_NAME,
+                    new NotificationListener()
+                        {
+                        public void handleNotification(
+                                Notification notification, Object handback)
+                            {
+                            types.add(notification.getType());
+                            }
+                        }, null, null);
+            // fills the registration cache
+            assertNotNull(cached.query("java.lang:type=Runtime", "Uptime"));
+            assertNotNull(requests.get("queryNames"));
+
+            mbs.registerMBean(new ZenJMXTest(), new ObjectName(OBJECT_NAME));
+            awaitNotification(types,
+                    MBeanServerNotification.REGISTRATION_NOTIFICATION);
+            requests.clear();
+            assertNotNull(cached.query(OBJECT_NAME, "CompositeTestData"));
+            assertNull(requests.get("isRegistered"));
+            assertNull(requests.get("queryNames"));
+
+            mbs.unregisterMBean(new ObjectName(OBJECT_NAME));
+            awaitNotification(types,
+                    MBeanServerNotification.UNREGISTRATION_NOTIFICATION);
+            requests.clear();
+            try
+                {
+                cached.query(OBJECT_NAME, "CompositeTestData");
+                fail("queried an unregistered mbean");
+                }
+            catch (JmxException e)
+                {
+                // expected
+                }
+            // known to be gone, so not read from the agent
+            assertNull(requests.get("getAttribute"));
+            assertNull(requests.get("queryNames"));
+            }
+        finally
+            {
+            cached.close();
+            countedServer.stop();
+            }
+        }
+
+    /**
+     * Waits for a notification of the type provided, and a little longer
+     * so that the listener of the registration cache, which gets it in
+     * the same batch, has seen it too
+     */
+    private void awaitNotification(BlockingQueue<String> types, String type)
+            throws Exception
+        {
+        String next;
+        do
+            {
+            next = types.poll(10, TimeUnit.SECONDS);
+            assertNotNull("no " + type + " notification", next);
+            }
+        while ( !type.equals(next) );
+        Thread.sleep(200);
+        }
+
+    private void assertUnregistered()
+        {
+        try
+            {
+            client.query(OBJECT_NAME, "CompositeTestData");
+            fail("queried an unregistered mbean");
+            }
+        catch (JmxException e)
+            {
+            assertTrue(e.getMessage(), e.getMessage().startsWith(
+                    "no MBean registered"));
+            }
+        }
+
+    public void testReadTimeoutOnSlowAgent() throws Exception
+        {
+        ObjectName slow = new ObjectName(SLOW_MBEAN);
+        mbs.registerMBean(new ZenJmxServiceTest.Slow(), slow);
+
+        // export the server on its own port and skip the registry so that
+        // the client makes new connections through the timeout factory
+        ServerSocket socket = new ServerSocket(0);
+        int port = socket.getLocalPort();
+        socket.close();
+        JMXConnectorServer slowServer = JMXConnectorServerFactory
+                .newJMXConnectorServer(new JMXServiceURL(
+                        "service:jmx:rmi://localhost:" + port), null, mbs);
+        slowServer.start();
+
+        JmxClient slowClient = new JmxClient(slowServer.getAddress()
+                .toString());
+        slowClient.setConnectTimeout(1000);
+        slowClient.setReadTimeout(500);
+        try
+            {
+            slowClient.connect();
+            long start = System.currentTimeMillis();
+            try
+                {
+                slowClient.query(SLOW_MBEAN, "Value");
+                fail("read a slow attribute");
+                }
+            catch (JmxException e)
+                {
+                long elapsed = System.currentTimeMillis() - start;
+                assertTrue("took " + elapsed + " ms", elapsed < 2500);
+                assertFalse(slowClient.isConnected());
+                }
+            }
+        finally
+            {
+            slowClient.close();
+            slowServer.stop();
+            }
+        }
+}
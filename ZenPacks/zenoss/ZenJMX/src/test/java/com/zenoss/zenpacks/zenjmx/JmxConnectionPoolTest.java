@@ -0,0 +1,255 @@
+///////////////////////////////////////////////////////////////////////////
+//
+//Copyright 2008 Zenoss Inc
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//    http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//
+///////////////////////////////////////////////////////////////////////////
+package com.zenoss.zenpacks.zenjmx;
+
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.remote.JMXConnectorServer;
+import javax.management.remote.JMXConnectorServerFactory;
+import javax.management.remote.JMXServiceURL;
+
+import junit.framework.TestCase;
+
+import com.zenoss.jmx.CircuitBreaker;
+import com.zenoss.jmx.CircuitOpenException;
+import com.zenoss.jmx.JmxClient;
+import com.zenoss.jmx.JmxConnectionPool;
+import com.zenoss.jmx.JmxException;
+
+public class JmxConnectionPoolTest extends TestCase {
+
+    private Registry registry;
+    private JMXConnectorServer server;
+    private String url;
+
+    @Override
+    protected void setUp() throws Exception
+        {
+        ServerSocket socket = new ServerSocket(0);
+        int port = socket.getLocalPort();
+        socket.close();
+
+        registry = LocateRegistry.createRegistry(port);
+        url = "service:jmx:rmi:///jndi/rmi://localhost:" + port + "/jmxrmi";
+        server = JMXConnectorServerFactory.newJMXConnectorServer(
+                new JMXServiceURL(url), null,
+                ManagementFactory.getPlatformMBeanServer());
+        server.start();
+        }
+
+    @Override
+    protected void tearDown() throws Exception
+        {
+        server.stop();
+        UnicastRemoteObject.unexportObject(registry, true);
+        }
+
+    public void testClientIsReused() throws Exception
+        {
+        JmxConnectionPool pool = new JmxConnectionPool(10, 60000);
+
+        JmxClient first = pool.borrow(url, null);
+        assertTrue(first.isConnected());
+        pool.release(first);
+
+        JmxClient second = pool.borrow(url, null);
+        assertSame(first, second);
+        assertTrue(second.isConnected());
+        assertNotNull(second.query("java.lang:type=Runtime", "Uptime"));
+        pool.release(second);
+
+        assertEquals(1, pool.size());
+        pool.close();
+        assertEquals(0, pool.size());
+        assertFalse(first.isConnected());
+        }
+
+    public void testCredentialsAreSeparateEntries() throws Exception
+        {
+        JmxConnectionPool pool = new JmxConnectionPool(10, 60000);
+
+        JmxClient first = pool.borrow(url, new String[] { "a", "b" });
+        JmxClient second = pool.borrow(url, new String[] { "a", "c" });
+        assertNotSame(first, second);
+        pool.release(first);
+        pool.release(second);
+
+        assertEquals(2, pool.size());
+        pool.close();
+        }
+
+    public void testFullPoolEvictsIdleClient() throws Exception
+        {
+        JmxConnectionPool pool = new JmxConnectionPool(1, 60000);
+
+        JmxClient first = pool.borrow(url, new String[] { "a", "b" });
+        pool.release(first);
+
+        JmxClient second = pool.borrow(url, new String[] { "a", "c" });
+        assertFalse(first.isConnected());
+        pool.release(second);
+
+        assertEquals(1, pool.size());
+        assertTrue(second.isConnected());
+        pool.close();
+        }
+
+    public void testOverflowClientIsClosedOnRelease() throws Exception
+        {
+        JmxConnectionPool pool = new JmxConnectionPool(1, 60000);
+
+        JmxClient pooled = pool.borrow(url, new String[] { "a", "b" });
+        JmxClient overflow = pool.borrow(url, new String[] { "a", "c" });
+        assertTrue(overflow.isConnected());
+        pool.release(overflow);
+        assertFalse(overflow.isConnected());
+
+        pool.release(pooled);
+        assertTrue(pooled.isConnected());
+        assertEquals(1, pool.size());
+        pool.close();
+        }
+
+    public void testInvalidatedClientIsReplaced() throws Exception
+        {
+        JmxConnectionPool pool = new JmxConnectionPool(10, 60000);
+
+        JmxClient first = pool.borrow(url, null);
+        pool.invalidate(first);
+        pool.release(first);
+        assertFalse(first.isConnected());
+
+        JmxClient second = pool.borrow(url, null);
+        assertNotSame(first, second);
+        pool.release(second);
+        pool.close();
+        }
+
+    public void testWaitingBorrowersShareAFailedConnect() throws Exception
+        {
+        final JmxConnectionPool pool = new JmxConnectionPool(10, 60000);
+        // hangs up on every connection after 300 ms
+        final ServerSocket silent = new ServerSocket(0);
+        Thread hangUp = new Thread()
+            {
+            public void run()
+                {
+                try
+                    {
+                    while ( true )
+                        {
+                        Socket socket = silent.accept();
+                        Thread.sleep(300);
+                        socket.close();
+                        }
+                    }
+                catch (Exception e)
+                    {
+                    // closed by the test
+                    }
+                }
+            };
+        hangUp.setDaemon(true);
+        hangUp.start();
+        final String hung = "service:jmx:rmi:///jndi/rmi://localhost:"
+                + silent.getLocalPort() + "/jmxrmi";
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger attempts = new AtomicInteger();
+        final AtomicInteger shared = new AtomicInteger();
+        Thread[] borrowers = new Thread[3];
+        for (int i = 0; i < borrowers.length; i++)
+            {
+            borrowers[i] = new Thread()
+                {
+                public void run()
+                    {
+                    try
+                        {
+                        start.await();
+                        pool.release(pool.borrow(hung, null));
+                        }
+                    catch (CircuitOpenException e)
+                        {
+                        shared.incrementAndGet();
+                        }
+                    catch (Exception e)
+                        {
+                        attempts.incrementAndGet();
+                        }
+                    }
+                };
+            borrowers[i].start();
+            }
+        long started = System.currentTimeMillis();
+        start.countDown();
+        for (Thread borrower : borrowers)
+            {
+            borrower.join();
+            }
+        long elapsed = System.currentTimeMillis() - started;
+        silent.close();
+        pool.close();
+
+        assertEquals(1, attempts.get());
+        assertEquals(2, shared.get());
+        // one attempt rather than one after the other
+        assertTrue("took " + elapsed + " ms", elapsed < 800);
+        }
+
+    public void testUnreachableServerFailsFast() throws Exception
+        {
+        JmxConnectionPool pool = new JmxConnectionPool(10, 60000);
+        pool.setCircuitBreaker(new CircuitBreaker(60000, 60000));
+        ServerSocket socket = new ServerSocket(0);
+        String down = "service:jmx:rmi:///jndi/rmi://localhost:"
+                + socket.getLocalPort() + "/jmxrmi";
+        socket.close();
+
+        try
+            {
+            pool.borrow(down, null);
+            fail("connected to a closed port");
+            }
+        catch (CircuitOpenException e)
+            {
+            fail("circuit opened before the first attempt");
+            }
+        catch (JmxException e)
+            {
+            // expected
+            }
+        try
+            {
+            pool.borrow(down, null);
+            fail("connected to a closed port");
+            }
+        catch (CircuitOpenException e)
+            {
+            assertNotNull(e.getCause());
+            }
+
+        // other servers are unaffected
+        JmxClient client = pool.borrow(url, null);
+        pool.release(client);
+        pool.close();
+        }
+}
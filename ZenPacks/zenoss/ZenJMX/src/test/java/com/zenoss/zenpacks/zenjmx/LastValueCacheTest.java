@@ -0,0 +1,72 @@
+///////////////////////////////////////////////////////////////////////////
+//
+//Copyright 2008 Zenoss Inc
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//    http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//
+///////////////////////////////////////////////////////////////////////////
+package com.zenoss.zenpacks.zenjmx;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import com.zenoss.zenpacks.zenjmx.call.Summary;
+
+public class LastValueCacheTest extends TestCase {
+
+    public void testPutAndGet()
+        {
+        LastValueCache cache = new LastValueCache(10);
+        cache.put("dev", "heap", summary(25, "used", 512L, "name", "abc"),
+                1000);
+        cache.put("dev", "heap", summary(30, "used", "768"), 2000);
+
+        List<LastValueCache.LastValue> values = cache.get("dev");
+        assertEquals(1, values.size());
+        LastValueCache.LastValue last = values.get(0);
+        assertEquals("heap", last.getDatasource());
+        assertEquals("used", last.getDatapoint());
+        assertEquals(768.0, last.getValue());
+        assertEquals(2000, last.getTimestamp());
+        assertEquals(30, last.getRuntime());
+        assertTrue(cache.get("other").isEmpty());
+        }
+
+    public void testLeastRecentlyUsedDevicesEvicted()
+        {
+        LastValueCache cache = new LastValueCache(4);
+        cache.put("a", "ds", summary(1, "x", 1, "y", 2), 0);
+        cache.put("b", "ds", summary(1, "x", 1, "y", 2), 0);
+        // reading a makes b the least recently used
+        cache.get("a");
+        cache.put("c", "ds", summary(1, "x", 1), 0);
+
+        assertEquals(3, cache.size());
+        assertEquals(2, cache.get("a").size());
+        assertTrue(cache.get("b").isEmpty());
+        assertEquals(1, cache.get("c").size());
+        }
+
+    private static Summary summary(long runtime, Object... values)
+        {
+        Map<String, Object> results = new LinkedHashMap<String, Object>();
+        for (int i = 0; i < values.length; i += 2)
+            {
+            results.put((String) values[i], values[i + 1]);
+            }
+        Summary summary = new Summary();
+        summary.setResults(results);
+        summary.setRuntime(runtime);
+        return summary;
+        }
+}
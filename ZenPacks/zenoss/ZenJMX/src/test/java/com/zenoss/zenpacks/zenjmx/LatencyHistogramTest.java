@@ -0,0 +1,56 @@
+///////////////////////////////////////////////////////////////////////////
+//
+//Copyright 2008 Zenoss Inc
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//    http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//
+///////////////////////////////////////////////////////////////////////////
+package com.zenoss.zenpacks.zenjmx;
+
+import junit.framework.TestCase;
+
+import com.zenoss.jmx.LatencyHistogram;
+
+public class LatencyHistogramTest extends TestCase {
+
+    public void testBuckets() throws Exception
+        {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(0);
+        histogram.record(1);
+        histogram.record(3);
+        histogram.record(100000);
+
+        long[] buckets = histogram.getBuckets();
+        assertEquals(LatencyHistogram.getBounds().length + 1, buckets.length);
+        assertEquals(2, buckets[0]);
+        assertEquals(1, buckets[2]);
+        assertEquals(1, buckets[buckets.length - 1]);
+        assertEquals(4, histogram.getCount());
+        assertEquals(100000, histogram.getMax());
+        assertEquals(25001.0, histogram.getMean(), 0.001);
+        }
+
+    public void testPercentiles() throws Exception
+        {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentile(99));
+        for (int i = 0; i < 98; i++)
+            {
+            histogram.record(15);
+            }
+        histogram.record(400);
+        histogram.record(70000);
+
+        assertEquals(20, histogram.getPercentile(50));
+        assertEquals(500, histogram.getPercentile(99));
+        assertEquals(70000, histogram.getPercentile(100));
+        }
+}
@@ -0,0 +1,86 @@
+///////////////////////////////////////////////////////////////////////////
+//
+//Copyright 2008 Zenoss Inc
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//    http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//
+///////////////////////////////////////////////////////////////////////////
+package com.zenoss.zenpacks.zenjmx;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import com.zenoss.zenpacks.zenjmx.call.Summary;
+
+public class MetricsServletTest extends TestCase {
+
+    public void testExposition()
+        {
+        CollectorMetrics metrics = new CollectorMetrics();
+        metrics.requestReceived();
+        metrics.deviceStarted();
+        metrics.deviceFinished(3);
+        metrics.deviceStarted();
+        metrics.deviceFinished(700);
+        metrics.callTimedOut();
+
+        StringWriter out = new StringWriter();
+        MetricsServlet.write(new PrintWriter(out), new ZenJmxCollector(
+                metrics), metrics);
+        String text = out.toString();
+
+        assertTrue(text.contains("# TYPE zenjmx_requests_total counter\n"
+                + "zenjmx_requests_total 1\n"));
+        assertTrue(text.contains("zenjmx_devices_total 2\n"));
+        assertTrue(text.contains("zenjmx_devices_in_flight 0\n"));
+
+        // buckets are cumulative and in seconds
+        assertTrue(text.contains("zenjmx_device_latency_seconds_bucket"
+                + "{le=\"0.002\"} 0\n"));
+        assertTrue(text.contains("zenjmx_device_latency_seconds_bucket"
+                + "{le=\"0.005\"} 1\n"));
+        assertTrue(text.contains("zenjmx_device_latency_seconds_bucket"
+                + "{le=\"1.0\"} 2\n"));
+        assertTrue(text.contains("zenjmx_device_latency_seconds_bucket"
+                + "{le=\"+Inf\"} 2\n"));
+        assertTrue(text.contains("zenjmx_device_latency_seconds_sum 0.703\n"));
+        assertTrue(text.contains("zenjmx_device_latency_seconds_count 2\n"));
+        assertTrue(text.contains("zenjmx_errors_total{type=\"timeout\"} 1\n"));
+        }
+
+    public void testLastValues()
+        {
+        LastValueCache cache = new LastValueCache(10);
+        Map<String, Object> values = new HashMap<String, Object>();
+        values.put("used", 512L);
+        values.put("peak", Double.POSITIVE_INFINITY);
+        values.put("low", Double.NEGATIVE_INFINITY);
+        Summary summary = new Summary();
+        summary.setResults(values);
+        summary.setRuntime(40);
+        cache.put("host \"1\"", "heap", summary, 1234);
+
+        StringWriter out = new StringWriter();
+        MetricsServlet.writeLastValues(new PrintWriter(out), "host \"1\"",
+                cache.get("host \"1\""));
+        String text = out.toString();
+
+        assertTrue(text.contains("# TYPE zenjmx_last_value gauge\n"));
+        assertTrue(text.contains("zenjmx_last_value{device=\"host \\\"1\\\"\","
+                + "datasource=\"heap\",datapoint=\"used\"} 512.0 1234\n"));
+        assertTrue(text.contains("datapoint=\"used\"} 0.04 1234\n"));
+        assertTrue(text.contains("datapoint=\"peak\"} +Inf 1234\n"));
+        assertTrue(text.contains("datapoint=\"low\"} -Inf 1234\n"));
+        }
+}
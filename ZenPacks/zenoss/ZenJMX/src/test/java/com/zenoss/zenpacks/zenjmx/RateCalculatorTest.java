@@ -0,0 +1,120 @@
+///////////////////////////////////////////////////////////////////////////
+//
+//Copyright 2008 Zenoss Inc
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//    http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//
+///////////////////////////////////////////////////////////////////////////
+package com.zenoss.zenpacks.zenjmx;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import com.zenoss.zenpacks.zenjmx.call.Summary;
+
+public class RateCalculatorTest extends TestCase {
+
+    private final RateCalculator _rates = new RateCalculator(60000);
+
+    public void testCounter() throws Exception
+        {
+        assertNull(rate("COUNTER", 1000L, 0));
+        assertEquals(10.0, rate("COUNTER", 1100L, 10000));
+        assertEquals(5.0, rate("COUNTER", "1150", 20000));
+        // reset
+        assertNull(rate("COUNTER", 3L, 30000));
+        assertEquals(0.5, rate("COUNTER", 8L, 40000));
+        // not an integer
+        assertNull(rate("COUNTER", 8.5, 50000));
+        }
+
+    public void testCounterWrap() throws Exception
+        {
+        assertNull(rate("COUNTER", 4294967000L, 0));
+        assertEquals(40.0, rate("COUNTER", 104L, 10000));
+        }
+
+    public void testDeriveAndAbsolute() throws Exception
+        {
+        assertNull(rate("DERIVE", 500, 0));
+        assertEquals(-20.0, rate("DERIVE", 300, 10000));
+        assertNull(_rates.rate("d", "ds", "abs", "ABSOLUTE", 7, 0));
+        assertEquals(2.5, _rates.rate("d", "ds", "abs", "ABSOLUTE", 50, 20000));
+        }
+
+    public void testConvert() throws Exception
+        {
+        Map<String, Object> values = new LinkedHashMap<String, Object>();
+        values.put("heap", 512L);
+        values.put("requests", 100L);
+        Map<String, String> types = new HashMap<String, String>();
+        types.put("heap", "GAUGE");
+        types.put("requests", "COUNTER");
+        Summary summary = new Summary();
+        summary.setResults(values);
+        summary.setTypeMap(types);
+
+        Map<String, Object> converted = _rates.convert("d", "ds", summary, 0);
+        assertEquals(1, converted.size());
+        assertEquals(512L, converted.get("heap"));
+
+        values.put("requests", 130L);
+        converted = _rates.convert("d", "ds", summary, 1000);
+        assertEquals(512L, converted.get("heap"));
+        assertEquals(30.0, converted.get("requests"));
+
+        // another device's datapoint of the same name is separate
+        assertNull(_rates.convert("e", "ds", summary, 2000).get("requests"));
+        }
+
+    public void testStaleSamplesDropped() throws Exception
+        {
+        for (int i = 0; i < 100; i++)
+            {
+            _rates.rate("d", "ds", "dp" + i, "COUNTER", i, 0);
+            }
+        assertEquals(100, _rates.size());
+        for (int i = 0; i < 100; i++)
+            {
+            _rates.rate("e", "ds", "dp" + i, "COUNTER", i, 120000);
+            }
+        assertTrue(_rates.size() < 200);
+        assertEquals(1.0, _rates.rate("e", "ds", "dp5", "COUNTER", 6, 121000));
+        }
+
+    public void testHashCollision() throws Exception
+        {
+        RateCalculator rates = new RateCalculator(60000)
+            {
+            long key(String device, String datasource, String datapoint)
+                {
+                return 42;
+                }
+            };
+        for (int i = 0; i < 20; i++)
+            {
+            assertNull(rates.rate("d", "ds", "dp" + i, "COUNTER", i, 0));
+            }
+        assertEquals(20, rates.size());
+        for (int i = 0; i < 20; i++)
+            {
+            assertEquals((double) i,
+                rates.rate("d", "ds", "dp" + i, "COUNTER", 2 * i, 1000));
+            }
+        }
+
+    private Double rate(String type, Object value, long now)
+        {
+        return _rates.rate("device", "ds", "dp", type, value, now);
+        }
+}
@@ -0,0 +1,158 @@
+///////////////////////////////////////////////////////////////////////////
+//
+//Copyright 2008 Zenoss Inc
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//    http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//
+///////////////////////////////////////////////////////////////////////////
+package com.zenoss.zenpacks.zenjmx;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import com.zenoss.zenpacks.zenjmx.call.Summary;
+
+public class ResultRingTest extends TestCase {
+
+    private File _file;
+
+    protected void setUp() throws Exception
+        {
+        _file = File.createTempFile("zenjmx", ".ring");
+        }
+
+    protected void tearDown()
+        {
+        _file.delete();
+        new File(_file.getPath() + ResultRing.IDS_SUFFIX).delete();
+        }
+
+    public void testWriteAndRead() throws Exception
+        {
+        ResultRing ring = new ResultRing(_file.getPath(), 16);
+        ResultRingReader reader = new ResultRingReader(_file.getPath());
+        Map<String, Object> values = new LinkedHashMap<String, Object>();
+        values.put("heap", 1024L);
+        values.put("load", 0.5);
+        values.put("text", "not a number");
+        values.put("parsed", "7");
+        ring.write("dev\t1", "ds\n1", summary(values));
+
+        Collector collector = new Collector();
+        assertEquals(3, reader.poll(collector));
+        assertEquals("dev\t1|ds\n1|heap|1024.0|load|0.5|parsed|7.0|",
+                collector.toString());
+        assertEquals(0, reader.poll(collector));
+        assertEquals(0, reader.getLost());
+        ring.close();
+        }
+
+    public void testTornRecordRejected() throws Exception
+        {
+        ResultRing ring = new ResultRing(_file.getPath(), 4);
+        ResultRingReader reader = new ResultRingReader(_file.getPath());
+        Map<String, Object> values = new LinkedHashMap<String, Object>();
+        values.put("a", 1);
+        values.put("b", 2);
+        ring.write("dev", "ds", summary(values));
+
+        // a value changed under a valid stamp, as a torn write would
+        RandomAccessFile raf = new RandomAccessFile(_file, "rw");
+        raf.seek(ResultRing.HEADER_SIZE + 16);
+        raf.writeDouble(99);
+        raf.close();
+
+        Collector collector = new Collector();
+        assertEquals(1, reader.poll(collector));
+        assertEquals(1, reader.getLost());
+        assertEquals("b", collector._datapoints.get(0));
+        ring.close();
+        }
+
+    public void testOverrun() throws Exception
+        {
+        ResultRing ring = new ResultRing(_file.getPath(), 4);
+        ResultRingReader reader = new ResultRingReader(_file.getPath());
+        for (int i = 0; i < 10; i++)
+            {
+            Map<String, Object> values = new LinkedHashMap<String, Object>();
+            values.put("dp" + i, i);
+            ring.write("dev", "ds", summary(values));
+            }
+        Collector collector = new Collector();
+        assertEquals(4, reader.poll(collector));
+        assertEquals(6, reader.getLost());
+        assertEquals(6.0, collector._values.get(0));
+        assertEquals("dp9", collector._datapoints.get(3));
+        ring.close();
+        }
+
+    public void testRestart() throws Exception
+        {
+        ResultRing ring = new ResultRing(_file.getPath(), 8);
+        ResultRingReader reader = new ResultRingReader(_file.getPath());
+        Map<String, Object> values = new LinkedHashMap<String, Object>();
+        values.put("a", 1);
+        values.put("b", 2);
+        ring.write("old", "ds", summary(values));
+        assertEquals(2, reader.poll(new Collector()));
+        ring.close();
+
+        // a new collector reuses the file with a new epoch
+        Thread.sleep(5);
+        ring = new ResultRing(_file.getPath(), 8);
+        values.remove("b");
+        ring.write("new", "ds", summary(values));
+        Collector collector = new Collector();
+        assertEquals(1, reader.poll(collector));
+        assertEquals("new|ds|a|1.0|", collector.toString());
+        ring.close();
+        }
+
+    private static Summary summary(Map<String, Object> values)
+        {
+        Summary summary = new Summary();
+        summary.setResults(values);
+        return summary;
+        }
+
+    private static class Collector implements ResultRingReader.Handler {
+
+        private final StringBuilder _text = new StringBuilder();
+
+        private final List<String> _datapoints = new ArrayList<String>();
+
+        private final List<Double> _values = new ArrayList<Double>();
+
+        public void result(String device, String datasource,
+                String datapoint, long timestamp, double value)
+            {
+            if ( _text.length() == 0 )
+                {
+                _text.append(device).append('|').append(datasource)
+                        .append('|');
+                }
+            _text.append(datapoint).append('|').append(value).append('|');
+            _datapoints.add(datapoint);
+            _values.add(value);
+            }
+
+        public String toString()
+            {
+            return _text.toString();
+            }
+    }
+}
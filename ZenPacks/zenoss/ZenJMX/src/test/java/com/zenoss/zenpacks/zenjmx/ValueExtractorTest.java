@@ -1,5 +1,7 @@
 package com.zenoss.zenpacks.zenjmx;
 
+import com.zenoss.jmx.AttributePath;
+import com.zenoss.jmx.AttributePathTree;
 import com.zenoss.jmx.JmxException;
 import com.zenoss.jmx.ValueExtractor;
 import com.zenoss.zenpacks.zenjmx.call.ZenJMXTest;
@@ -12,6 +14,7 @@ import javax.management.openmbean.TabularData;
 import java.lang.management.ManagementFactory;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 
 public class ValueExtractorTest extends TestCase {
 
@@ -195,6 +198,79 @@ public class ValueExtractorTest extends TestCase {
         fail("expected an exception");
         }
 
+    public void testCompiledPathIsCached() throws Exception
+        {
+        AttributePath path = AttributePath.compile("nested.rows.[rowTwo].rowValue");
+        assertSame(path, AttributePath.compile("nested.rows.[rowTwo].rowValue"));
+        assertEquals("nested.rows.[rowTwo].rowValue", path.getPath());
+        }
+
+    public void testCompiledPathIsReusable() throws Exception
+        {
+        if ( !isOneSix )
+            {
+            return;
+            }
+        AttributePath path = AttributePath.compile("[row.Three].differentRowValue");
+        assertEquals(2, path.evaluate(testTabular));
+        assertEquals(2, path.evaluate(testTabular));
+
+        path = AttributePath.compile("nested.rows.[rowTwo].{value}.rowValue");
+        assertEquals(3, path.evaluate(testComposite));
+        }
+
+    public void testPathTreeMatchesSinglePaths() throws Exception
+        {
+        if ( !isOneSix )
+            {
+            return;
+            }
+        List<String> paths = Arrays.asList("stringValue", "valueOne",
+                "nested.nestedValue", "nested.rows.[rowTwo].rowValue",
+                "nested.rows.[rowTwo].anotherRowValue",
+                "nested.rows.[row.Three].{value}.rowValue",
+                "nested.rows.[rowOnse].rowValue", "nested.blam");
+        Map<String, Object> values = AttributePathTree.compile(paths)
+                .evaluate(testComposite);
+        for (String path : paths)
+            {
+            Object expected = null;
+            try
+                {
+                expected = ValueExtractor.getDataValue(testComposite, path);
+                }
+            catch (JmxException e)
+                {
+                assertFalse(path, values.containsKey(path));
+                continue;
+                }
+            assertEquals(path, expected, values.get(path));
+            }
+        assertEquals(3, values.get("nested.rows.[rowTwo].rowValue"));
+        assertEquals(6, values.size());
+        }
+
+    public void testPathTreeOnTabularData() throws Exception
+        {
+        if ( !isOneSix )
+            {
+            return;
+            }
+        List<String> paths = Arrays.asList("rowOne.anotherRowValue",
+                "[rowOne].differentRowValue", "rowOne.blam",
+                "[row.Three].differentRowValue");
+        Map<String, Object> values = AttributePathTree.compile(paths)
+                .evaluate(testTabular);
+        assertEquals(654, values.get("rowOne.anotherRowValue"));
+        assertEquals(384, values.get("[rowOne].differentRowValue"));
+        assertEquals(2, values.get("[row.Three].differentRowValue"));
+        assertFalse(values.containsKey("rowOne.blam"));
+
+        values = AttributePathTree.compile(Arrays.asList("rowOne"))
+                .evaluate(testSimpleTabular);
+        assertEquals(5, values.get("rowOne"));
+        }
+
     public void testSplit() throws Exception
         {
         doSplitTest("[blam.foo.more.last]");
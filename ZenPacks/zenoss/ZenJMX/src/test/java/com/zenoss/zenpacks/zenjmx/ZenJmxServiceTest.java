@@ -0,0 +1,602 @@
+///////////////////////////////////////////////////////////////////////////
+//
+//Copyright 2008 Zenoss Inc
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//    http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//
+///////////////////////////////////////////////////////////////////////////
+package com.zenoss.zenpacks.zenjmx;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.TabularData;
+import javax.management.remote.JMXConnectorServer;
+import javax.management.remote.JMXConnectorServerFactory;
+import javax.management.remote.JMXServiceURL;
+
+import junit.framework.TestCase;
+
+import com.zenoss.zenpacks.zenjmx.call.ConfigurationException;
+import com.zenoss.zenpacks.zenjmx.call.ZenJMXTest;
+
+/**
+ * Runs collections through ZenJmxService against an in-process RMI
+ * connector server.
+ */
+public class ZenJmxServiceTest extends TestCase {
+
+    private static final String SLOW_MBEAN = "com.zenoss:type=ZenJmxServiceTest";
+
+    public interface SlowMBean {
+        int getValue();
+    }
+
+    /**
+     * MBean whose attribute takes a few seconds to read
+     */
+    public static class Slow implements SlowMBean {
+        public int getValue()
+            {
+            try
+                {
+                Thread.sleep(3000);
+                }
+            catch (InterruptedException e)
+                {
+                Thread.currentThread().interrupt();
+                }
+            return 1;
+            }
+    }
+
+    private Registry registry;
+    private JMXConnectorServer server;
+    private int port;
+
+    @Override
+    protected void setUp() throws Exception
+        {
+        ServerSocket socket = new ServerSocket(0);
+        port = socket.getLocalPort();
+        socket.close();
+
+        MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        if ( !mbs.isRegistered(new ObjectName(ZenJMXTest.mbeanObjectNameStr)) )
+            {
+            ZenJMXTest.registerMbean(mbs);
+            }
+
+        ObjectName slow = new ObjectName(SLOW_MBEAN);
+        if ( !mbs.isRegistered(slow) )
+            {
+            mbs.registerMBean(new Slow(), slow);
+            }
+
+        registry = LocateRegistry.createRegistry(port);
+        String url = "service:jmx:rmi:///jndi/rmi://localhost:" + port
+                + "/jmxrmi";
+        server = JMXConnectorServerFactory.newJMXConnectorServer(
+                new JMXServiceURL(url), null, mbs);
+        server.start();
+        }
+
+    @Override
+    protected void tearDown() throws Exception
+        {
+        Configuration.instance().setProperty(OptionsFactory.CALL_TIMEOUT,
+                OptionsFactory.DEFAULT_CALL_TIMEOUT);
+        Configuration.instance().setProperty(OptionsFactory.RESULT_FORMAT,
+                OptionsFactory.DEFAULT_RESULT_FORMAT);
+        Configuration.instance().setProperty(
+                OptionsFactory.BINARY_CONNECTIONS,
+                OptionsFactory.DEFAULT_BINARY_CONNECTIONS);
+        ZenJmxService.getConnectionPool().close();
+        server.stop();
+        UnicastRemoteObject.unexportObject(registry, true);
+        }
+
+    /**
+     * Creates the configuration of an attribute datasource
+     */
+    private Map<String, Object> createConfig(String dsId, String objectName,
+            String attribute, String path, String... dps)
+        {
+        Map<String, Object> config = new HashMap<String, Object>();
+        config.put(ConfigAdapter.DEVICE, "localhost");
+        config.put(ConfigAdapter.MANAGE_IP, "localhost");
+        config.put(ConfigAdapter.JMX_PORT, String.valueOf(port));
+        config.put(ConfigAdapter.JMX_PROTOCOL, "RMI");
+        config.put(ConfigAdapter.JMX_RAW_SERVICE, "");
+        config.put(ConfigAdapter.RMI_CONTEXT, "jmxrmi");
+        config.put(ConfigAdapter.AUTHENTICATE, Boolean.FALSE);
+        config.put(ConfigAdapter.USERNAME, "");
+        config.put(ConfigAdapter.PASSWORD, "");
+        config.put(ConfigAdapter.DATASOURCE_ID, dsId);
+        config.put(ConfigAdapter.OBJECT_NAME, objectName);
+        config.put(ConfigAdapter.ATTRIBUTE_NAME, attribute);
+        config.put("attributePath", path);
+        config.put(ConfigAdapter.OPERATION_NAME, "");
+        config.put(ConfigAdapter.OPERATION_PARAM_VALUES, "");
+        config.put(ConfigAdapter.OPERATION_PARAM_TYPES, "");
+        config.put(ConfigAdapter.EVENT_CLASS, "/Status/JMX");
+        config.put(ConfigAdapter.EVENT_KEY, "");
+        config.put(ConfigAdapter.COMPONENT_KEY, "");
+        config.put(ConfigAdapter.RRD_PATH, "Devices/localhost");
+        Object[] types = new Object[dps.length];
+        for (int i = 0; i < types.length; i++)
+            {
+            types[i] = "GAUGE";
+            }
+        config.put(ConfigAdapter.DATA_POINT, dps);
+        config.put(ConfigAdapter.DATA_POINT_TYPES, types);
+        return config;
+        }
+
+    /**
+     * Returns the results keyed by datasource id and datapoint id, errors
+     * are keyed by datasource id only
+     */
+    private Map<String, Map<String, String>> index(List<?> results)
+        {
+        Map<String, Map<String, String>> indexed = new HashMap<String, Map<String, String>>();
+        for (Object obj : results)
+            {
+            @SuppressWarnings("unchecked")
+            Map<String, String> result = (Map<String, String>) obj;
+            String key = result.get(ConfigAdapter.DATASOURCE_ID);
+            if ( result.get("dpId") != null )
+                {
+                key += "/" + result.get("dpId");
+                }
+            indexed.put(key, result);
+            }
+        return indexed;
+        }
+
+    private List<?> collect(List<Map<?, ?>> configs) throws Exception
+        {
+        return (List<?>) new ZenJmxService().collect(configs);
+        }
+
+    public void testCollectAttributesOnSameMBean() throws Exception
+        {
+        List<Map<?, ?>> configs = new ArrayList<Map<?, ?>>();
+        configs.add(createConfig("heap", "java.lang:type=Memory",
+                "HeapMemoryUsage", "", "used", "committed"));
+        configs.add(createConfig("objects", "java.lang:type=Memory",
+                "ObjectPendingFinalizationCount", "", "pending"));
+        configs.add(createConfig("composite", ZenJMXTest.mbeanObjectNameStr,
+                "CompositeTestData", "nested", "nestedValue"));
+
+        Map<String, Map<String, String>> results = index(collect(configs));
+
+        assertEquals(4, results.size());
+        assertNotNull(results.get("heap/used").get("value"));
+        assertNotNull(results.get("heap/committed").get("value"));
+        assertNotNull(results.get("objects/pending").get("value"));
+        assertEquals("321", results.get("composite/nestedValue").get("value"));
+        }
+
+    public void testMissingAttributeOnlyFailsItsDatasource() throws Exception
+        {
+        List<Map<?, ?>> configs = new ArrayList<Map<?, ?>>();
+        configs.add(createConfig("heap", "java.lang:type=Memory",
+                "HeapMemoryUsage", "", "used"));
+        configs.add(createConfig("bogus", "java.lang:type=Memory",
+                "NoSuchAttribute", "", "value"));
+
+        Map<String, Map<String, String>> results = index(collect(configs));
+
+        assertNotNull(results.get("heap/used").get("value"));
+        assertNotNull(results.get("bogus").get("summary"));
+        }
+
+    public void testCollectorMetrics() throws Exception
+        {
+        CollectorMetrics metrics = CollectorMetrics.instance();
+        long requests = metrics.getRequests();
+        long calls = metrics.getCallLatency().getCount();
+        long callErrors = metrics.getCallErrors();
+        List<Map<?, ?>> configs = new ArrayList<Map<?, ?>>();
+        configs.add(createConfig("heap", "java.lang:type=Memory",
+                "HeapMemoryUsage", "", "used"));
+        configs.add(createConfig("bogus", "java.lang:type=Memory",
+                "NoSuchAttribute", "", "value"));
+        collect(configs);
+
+        assertEquals(requests + 1, metrics.getRequests());
+        assertEquals(calls + 1, metrics.getCallLatency().getCount());
+        assertEquals(callErrors + 1, metrics.getCallErrors());
+        assertEquals(0, metrics.getInFlightDevices());
+
+        ZenJmxCollector.register();
+        MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(ZenJmxCollector.OBJECT_NAME);
+        assertEquals(metrics.getRequests(), mbs.getAttribute(name,
+                "RequestCount"));
+        assertEquals(ZenJmxService.getConnectionPool().size(), mbs
+                .getAttribute(name, "ConnectionPoolSize"));
+        assertTrue(mbs.getAttribute(name, "ErrorCounts") instanceof TabularData);
+        }
+
+    public void testUnregisteredMBean() throws Exception
+        {
+        List<Map<?, ?>> configs = new ArrayList<Map<?, ?>>();
+        configs.add(createConfig("a", "com.zenoss:type=Missing", "A", "", "a"));
+        configs.add(createConfig("b", "com.zenoss:type=Missing", "B", "", "b"));
+
+        Map<String, Map<String, String>> results = index(collect(configs));
+
+        assertEquals(2, results.size());
+        assertTrue(results.get("a").get("summary").indexOf(
+                "no MBean registered") != -1);
+        assertTrue(results.get("b").get("summary").indexOf(
+                "no MBean registered") != -1);
+        }
+
+    public void testSlowCallIsAbandoned() throws Exception
+        {
+        Configuration.instance().setProperty(OptionsFactory.CALL_TIMEOUT, "1");
+        List<Map<?, ?>> configs = new ArrayList<Map<?, ?>>();
+        configs.add(createConfig("slow", SLOW_MBEAN, "Value", "", "value"));
+        configs.add(createConfig("heap", "java.lang:type=Memory",
+                "HeapMemoryUsage", "", "used"));
+
+        long start = System.currentTimeMillis();
+        Map<String, Map<String, String>> results = index(collect(configs));
+        long elapsed = System.currentTimeMillis() - start;
+
+        assertTrue("took " + elapsed + " ms", elapsed < 2500);
+        assertEquals(2, results.size());
+        assertTrue(results.get("slow").get("summary").indexOf("Timed out") != -1);
+        assertNotNull(results.get("heap/used").get("value"));
+        }
+
+    public void testCollectById() throws Exception
+        {
+        ZenJmxService service = new ZenJmxService();
+        List<Map<?, ?>> configs = new ArrayList<Map<?, ?>>();
+        configs.add(createConfig("heap", "java.lang:type=Memory",
+                "HeapMemoryUsage", "", "used"));
+        int version = (Integer) service.register("localhost test", configs);
+
+        Map<String, Map<String, String>> results = index((List<?>) service
+                .collectById("localhost test", version));
+        assertNotNull(results.get("heap/used").get("value"));
+
+        // a new registration replaces the old version
+        int newVersion = (Integer) service.register("localhost test", configs);
+        assertTrue(newVersion != version);
+        assertEquals(Boolean.FALSE, service.unregister("localhost test",
+                version));
+        try
+            {
+            service.collectById("localhost test", version);
+            fail("collected a replaced version");
+            }
+        catch (ConfigurationException e)
+            {
+            // expected
+            }
+        assertEquals(1, ((List<?>) service.collectById("localhost test",
+                newVersion)).size());
+
+        assertEquals(Boolean.TRUE, service.unregister("localhost test",
+                newVersion));
+        try
+            {
+            service.collectById("localhost test", newVersion);
+            fail("collected an unregistered key");
+            }
+        catch (ConfigurationException e)
+            {
+            // expected
+            }
+        }
+
+    public void testCollectBatch() throws Exception
+        {
+        ZenJmxService service = new ZenJmxService();
+        List<Map<?, ?>> registered = new ArrayList<Map<?, ?>>();
+        registered.add(createConfig("heap", "java.lang:type=Memory",
+                "HeapMemoryUsage", "", "used"));
+        int version = (Integer) service.register("registered", registered);
+
+        Map<String, Object> requests = new HashMap<String, Object>();
+        requests.put("registered", version);
+        requests.put("inline", new Object[] { createConfig("objects",
+                "java.lang:type=Memory", "ObjectPendingFinalizationCount",
+                "", "pending") });
+        requests.put("stale", version - 1);
+
+        Map<?, ?> response = (Map<?, ?>) service.collectBatch(requests);
+        Map<?, ?> results = (Map<?, ?>) response.get("results");
+
+        assertEquals(2, results.size());
+        assertNotNull(index((List<?>) results.get("registered"))
+                .get("heap/used").get("value"));
+        assertNotNull(index((List<?>) results.get("inline"))
+                .get("objects/pending").get("value"));
+        assertEquals(1, ((List<?>) response.get("unregistered")).size());
+        assertEquals("stale", ((List<?>) response.get("unregistered")).get(0));
+        service.unregister("registered", version);
+        }
+
+    public void testCompactResults() throws Exception
+        {
+        Configuration.instance().setProperty(OptionsFactory.RESULT_FORMAT,
+                OptionsFactory.COMPACT_RESULT_FORMAT);
+        List<Map<?, ?>> configs = new ArrayList<Map<?, ?>>();
+        configs.add(createConfig("heap", "java.lang:type=Memory",
+                "HeapMemoryUsage", "", "used", "committed"));
+        configs.add(createConfig("bogus", "java.lang:type=Memory",
+                "NoSuchAttribute", "", "value"));
+
+        Map<String, Map<String, String>> results = index(collect(configs));
+
+        assertEquals(2, results.size());
+        Map<?, ?> heap = results.get("heap");
+        assertEquals("Devices/localhost", heap.get(ConfigAdapter.RRD_PATH));
+        List<?> dpIds = (List<?>) heap.get("dpIds");
+        List<?> values = (List<?>) heap.get("values");
+        assertEquals(2, dpIds.size());
+        assertTrue(dpIds.contains("used"));
+        assertTrue(dpIds.contains("committed"));
+        assertTrue(values.get(0) instanceof Number);
+        assertTrue(values.get(1) instanceof Number);
+        assertNotNull(results.get("bogus").get("summary"));
+        }
+
+    public void testRawValuesSentWithRates() throws Exception
+        {
+        Map<String, Object> uptime = createConfig("uptime",
+                "java.lang:type=Runtime", "Uptime", "", "uptime");
+        uptime.put(ConfigAdapter.DATA_POINT_TYPES, new Object[] { "COUNTER" });
+        ZenJmxService.JMXCollector collector = new ZenJmxService.JMXCollector(
+                new ConfigAdapter[] { new ConfigAdapter(uptime) }, false);
+        collector.setRateCalculator(new RateCalculator(60000));
+
+        // no rate yet, only the raw value
+        Map<String, Map<String, String>> results = index(collector.collect());
+        Map<String, String> first = results.get("uptime/uptime");
+        assertNull(first.get("value"));
+        assertNotNull(first.get("rawValue"));
+
+        Thread.sleep(20);
+        results = index(collector.collect());
+        Map<String, String> second = results.get("uptime/uptime");
+        assertNotNull(second.get("value"));
+        assertTrue(Long.parseLong(second.get("rawValue")) > Long
+                .parseLong(first.get("rawValue")));
+
+        collector.setCompactResults(true);
+        Map<?, ?> compact = (Map<?, ?>) collector.collect().get(0);
+        assertEquals(Arrays.asList("uptime"), compact.get("dpIds"));
+        assertTrue(((Map<?, ?>) compact.get("rawValues")).get("uptime")
+                instanceof Number);
+        }
+
+    public void testBinaryRpc() throws Exception
+        {
+        BinaryRpcServer server = new BinaryRpcServer(0);
+        server.start();
+        BinaryRpcClient client = new BinaryRpcClient("localhost", server
+                .getPort());
+        try
+            {
+            List<Map<?, ?>> configs = new ArrayList<Map<?, ?>>();
+            configs.add(createConfig("heap", "java.lang:type=Memory",
+                    "HeapMemoryUsage", "", "used"));
+            configs.add(createConfig("composite",
+                    ZenJMXTest.mbeanObjectNameStr, "CompositeTestData",
+                    "nested", "nestedValue"));
+            Map<String, Map<String, String>> results = index(Arrays
+                    .asList((Object[]) client.call("zenjmx.collect",
+                            configs)));
+            assertNotNull(results.get("heap/used").get("value"));
+            assertEquals("321", results.get("composite/nestedValue").get(
+                    "value"));
+
+            int version = (Integer) client.call("zenjmx.register",
+                    "localhost binary", configs);
+            assertEquals(2, ((Object[]) client.call("zenjmx.collectById",
+                    "localhost binary", version)).length);
+            assertEquals(Boolean.TRUE, client.call("zenjmx.unregister",
+                    "localhost binary", version));
+            assertTrue(((Object[]) client.call("zenjmx.lastValues",
+                    "localhost")).length > 0);
+
+            try
+                {
+                client.call("zenjmx.collectById", "localhost binary",
+                        version);
+                fail("collected an unregistered key");
+                }
+            catch (BinaryRpcClient.FaultException e)
+                {
+                assertTrue(e.getMessage().contains("not registered"));
+                }
+            try
+                {
+                client.call("zenjmx.nosuchmethod");
+                fail("called an unknown method");
+                }
+            catch (BinaryRpcClient.FaultException e)
+                {
+                // expected
+                }
+
+            // the connection is still usable after faults
+            assertEquals(0, ((Object[]) client.call("zenjmx.collect",
+                    new ArrayList<Object>())).length);
+
+            // a request larger than the buffer a payload starts in
+            char[] device = new char[300000];
+            Arrays.fill(device, 'd');
+            assertEquals(0, ((Object[]) client.call("zenjmx.lastValues",
+                    new String(device))).length);
+            }
+        finally
+            {
+            client.close();
+            server.stop();
+            }
+        }
+
+    public void testBinaryRpcConnectionLimit() throws Exception
+        {
+        Configuration.instance().setProperty(
+                OptionsFactory.BINARY_CONNECTIONS, "1");
+        BinaryRpcServer server = new BinaryRpcServer(0);
+        server.start();
+        BinaryRpcClient first = new BinaryRpcClient("127.0.0.1", server
+                .getPort());
+        BinaryRpcClient second = null;
+        try
+            {
+            assertEquals(0, ((Object[]) first.call("zenjmx.collect",
+                    new ArrayList<Object>())).length);
+            second = new BinaryRpcClient("127.0.0.1", server.getPort());
+            try
+                {
+                second.call("zenjmx.collect", new ArrayList<Object>());
+                fail("served a connection beyond the limit");
+                }
+            catch (java.io.IOException e)
+                {
+                // closed by the server
+                }
+            assertEquals(0, ((Object[]) first.call("zenjmx.collect",
+                    new ArrayList<Object>())).length);
+            }
+        finally
+            {
+            first.close();
+            if ( second != null )
+                {
+                second.close();
+                }
+            server.stop();
+            }
+        }
+
+    public void testBinaryRpcOverUnixSocket() throws Exception
+        {
+        if ( !UnixSockets.isSupported() )
+            {
+            return;
+            }
+        File path = File.createTempFile("zenjmx", ".sock");
+        BinaryRpcServer server = new BinaryRpcServer(path.getPath());
+        server.start();
+        BinaryRpcClient client = new BinaryRpcClient(path.getPath());
+        try
+            {
+            // the private directory the socket was bound in is gone
+            for (String name : path.getParentFile().list())
+                {
+                assertFalse(name, name.startsWith("." + path.getName()));
+                }
+
+            List<Map<?, ?>> configs = new ArrayList<Map<?, ?>>();
+            configs.add(createConfig("heap", "java.lang:type=Memory",
+                    "HeapMemoryUsage", "", "used"));
+            Map<String, Map<String, String>> results = index(Arrays
+                    .asList((Object[]) client.call("zenjmx.collect",
+                            configs)));
+            assertNotNull(results.get("heap/used").get("value"));
+            }
+        finally
+            {
+            client.close();
+            server.stop();
+            }
+        assertFalse(path.exists());
+        }
+
+    public void testSampler() throws Exception
+        {
+        Sampler sampler = new Sampler(50, 100, new HashSet<String>(Arrays
+                .asList("heap")), true, ZenJmxService.getConnectionPool(),
+                ZenJmxService.getCallExecutor(),
+                new ZenJmxService.CollectorThreadFactory("test-sampler-"));
+        try
+            {
+            ConfigAdapter heap = new ConfigAdapter(createConfig("heap",
+                    "java.lang:type=Memory", "HeapMemoryUsage", "", "used"));
+            ConfigAdapter objects = new ConfigAdapter(createConfig(
+                    "objects", "java.lang:type=Memory",
+                    "ObjectPendingFinalizationCount", "", "pending"));
+            assertTrue(sampler.isSampled(heap));
+            assertFalse(sampler.isSampled(objects));
+
+            // sampling starts with the first collection
+            assertTrue(sampler.collect(heap).isEmpty());
+            Thread.sleep(500);
+            Map<String, Object> used = sampler.collect(heap).get("used");
+            assertNotNull(used);
+            int count = (Integer) used.get(Sampler.COUNT);
+            assertTrue(count >= 2);
+            double min = (Double) used.get(Sampler.MIN);
+            double max = (Double) used.get(Sampler.MAX);
+            double avg = (Double) used.get(Sampler.AVG);
+            assertTrue(min > 0 && min <= avg && avg <= max);
+            assertEquals(count, ((List<?>) used.get(Sampler.VALUES)).size());
+            assertEquals(1, sampler.size());
+            }
+        finally
+            {
+            sampler.stop();
+            }
+        }
+
+    public void testLastValues() throws Exception
+        {
+        List<Map<?, ?>> configs = new ArrayList<Map<?, ?>>();
+        configs.add(createConfig("lastheap", "java.lang:type=Memory",
+                "HeapMemoryUsage", "", "used"));
+        configs.add(createConfig("lastmissing", "java.lang:type=Memory",
+                "NoSuchAttribute", "", "missing"));
+        collect(configs);
+
+        List<?> values = (List<?>) new ZenJmxService().lastValues("localhost");
+        Map<?, ?> used = null;
+        for (Object obj : values)
+            {
+            Map<?, ?> value = (Map<?, ?>) obj;
+            assertFalse("lastmissing".equals(value
+                    .get(ConfigAdapter.DATASOURCE_ID)));
+            if ( "lastheap".equals(value.get(ConfigAdapter.DATASOURCE_ID)) )
+                {
+                used = value;
+                }
+            }
+        assertNotNull(used);
+        assertEquals("used", used.get("dpId"));
+        assertTrue((Double) used.get("value") > 0);
+        assertTrue((Double) used.get("timestamp") > 0);
+
+        assertTrue(((List<?>) new ZenJmxService().lastValues("nosuchdevice"))
+                .isEmpty());
+        }
+}
@@ -19,6 +19,10 @@ import junit.textui.TestRunner;
 
 import java.util.List;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.zenoss.jmx.JmxClient;
 
 
 /**
@@ -133,4 +137,18 @@ public class MultiValueAttributeCallTest
   public void testEquals() {
 //    assertTrue(_call1.equals(_call2));
   }
+
+
+  /**
+   * Tests that the runtime of a batched call includes reading the batch
+   */
+  public void testBatchedRuntime() throws Exception {
+    AttributeCall call = new AttributeCall(OBJECT_NAME, ATTR_NAME, KEYS, "");
+    Map<String, Object> attributes = new HashMap<String, Object>();
+    attributes.put(ATTR_NAME, 42);
+    long started = System.currentTimeMillis() - 250;
+    Summary summary = call.call(new JmxClient(URL), attributes, started);
+    assertEquals(42, summary.getResults().get("key1"));
+    assertTrue(summary.getRuntime() >= 250);
+  }
 }
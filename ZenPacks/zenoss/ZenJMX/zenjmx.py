@@ -23,6 +23,7 @@ import sys
 import os
 import socket
 import Globals
+import rrdtool
 import zope
 import time
 
@@ -45,7 +46,7 @@ from Products.ZenEvents import Event
 from Products.ZenHub.XmlRpcService import XmlRpcService
 from Products.ZenRRD.Thresholds import Thresholds
 from Products.ZenUtils.NJobs import NJobs
-from Products.ZenUtils.Utils import binPath, unused
+from Products.ZenUtils.Utils import binPath, unused, performancePath
 from Products.ZenUtils.observable import ObservableMixin
 import ZenPacks.zenoss.ZenJMX
 
@@ -106,6 +107,234 @@ class ZenJMXPreferences(object):
         parser.add_option('--javaheap',
                             dest="maxHeap",type="int", default=512,
                             help="Max heap, in MB, to use for java process")
+        parser.add_option('--connectionPoolSize',
+                               dest='connectionPoolSize',
+                               default=1000, type='int',
+                               help='Maximum number of JMX connections the '
+                                    'java process keeps open between '
+                                    'collections; 0 disables pooling'
+                               )
+        parser.add_option('--connectionIdleTimeout',
+                               dest='connectionIdleTimeout',
+                               default=900, type='int',
+                               help='Seconds an unused JMX connection is '
+                                    'kept open by the java process'
+                               )
+        parser.add_option('--disableMBeanCache',
+                               dest='disableMBeanCache',
+                               action='store_true', default=False,
+                               help='Check that an mbean is registered before '
+                                    'every call instead of caching the '
+                                    'registered mbeans of each JMX server'
+                               )
+        parser.add_option('--computeRates',
+                               dest='computeRates',
+                               action='store_true', default=False,
+                               help='Have the java process send per second '
+                                    'rates of COUNTER, DERIVE and ABSOLUTE '
+                                    'datapoints along with their raw values. '
+                                    'Rates are stored as GAUGE in new RRD '
+                                    'files; existing files of another type '
+                                    'keep getting the raw values. The first '
+                                    'collection of a datapoint after the '
+                                    'java process starts has no rate'
+                               )
+        parser.add_option('--collectionThreads',
+                               dest='collectionThreads',
+                               default=200, type='int',
+                               help='Number of threads the java process '
+                                    'uses to make JMX calls'
+                               )
+        parser.add_option('--collectionQueueSize',
+                               dest='collectionQueueSize',
+                               default=10000, type='int',
+                               help='Maximum number of JMX calls waiting '
+                                    'for a thread; calls beyond it fail '
+                                    'with an error event'
+                               )
+        parser.add_option('--callTimeout',
+                               dest='callTimeout',
+                               default=60, type='int',
+                               help='Seconds a single JMX call may take '
+                                    'before it is abandoned; 0 means only '
+                                    'the device timeout applies'
+                               )
+        parser.add_option('--deviceTimeout',
+                               dest='deviceTimeout',
+                               default=300, type='int',
+                               help='Seconds the java process waits for '
+                                    'all the JMX calls to a device'
+                               )
+        parser.add_option('--connectTimeout',
+                               dest='connectTimeout',
+                               default=30, type='int',
+                               help='Seconds to wait for a connection to '
+                                    'a JMX server; 0 waits forever'
+                               )
+        parser.add_option('--readTimeout',
+                               dest='readTimeout',
+                               default=60, type='int',
+                               help='Seconds to wait for a reply from a '
+                                    'JMX server; 0 waits forever'
+                               )
+        parser.add_option('--batchSize',
+                               dest='batchSize',
+                               default=0, type='int',
+                               help='Collect up to this many registered '
+                                    'connections with one request to the '
+                                    'java process; 0 sends a request per '
+                                    'connection'
+                               )
+        parser.add_option('--batchThreads',
+                               dest='batchThreads',
+                               default=50, type='int',
+                               help='Number of devices of a batch request '
+                                    'the java process collects at the '
+                                    'same time'
+                               )
+        parser.add_option('--resultFormat',
+                               dest='resultFormat',
+                               default='compact', type='choice',
+                               choices=['compact', 'legacy'],
+                               help='Format of the results sent by the '
+                                    'java process: compact sends one '
+                                    'result per datasource, legacy one '
+                                    'per datapoint'
+                               )
+        parser.add_option('--connectRetryInterval',
+                               dest='connectRetryInterval',
+                               default=30, type='int',
+                               help='Seconds to wait before connecting '
+                                    'again to a JMX server that could not '
+                                    'be connected to; doubled after every '
+                                    'failure, 0 always connects'
+                               )
+        parser.add_option('--maxConnectRetryInterval',
+                               dest='maxConnectRetryInterval',
+                               default=900, type='int',
+                               help='Longest time in seconds to wait '
+                                    'before connecting again to a JMX '
+                                    'server'
+                               )
+        parser.add_option('--traceSampleRate',
+                               dest='traceSampleRate',
+                               default=0, type='int',
+                               help='Log a trace of one JMX call in this '
+                                    'many at info level, 0 logs none'
+                               )
+        parser.add_option('--serverThreads',
+                               dest='serverThreads',
+                               default=100, type='int',
+                               help='Maximum number of threads the java '
+                                    'process uses to serve collect '
+                                    'requests'
+                               )
+        parser.add_option('--serverQueueSize',
+                               dest='serverQueueSize',
+                               default=5000, type='int',
+                               help='Maximum number of collect requests '
+                                    'waiting for a thread of the java '
+                                    'process; connections beyond it are '
+                                    'closed'
+                               )
+        parser.add_option('--keepAliveTimeout',
+                               dest='keepAliveTimeout',
+                               default=60, type='int',
+                               help='Seconds the java process keeps an '
+                                    'idle connection open'
+                               )
+        parser.add_option('--acceptQueueSize',
+                               dest='acceptQueueSize',
+                               default=1024, type='int',
+                               help='Maximum number of connections waiting '
+                                    'to be accepted by the java process'
+                               )
+        parser.add_option('--binaryPort',
+                               dest='binaryPort',
+                               default=0, type='int',
+                               help='Port on which the java process also '
+                                    'serves collect requests with the '
+                                    'binary protocol of binrpc.py; 0 '
+                                    'disables it'
+                               )
+        parser.add_option('--binaryAddress',
+                               dest='binaryAddress',
+                               default='127.0.0.1',
+                               help='Address on which the java process '
+                                    'listens on --binaryPort; the loopback '
+                                    'address by default'
+                               )
+        parser.add_option('--binaryConnections',
+                               dest='binaryConnections',
+                               default=100, type='int',
+                               help='Maximum number of connections the java '
+                                    'process keeps open on --binaryPort '
+                                    'and --unixSocket'
+                               )
+        parser.add_option('--gzipThreshold',
+                               dest='gzipThreshold',
+                               default=1024, type='int',
+                               help='Size in bytes from which the java '
+                                    'process gzip compresses XML-RPC '
+                                    'responses for clients accepting it'
+                               )
+        parser.add_option('--unixSocket',
+                               dest='unixSocket',
+                               default='',
+                               help='Unix domain socket file on which the '
+                                    'java process also serves collect '
+                                    'requests with the binary protocol of '
+                                    'binrpc.py; only its owner may connect '
+                                    'to it. Needs Java 16 or later'
+                               )
+        parser.add_option('--resultRing',
+                               dest='resultRing',
+                               default='',
+                               help='File into which the java process also '
+                                    'publishes the values it collects, for '
+                                    'local readers; see ResultRing.java'
+                               )
+        parser.add_option('--resultRingSize',
+                               dest='resultRingSize',
+                               default=1048576, type='int',
+                               help='Number of values the result ring '
+                                    'holds before the oldest are overwritten'
+                               )
+        parser.add_option('--sampleInterval',
+                               dest='sampleInterval',
+                               default=0, type='int',
+                               help='Seconds between the samples the java '
+                                    'process takes of --sampleDatasources '
+                                    'between collections, 0 disables '
+                                    'sampling'
+                               )
+        parser.add_option('--sampleDatasources',
+                               dest='sampleDatasources',
+                               default='',
+                               help='Comma separated ids of the datasources '
+                                    'sampled between collections; the min, '
+                                    'max, avg and last of their samples are '
+                                    'sent along with their values'
+                               )
+        parser.add_option('--sampleSize',
+                               dest='sampleSize',
+                               default=360, type='int',
+                               help='Number of samples kept per datapoint '
+                                    'between collections'
+                               )
+        parser.add_option('--lastValueCacheSize',
+                               dest='lastValueCacheSize',
+                               default=100000, type='int',
+                               help='Number of collected values the java '
+                                    'process keeps for zenjmx.lastValues and '
+                                    '/metrics?device=, 0 disables the cache'
+                               )
+        parser.add_option('--sampleSeries',
+                               dest='sampleSeries',
+                               action='store_true', default=False,
+                               help='Also send every sample taken between '
+                                    'collections'
+                               )
                                
     def postStartup(self):
         pass
@@ -118,6 +347,58 @@ class ZenJMXPreferences(object):
             args = args + ('-v', str(self.options.logseverity))
         if self.options.concurrentJMXCalls:
             args = args + ('-concurrentJMXCalls', )
+        args = args + ('-connectionPoolSize',
+                       str(self.options.connectionPoolSize))
+        args = args + ('-connectionIdleTimeout',
+                       str(self.options.connectionIdleTimeout))
+        if self.options.disableMBeanCache:
+            args = args + ('-disableMBeanCache', )
+        if self.options.computeRates:
+            args = args + ('-computeRates', )
+        args = args + ('-collectionThreads',
+                       str(self.options.collectionThreads))
+        args = args + ('-collectionQueueSize',
+                       str(self.options.collectionQueueSize))
+        args = args + ('-callTimeout', str(self.options.callTimeout))
+        args = args + ('-deviceTimeout', str(self.options.deviceTimeout))
+        args = args + ('-connectTimeout', str(self.options.connectTimeout))
+        args = args + ('-readTimeout', str(self.options.readTimeout))
+        args = args + ('-batchThreads', str(self.options.batchThreads))
+        args = args + ('-resultFormat', self.options.resultFormat)
+        args = args + ('-connectRetryInterval',
+                       str(self.options.connectRetryInterval))
+        args = args + ('-maxConnectRetryInterval',
+                       str(self.options.maxConnectRetryInterval))
+        args = args + ('-traceSampleRate',
+                       str(self.options.traceSampleRate))
+        args = args + ('-serverThreads', str(self.options.serverThreads))
+        args = args + ('-serverQueueSize',
+                       str(self.options.serverQueueSize))
+        args = args + ('-keepAliveTimeout',
+                       str(self.options.keepAliveTimeout))
+        args = args + ('-acceptQueueSize',
+                       str(self.options.acceptQueueSize))
+        args = args + ('-binaryPort', str(self.options.binaryPort))
+        args = args + ('-binaryAddress', self.options.binaryAddress)
+        args = args + ('-binaryConnections',
+                       str(self.options.binaryConnections))
+        args = args + ('-gzipThreshold', str(self.options.gzipThreshold))
+        if self.options.unixSocket:
+            args = args + ('-unixSocket', self.options.unixSocket)
+        if self.options.resultRing:
+            args = args + ('-resultRing', self.options.resultRing,
+                           '-resultRingSize',
+                           str(self.options.resultRingSize))
+        args = args + ('-lastValueCacheSize',
+                       str(self.options.lastValueCacheSize))
+        if self.options.sampleInterval and self.options.sampleDatasources:
+            args = args + ('-sampleInterval',
+                           str(self.options.sampleInterval),
+                           '-sampleDatasources',
+                           self.options.sampleDatasources,
+                           '-sampleSize', str(self.options.sampleSize))
+            if self.options.sampleSeries:
+                args = args + ('-sampleSeries', )
         return args
 
     def getStartingPort(self):
@@ -392,6 +673,80 @@ class ZenJMXJavaClientInitialization(object):
         return deferred
 
 
+class ZenJMXBatcher(object):
+    """
+    Combines the collections of registered configurations requested by
+    all tasks into zenjmx.collectBatch requests.  Requests are sent once
+    batchSize collections are waiting or shortly after the first one.
+    """
+
+    def __init__(self, client, batchSize, delay=0.1):
+        self._client = client
+        self._batchSize = batchSize
+        self._delay = delay
+        self._pending = {}
+        self._flushCall = None
+
+    def collect(self, key, version):
+        """
+        Collect the configurations registered under key.  The deferred
+        fails with an xmlrpc.Fault if the version isn't registered.
+        """
+        if key in self._pending:
+            self._flush()
+        d = Deferred()
+        self._pending[key] = (version, d)
+        if len(self._pending) >= self._batchSize:
+            self._flush()
+        elif self._flushCall is None:
+            self._flushCall = reactor.callLater(self._delay, self._flush)
+        return d
+
+    def _flush(self):
+        if self._flushCall is not None:
+            if self._flushCall.active():
+                self._flushCall.cancel()
+            self._flushCall = None
+        pending, self._pending = self._pending, {}
+        if not pending:
+            return
+        requests = dict((key, version)
+                        for key, (version, d) in pending.items())
+        port = self._client.listenPort
+        xmlRpcProxy = xmlrpc.Proxy('http://localhost:%s/' % port)
+        d = xmlRpcProxy.callRemote('zenjmx.collectBatch', requests)
+        d.addCallbacks(self._dispatch, self._fail,
+                       callbackArgs=(pending,), errbackArgs=(pending,))
+
+    def _dispatch(self, response, pending):
+        results = response.get('results', {})
+        for key, (version, d) in pending.items():
+            if key in results:
+                d.callback(results[key])
+            else:
+                d.errback(xmlrpc.Fault(0, 'version %s of %s is not '
+                                          'registered' % (version, key)))
+
+    def _fail(self, failure, pending):
+        for version, d in pending.values():
+            d.errback(failure)
+
+
+_batchers = {}
+
+def getBatcher(client, batchSize):
+    """
+    Return the batcher shared by the tasks using client, None if
+    batching is turned off
+    """
+    if batchSize <= 0:
+        return None
+    batcher = _batchers.get(client)
+    if batcher is None:
+        batcher = _batchers[client] = ZenJMXBatcher(client, batchSize)
+    return batcher
+
+
 class ZenJMXTask(ObservableMixin):
     """
     The scheduled task for all the jmx datasources on an individual device.
@@ -425,6 +780,12 @@ class ZenJMXTask(ObservableMixin):
         # configuration.
         unused( scheduleIntervalSeconds )
         self.interval = self._preferences.options.cycleInterval
+
+        # versions of the configurations registered with the java process
+        self._configVersions = {}
+
+        # types of the existing RRD files rates are stored in, by datapoint path
+        self._rrdTypes = {}
         
     def createEvent(self, errorMap, component=None):
         """
@@ -487,17 +848,52 @@ class ZenJMXTask(ObservableMixin):
         def rpcCall():
             """
             Communicate with our local JMX process to collect results.
-            This is a generator function
-
-            @param driver: generator
-            @type driver: string
+            The configurations are registered with the JMX process the
+            first time and collected by id afterwards.
             """
             port = self._client.listenPort
             xmlRpcProxy = xmlrpc.Proxy('http://localhost:%s/' % port)
-            d = xmlRpcProxy.callRemote('zenjmx.collect', configMaps)
+            version = self._configVersions.get(registrationKey)
+            batcher = getBatcher(self._client,
+                                 self._preferences.options.batchSize)
+            if version is None:
+                d = register(xmlRpcProxy)
+            elif batcher is not None:
+                d = batcher.collect(registrationKey, version)
+                d.addErrback(reregister, xmlRpcProxy)
+            else:
+                d = xmlRpcProxy.callRemote('zenjmx.collectById',
+                                           registrationKey, version)
+                d.addErrback(reregister, xmlRpcProxy)
             d.addCallback( processResults )
             return d
 
+        def register(xmlRpcProxy):
+            """
+            Send the configurations to the JMX process and collect them
+            """
+            configMaps = [toDict(config) for config in dsConfigList]
+            d = xmlRpcProxy.callRemote('zenjmx.register', registrationKey,
+                                       configMaps)
+            d.addCallback(registered, xmlRpcProxy)
+            return d
+
+        def registered(version, xmlRpcProxy):
+            self._configVersions[registrationKey] = version
+            return xmlRpcProxy.callRemote('zenjmx.collectById',
+                                          registrationKey, version)
+
+        def reregister(failure, xmlRpcProxy):
+            """
+            The JMX process doesn't know the configurations, e.g. because
+            it was restarted; send them again
+            """
+            failure.trap(xmlrpc.Fault)
+            log.debug('re-registering %s: %s' % (registrationKey,
+                                                  failure.getErrorMessage()))
+            del self._configVersions[registrationKey]
+            return register(xmlRpcProxy)
+
         def processResults(jmxResults):
             """
             Given the results from JMX, store them or send events.
@@ -513,12 +909,30 @@ class ZenJMXTask(ObservableMixin):
                 if not evtSummary:
                     rrdPath = result.get('rrdPath')
                     dsId = result.get('datasourceId')
-                    dpId = result.get('dpId')
-                    value = result.get('value')
-                    try:
-                        self.storeRRD(deviceId, rrdPath, dsId, dpId, value)
-                    except ValueError:
-                        pass
+                    rates = evt.pop('rates', False)
+                    rawValues = evt.pop('rawValues', None) or {}
+                    samples = evt.pop('samples', None)
+                    if samples:
+                        log.debug('samples of %s %s: %s', deviceId, dsId,
+                                  samples)
+                    if 'dpIds' in result:
+                        # compact format, all datapoints of the datasource
+                        dpIds = evt.pop('dpIds')
+                        values = list(zip(dpIds, evt.pop('values')))
+                        # rate datapoints without a rate yet
+                        values.extend((dpId, None) for dpId in rawValues
+                                      if dpId not in dpIds)
+                    else:
+                        values = [(result.get('dpId'), result.get('value'))]
+                        if 'rawValue' in evt:
+                            rawValues = {result.get('dpId'):
+                                         evt.pop('rawValue')}
+                    for dpId, value in values:
+                        try:
+                            self.storeRRD(deviceId, rrdPath, dsId, dpId,
+                                          value, rates, rawValues.get(dpId))
+                        except ValueError:
+                            pass
                     self.sendEvent({}, severity=Event.Clear,
                         eventClass='/Status/JMX/Connection',
                         summary='Connection is up',
@@ -537,10 +951,9 @@ class ZenJMXTask(ObservableMixin):
             return jmxResults
 
         connectionComponentKey = ''
-        configMaps = []
         for config in dsConfigList:
             connectionComponentKey = config.getConnectionPropsKey()
-            configMaps.append(toDict(config))
+        registrationKey = '%s %s' % (self.configId, connectionComponentKey)
         log.info('collectJMX(): for %s %s' % (config.device,
                       connectionComponentKey))
         return rpcCall()
@@ -552,6 +965,8 @@ class ZenJMXTask(ObservableMixin):
         dataSourceId,
         dataPointId,
         dpValue,
+        rates=False,
+        rawValue=None,
         ):
         """
         Store a value into an RRD file
@@ -564,6 +979,12 @@ class ZenJMXTask(ObservableMixin):
         @type dataPointId: string
         @param dpValue: dpValue
         @type dpValue: number
+        @param rates: whether the java process sent COUNTER, DERIVE and
+                      ABSOLUTE values as rates
+        @type rates: boolean
+        @param rawValue: the value a rate was computed from, stored instead
+                         of the rate in RRD files that aren't GAUGE
+        @type rawValue: number
         """
         deviceConfig = self._taskConfig
         dsConfig = deviceConfig.findDataSource(dataSourceId)
@@ -574,6 +995,19 @@ class ZenJMXTask(ObservableMixin):
             return
         rrdConf = dsConfig.rrdConfig.get(dataPointId)
         type = rrdConf.rrdType
+        if rates and type in ('COUNTER', 'DERIVE', 'ABSOLUTE'):
+            dpPath = '/'.join((rrdPath, rrdConf.dpName))
+            if self._getRRDType(dpPath) in (None, 'GAUGE'):
+                # already a per second rate; none yet for the first
+                # collection of the datapoint
+                if dpValue is None:
+                    return
+                type = 'GAUGE'
+            else:
+                # the file keeps the type it was created with
+                if rawValue is None:
+                    return
+                dpValue = rawValue
         if(type in ('COUNTER', 'DERIVE')):
             parts = str(dpValue).split('.')
             if len(parts) == 2 and int(parts[1]) == 0:
@@ -590,9 +1024,35 @@ class ZenJMXTask(ObservableMixin):
         dpPath = '/'.join((rrdPath, rrdConf.dpName))
         min = rrdConf.min 
         max = rrdConf.max
-        value = self._dataService.writeRRD(dpPath, dpValue, rrdConf.rrdType,
+        value = self._dataService.writeRRD(dpPath, dpValue, type,
                               rrdConf.command, min=min, max=max)
 
+    def _getRRDType(self, dpPath):
+        """
+        Return the type of the datapoint RRD file: None if it doesn't
+        exist yet, in which case storing a rate creates it as GAUGE, and
+        'UNKNOWN' if it can't be read
+
+        @param dpPath: path of the datapoint, without extension
+        @type dpPath: string
+        """
+        if dpPath in self._rrdTypes:
+            return self._rrdTypes[dpPath]
+        filename = performancePath(dpPath + '.rrd')
+        if not os.path.exists(filename):
+            return None
+        try:
+            rrdType = rrdtool.info(filename).get('ds[ds0].type', 'UNKNOWN')
+        except rrdtool.error, e:
+            log.warning('Could not read the type of RRD file %s: %s',
+                        filename, e)
+            rrdType = 'UNKNOWN'
+        if rrdType != 'GAUGE':
+            log.info('Storing raw values instead of rates in %s, whose type '
+                     'is %s', filename, rrdType)
+        self._rrdTypes[dpPath] = rrdType
+        return rrdType
+
     def _finished(self, results):
         for result in results:
             log.debug("Finished with result %s" % str( result ) )
@@ -617,7 +1077,18 @@ class ZenJMXTask(ObservableMixin):
         return deferred
 
     def cleanup(self):
-        pass
+        """
+        Forget the configurations registered with the java process
+        """
+        if not self._configVersions:
+            return
+        port = self._client.listenPort
+        xmlRpcProxy = xmlrpc.Proxy('http://localhost:%s/' % port)
+        for key, version in self._configVersions.items():
+            d = xmlRpcProxy.callRemote('zenjmx.unregister', key, version)
+            d.addErrback(lambda failure: log.debug('unregister failed: %s'
+                                                   % failure.getErrorMessage()))
+        self._configVersions.clear()
 
 def stopJavaJmxClients():
     # Currently only starting/stopping one.